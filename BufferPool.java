@@ -0,0 +1,124 @@
+package pubsub;
+//******************************************************************************
+//File:    BufferPool.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps ByteBuffers for reuse, so that encoding an Event for delivery does not allocate a new
+ * buffer each time.  Buffers come in power of two sizes from MIN_SIZE to MAX_SIZE, each size with its own
+ * free list of at most MAX_FREE buffers.  Bigger requests get a buffer of their own that is not kept.
+ * The buffers can be direct, living outside the heap, which a channel can write without first copying
+ * them.
+ *
+ * @author rob mccartney
+ *
+ */
+public class BufferPool {
+
+	//Smallest buffer handed out
+	public static final int MIN_SIZE = 256;
+	//Largest buffer that is kept for reuse
+	public static final int MAX_SIZE = 1024 * 1024;
+	//Most free buffers kept of each size
+	public static final int MAX_FREE = 256;
+
+	private static final BufferPool shared = new BufferPool(false);
+
+	//free buffers of each size, smallest first
+	private List<ConcurrentLinkedQueue<ByteBuffer>> free;
+	private AtomicInteger[] freeCount;
+	private volatile boolean direct;
+
+	/**
+	 * Constructor
+	 *
+	 * @param _direct whether to hand out direct buffers rather than heap buffers
+	 */
+	public BufferPool(boolean _direct) {
+		this.direct = _direct;
+		int sizes = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+		free = new ArrayList<>(sizes);
+		freeCount = new AtomicInteger[sizes];
+		for (int i = 0; i < sizes; i++) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 *
+	 * @return the pool every Event is encoded into for delivery
+	 */
+	public static BufferPool shared() {
+		return shared;
+	}
+
+	/**
+	 * Changes whether new buffers are direct.  Buffers of the other kind are no longer kept once released
+	 *
+	 * @param _direct whether to hand out direct buffers rather than heap buffers
+	 */
+	public void setDirect(boolean _direct) {
+		this.direct = _direct;
+	}
+
+	/**
+	 *
+	 * @return true if new buffers are direct
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Take a buffer with room for at least a number of bytes, positioned at 0 with its limit at its capacity
+	 *
+	 * @param size bytes needed
+	 * @return a free buffer, or a new one if there is none of that size
+	 */
+	public ByteBuffer acquire(int size) {
+		int i = sizeClass(size);
+		if (i < free.size()) {
+			ByteBuffer buffer = free.get(i).poll();
+			if (buffer != null) {
+				freeCount[i].decrementAndGet();
+				buffer.clear();
+				return buffer;
+			}
+			size = MIN_SIZE << i;
+		}
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Give a buffer back for reuse.  It must not be used again by the caller
+	 *
+	 * @param buffer taken from acquire()
+	 */
+	public void release(ByteBuffer buffer) {
+		int i = sizeClass(buffer.capacity());
+		if (i >= free.size() || buffer.capacity() != MIN_SIZE << i || buffer.isDirect() != direct)
+			return;
+		if (freeCount[i].incrementAndGet() > MAX_FREE) {
+			freeCount[i].decrementAndGet();
+			return;
+		}
+		free.get(i).offer(buffer);
+	}
+
+	/**
+	 * Helper method to find the index of the smallest size that holds a number of bytes
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+	}
+}
@@ -0,0 +1,419 @@
+package pubsub;
+//******************************************************************************
+//File:    ContentMatcher.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import pubsub.FilterExpression.Clause;
+import pubsub.FilterExpression.Literal;
+
+/**
+ * This class matches published Events against every FilterExpression subscription at once.  All the
+ * clauses of all the expressions are compiled into one shared structure: exact keywords in a hash table,
+ * keyword prefixes in a trie, attribute tests in a hash table of values (for ==) or in a sorted map of
+ * bounds per attribute and comparison (for <, <=, > and >=), and for each literal the list of clauses it
+ * appears in.  Matching an Event looks up each of its keywords and attributes once, a range lookup only
+ * visiting the bounds the value actually satisfies, counts how many positive literals of each clause were seen, and
+ * rules out any clause whose negative literals were seen.  A clause matches when its count reaches the
+ * number of positive literals it needs, so the work done is proportional to the Event's keywords and
+ * the clauses they touch, not to the number of subscriptions.  Clauses made only of negations have no
+ * keyword to be found by, so they are the one part that is checked on every Event.
+ *
+ * Publishes share a read lock and changes to subscriptions take the write lock.
+ *
+ * @author rob mccartney
+ *
+ */
+public class ContentMatcher {
+
+	//Maps from an exact keyword to its entry
+	private HashMap<String, Entry> exact;
+	//Root of the trie of keyword prefixes
+	private TrieNode prefixes;
+	//Maps from the name of an attribute to the entries of its == tests, by value
+	private HashMap<String, HashMap<Object, Entry>> equal;
+	//Maps from the name of an attribute to the entries of its range tests
+	private HashMap<String, RangeIndex> ranges;
+	//Clauses that have no positive literal
+	private ArrayList<Compiled> negationOnly;
+	//Maps from the ID of a client to its expressions, by text, and the clauses they compiled to
+	private HashMap<Integer, HashMap<String, ArrayList<Compiled>>> bySubscriber;
+	private ReentrantReadWriteLock lock;
+	//number of expressions subscribed, read without the lock to skip matching altogether
+	private volatile int count = 0;
+
+	/**
+	 * Constructor
+	 */
+	public ContentMatcher() {
+		exact = new HashMap<>();
+		prefixes = new TrieNode();
+		equal = new HashMap<>();
+		ranges = new HashMap<>();
+		negationOnly = new ArrayList<>();
+		bySubscriber = new HashMap<>();
+		lock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 *
+	 * @return true if there are no expressions to match against
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Subscribe a client to an expression
+	 *
+	 * @param subID unique ID of the client
+	 * @param expr compiled expression
+	 * @return true if the client was not already subscribed to this expression
+	 */
+	public boolean add(int subID, FilterExpression expr) {
+		lock.writeLock().lock();
+		try {
+			HashMap<String, ArrayList<Compiled>> mine = bySubscriber.get(subID);
+			if (mine == null)
+				bySubscriber.put(subID, mine = new HashMap<>());
+			if (mine.containsKey(expr.getText()))
+				return false;
+			ArrayList<Compiled> compiled = new ArrayList<>();
+			for (Clause c : expr.getClauses())
+				compiled.add(link(subID, c));
+			mine.put(expr.getText(), compiled);
+			count++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Unsubscribe a client from an expression
+	 *
+	 * @param subID unique ID of the client
+	 * @param text the expression as the client typed it when subscribing
+	 * @return true if the client was subscribed to it
+	 */
+	public boolean remove(int subID, String text) {
+		lock.writeLock().lock();
+		try {
+			HashMap<String, ArrayList<Compiled>> mine = bySubscriber.get(subID);
+			if (mine == null)
+				return false;
+			ArrayList<Compiled> compiled = mine.remove(text.trim());
+			if (compiled == null)
+				return false;
+			for (Compiled c : compiled)
+				unlink(c);
+			if (mine.isEmpty())
+				bySubscriber.remove(subID);
+			count--;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Unsubscribe a client from every expression
+	 *
+	 * @param subID unique ID of the client
+	 * @return number of expressions removed
+	 */
+	public int removeAll(int subID) {
+		lock.writeLock().lock();
+		try {
+			HashMap<String, ArrayList<Compiled>> mine = bySubscriber.remove(subID);
+			if (mine == null)
+				return 0;
+			for (ArrayList<Compiled> compiled : mine.values())
+				for (Compiled c : compiled)
+					unlink(c);
+			count -= mine.size();
+			return mine.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Find every subscriber with an expression matching an Event's keywords and attributes
+	 *
+	 * @param event a published Event
+	 * @return the matching subscribers
+	 */
+	public IntSet match(Event event) {
+		IntSet matched = new IntSet();
+		if (count == 0)
+			return matched;
+		lock.readLock().lock();
+		try {
+			//each literal counts once however many keywords hit it
+			HashSet<Entry> hits = new HashSet<>();
+			for (String keyword : event.getKeywords()) {
+				Entry e = exact.get(keyword);
+				if (e != null)
+					hits.add(e);
+				TrieNode node = prefixes;
+				for (int i = 0; node != null; i++) {
+					if (node.entry != null)
+						hits.add(node.entry);
+					node = (i < keyword.length()) ? node.children.get(keyword.charAt(i)) : null;
+				}
+			}
+			for (Map.Entry<String, Object> a : event.getAttributes().entrySet()) {
+				Object value = normalize(a.getValue());
+				HashMap<Object, Entry> values = equal.get(a.getKey());
+				if (values != null && values.get(value) != null)
+					hits.add(values.get(value));
+				RangeIndex r = ranges.get(a.getKey());
+				if (r != null && value instanceof Double)
+					r.collect((Double) value, hits);
+			}
+			IdentityHashMap<Compiled, int[]> counts = new IdentityHashMap<>();
+			IdentityHashMap<Compiled, Boolean> vetoed = new IdentityHashMap<>();
+			for (Entry e : hits) {
+				for (Compiled c : e.negative)
+					vetoed.put(c, Boolean.TRUE);
+				for (Compiled c : e.positive) {
+					int[] n = counts.get(c);
+					if (n == null)
+						counts.put(c, n = new int[1]);
+					n[0]++;
+				}
+			}
+			for (Map.Entry<Compiled, int[]> c : counts.entrySet())
+				if (c.getValue()[0] == c.getKey().required && !vetoed.containsKey(c.getKey()))
+					matched.add(c.getKey().subID);
+			for (Compiled c : negationOnly)
+				if (!vetoed.containsKey(c))
+					matched.add(c.subID);
+			return matched;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return every expression with the subscribers to it, used by the server for printing
+	 */
+	public LinkedHashMap<String, IntSet> subscriptions() {
+		lock.readLock().lock();
+		try {
+			LinkedHashMap<String, IntSet> all = new LinkedHashMap<>();
+			for (Map.Entry<Integer, HashMap<String, ArrayList<Compiled>>> sub : bySubscriber.entrySet()) {
+				for (String text : sub.getValue().keySet()) {
+					if (all.get(text) == null)
+						all.put(text, new IntSet());
+					all.get(text).add(sub.getKey());
+				}
+			}
+			return all;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Helper method to add a clause to the entries of its literals.  Caller holds the write lock
+	 */
+	private Compiled link(int subID, Clause clause) {
+		Compiled c = new Compiled(subID, clause);
+		for (Literal l : clause.positive)
+			entry(l).positive.add(c);
+		for (Literal l : clause.negative)
+			entry(l).negative.add(c);
+		if (c.required == 0)
+			negationOnly.add(c);
+		return c;
+	}
+
+	/**
+	 * Helper method to take a clause out of the entries of its literals, dropping entries that are no
+	 * longer used.  Caller holds the write lock
+	 */
+	private void unlink(Compiled c) {
+		for (Literal l : c.clause.positive)
+			release(l).positive.remove(c);
+		for (Literal l : c.clause.negative)
+			release(l).negative.remove(c);
+		if (c.required == 0)
+			negationOnly.remove(c);
+	}
+
+	/**
+	 * Helper method to find or make the entry of a literal
+	 */
+	private Entry entry(Literal l) {
+		if (l.isPredicate() && l.op.equals(Literal.EQ)) {
+			HashMap<Object, Entry> values = equal.get(l.text);
+			if (values == null)
+				equal.put(l.text, values = new HashMap<>());
+			Entry e = values.get(l.value);
+			if (e == null)
+				values.put(l.value, e = new Entry());
+			return e;
+		}
+		if (l.isPredicate()) {
+			RangeIndex r = ranges.get(l.text);
+			if (r == null)
+				ranges.put(l.text, r = new RangeIndex());
+			TreeMap<Double, Entry> bounds = r.bounds(l.op);
+			Entry e = bounds.get(l.value);
+			if (e == null)
+				bounds.put((Double) l.value, e = new Entry());
+			return e;
+		}
+		if (!l.prefix) {
+			Entry e = exact.get(l.text);
+			if (e == null)
+				exact.put(l.text, e = new Entry());
+			return e;
+		}
+		TrieNode node = prefixes;
+		for (int i = 0; i < l.text.length(); i++) {
+			TrieNode child = node.children.get(l.text.charAt(i));
+			if (child == null)
+				node.children.put(l.text.charAt(i), child = new TrieNode());
+			node = child;
+		}
+		if (node.entry == null)
+			node.entry = new Entry();
+		return node.entry;
+	}
+
+	/**
+	 * Helper method to find the entry of a literal that a clause is leaving.  An entry that is left
+	 * with no clauses is dropped, although its trie nodes are kept for the next prefix to use
+	 */
+	private Entry release(Literal l) {
+		Entry e;
+		if (l.isPredicate() && l.op.equals(Literal.EQ)) {
+			HashMap<Object, Entry> values = equal.get(l.text);
+			e = values.get(l.value);
+			if (e.positive.size() + e.negative.size() <= 1) {
+				values.remove(l.value);
+				if (values.isEmpty())
+					equal.remove(l.text);
+			}
+			return e;
+		}
+		if (l.isPredicate()) {
+			RangeIndex r = ranges.get(l.text);
+			e = r.bounds(l.op).get(l.value);
+			if (e.positive.size() + e.negative.size() <= 1) {
+				r.bounds(l.op).remove(l.value);
+				if (r.isEmpty())
+					ranges.remove(l.text);
+			}
+			return e;
+		}
+		if (!l.prefix) {
+			e = exact.get(l.text);
+			if (e.positive.size() + e.negative.size() <= 1)
+				exact.remove(l.text);
+			return e;
+		}
+		TrieNode node = prefixes;
+		for (int i = 0; i < l.text.length(); i++)
+			node = node.children.get(l.text.charAt(i));
+		e = node.entry;
+		if (e.positive.size() + e.negative.size() <= 1)
+			node.entry = null;
+		return e;
+	}
+
+	/**
+	 * Helper method to put an attribute value in the form the tests were parsed into: numbers of every
+	 * type as a Double, strings as they are
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		return value;
+	}
+
+	/**
+	 * The clauses a single literal appears in, positively or negatively
+	 */
+	private static class Entry {
+		ArrayList<Compiled> positive = new ArrayList<>();
+		ArrayList<Compiled> negative = new ArrayList<>();
+	}
+
+	/**
+	 * One node of the prefix trie, holding the entry of the prefix that ends here, if any
+	 */
+	private static class TrieNode {
+		HashMap<Character, TrieNode> children = new HashMap<>();
+		Entry entry;
+	}
+
+	/**
+	 * The range tests of one attribute, with the entries of each comparison sorted by their bound so
+	 * that the tests a value passes are one contiguous run of each map
+	 */
+	private static class RangeIndex {
+		TreeMap<Double, Entry> below = new TreeMap<>();
+		TreeMap<Double, Entry> atMost = new TreeMap<>();
+		TreeMap<Double, Entry> above = new TreeMap<>();
+		TreeMap<Double, Entry> atLeast = new TreeMap<>();
+
+		TreeMap<Double, Entry> bounds(String op) {
+			switch (op) {
+				case Literal.LT: return below;
+				case Literal.LE: return atMost;
+				case Literal.GT: return above;
+				default: return atLeast;
+			}
+		}
+
+		boolean isEmpty() {
+			return below.isEmpty() && atMost.isEmpty() && above.isEmpty() && atLeast.isEmpty();
+		}
+
+		/**
+		 * Add the entry of every test that the value passes
+		 */
+		void collect(Double value, HashSet<Entry> hits) {
+			addAll(below.tailMap(value, false), hits);
+			addAll(atMost.tailMap(value, true), hits);
+			addAll(above.headMap(value, false), hits);
+			addAll(atLeast.headMap(value, true), hits);
+		}
+
+		private static void addAll(NavigableMap<Double, Entry> passed, HashSet<Entry> hits) {
+			if (!passed.isEmpty())
+				hits.addAll(passed.values());
+		}
+	}
+
+	/**
+	 * A clause as it is linked into the matcher for one subscriber.  Compared by identity, since two
+	 * subscribers may have identical clauses
+	 */
+	private static class Compiled {
+		int subID;
+		int required;
+		Clause clause;
+
+		Compiled(int _subID, Clause _clause) {
+			this.subID = _subID;
+			this.clause = _clause;
+			this.required = _clause.positive.size();
+		}
+	}
+}
@@ -0,0 +1,730 @@
+package pubsub;
+//******************************************************************************
+//File:    DeliveryEngine.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pubsub.interfaces.Subscriber;
+
+/**
+ * This class fans published Events out to their subscribers asynchronously.  Every subscriber has its own
+ * bounded outbound queue (an Outbox) that is drained by a shared pool of worker threads, so a publisher only
+ * waits for its Event to be routed and a slow subscriber only delays its own queue.  When an Outbox is full
+ * the OverflowPolicy decides whether to drop the oldest Event, block the publisher, or spill to disk.
+ * Dropped Events are counted, and reported for each subscriber once its queue has room again.  Spill
+ * files go in a directory of this server's own, so servers on one host never share them.
+ * Events waiting for the same subscriber are coalesced into one notifyBatch call, up to a maximum batch
+ * size and waiting at most a short linger time for a batch to fill.
+ * Any Event that cannot be delivered is handed back to the EventManager to try again later, along with how
+ * many times in a row that subscriber has failed so that retries can back off.  Its Outbox then holds any
+ * newer Events until the retry puts the handed back ones in front of them, so each subscriber still
+ * receives its Events in order.
+ * A subscriber whose client confirms each batch later, such as one connected over NIO, is a
+ * ConfirmingSubscriber.  Its Outbox sends a batch and gives the worker back, then carries on from the
+ * client's receipt, so no worker waits on a slow client and no batch counts as delivered until the client
+ * says it took it.
+ * Each Event held in memory by an Outbox holds a reference to its shared encoding, so an Event going to many
+ * subscribers is encoded once into a pooled buffer, every send writes those same bytes, and the buffer is
+ * reused once the last subscriber has it.
+ *
+ * @author rob mccartney
+ *
+ */
+public class DeliveryEngine {
+
+	/**
+	 * What to do with a new Event when a subscriber's queue is already full
+	 */
+	public enum OverflowPolicy {
+		//throw away the oldest queued Event to make room
+		DROP_OLDEST,
+		//make the publishing thread wait until the queue has room
+		BLOCK,
+		//write the Event to a file for that subscriber and read it back once the queue drains
+		SPILL_TO_DISK
+	}
+
+	//Default number of Events that can wait in memory for a single subscriber
+	public static final int DEFAULT_QUEUE_DEPTH = 1024;
+	//Default number of threads delivering Events
+	public static final int DEFAULT_WORKERS = 16;
+	//Most Events a worker sends to one subscriber before letting other subscribers have a turn
+	public static final int MAX_DRAIN = 64;
+	//Default most Events sent to a subscriber in one notifyBatch call
+	public static final int DEFAULT_MAX_BATCH = 64;
+	//Default time in milliseconds a worker waits for more Events to fill a batch
+	public static final long DEFAULT_LINGER = 2;
+
+	private EventManager manager;
+	//Maps from the ID of a client to its outbound queue
+	private ConcurrentHashMap<Integer, Outbox> outboxes;
+	private ExecutorService workers;
+	private volatile int queueDepth;
+	private volatile OverflowPolicy overflow;
+	private volatile int maxBatch = DEFAULT_MAX_BATCH;
+	private volatile long linger = DEFAULT_LINGER;
+	//Where SPILL_TO_DISK writes the Events that do not fit in memory, made the first time it is needed
+	//unless one is set, guarded by this
+	private File spillDir;
+	//Events thrown away by DROP_OLDEST since the server started
+	private AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * A Subscriber whose client confirms each batch of Events after it is sent, rather than by the time
+	 * the call returns
+	 */
+	interface ConfirmingSubscriber {
+		/**
+		 * Send Events without waiting for the client to take them
+		 *
+		 * @param events to send, oldest first
+		 * @param receipt told exactly once whether the client took them
+		 * @throws RemoteException if the Events cannot be sent at all, in which case the receipt is not told
+		 */
+		void send(List<Event> events, Receipt receipt) throws RemoteException;
+	}
+
+	/**
+	 * Told whether the client of a ConfirmingSubscriber took a batch of Events
+	 */
+	interface Receipt {
+		/**
+		 * @param taken true if the client took every Event of the batch, false if it took none
+		 */
+		void done(boolean taken);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param _manager the server whose subscribers this engine delivers to
+	 * @param _queueDepth number of Events that can be queued in memory per subscriber
+	 * @param _overflow what to do when a subscriber's queue is full
+	 * @param numWorkers number of threads delivering Events
+	 */
+	public DeliveryEngine(EventManager _manager, int _queueDepth, OverflowPolicy _overflow, int numWorkers) {
+		this.manager = _manager;
+		this.queueDepth = _queueDepth;
+		this.overflow = _overflow;
+		outboxes = new ConcurrentHashMap<>();
+		workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "delivery-worker");
+				//Daemon allows these threads not to block program from exiting
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Constructor using the default queue depth, overflow policy and number of workers
+	 *
+	 * @param _manager the server whose subscribers this engine delivers to
+	 */
+	public DeliveryEngine(EventManager _manager) {
+		this(_manager, DEFAULT_QUEUE_DEPTH, OverflowPolicy.DROP_OLDEST, DEFAULT_WORKERS);
+	}
+
+	/**
+	 * Changes the per-subscriber queue depth.  Queues that are already fuller than this are not trimmed,
+	 * they simply stop accepting Events until they drain below it
+	 *
+	 * @param depth number of Events that can be queued in memory per subscriber
+	 */
+	public void setQueueDepth(int depth) {
+		this.queueDepth = Math.max(1, depth);
+	}
+
+	/**
+	 *
+	 * @param policy what to do when a subscriber's queue is full
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		this.overflow = policy;
+	}
+
+	/**
+	 * Changes how Events are coalesced into notifyBatch calls
+	 *
+	 * @param _maxBatch most Events sent to a subscriber in one call. 1 turns batching off
+	 * @param _linger time in milliseconds to wait for more Events to fill a batch. 0 sends what is queued at once
+	 */
+	public void setBatching(int _maxBatch, long _linger) {
+		this.maxBatch = Math.max(1, _maxBatch);
+		this.linger = Math.max(0, _linger);
+	}
+
+	/**
+	 * Use a directory of this server's own for spill files, such as one inside its event log.  Files
+	 * left there by an earlier run are deleted, since the Events in them were only ever held in memory
+	 *
+	 * @param dir directory that SPILL_TO_DISK writes its files to
+	 */
+	public synchronized void setSpillDirectory(File dir) {
+		File[] stale = dir.listFiles();
+		if (stale != null)
+			for (File f : stale)
+				if (f.getName().startsWith("spill-"))
+					f.delete();
+		this.spillDir = dir;
+	}
+
+	/**
+	 * Helper method to get the directory for spill files, making a new temporary one for this server if
+	 * none was set, which is removed when the server exits
+	 */
+	private synchronized File spillDirectory() throws IOException {
+		if (spillDir == null) {
+			spillDir = Files.createTempDirectory("pubsub-spill-").toFile();
+			spillDir.deleteOnExit();
+		}
+		return spillDir;
+	}
+
+	/**
+	 *
+	 * @return number of Events thrown away because a subscriber's queue was full, since the server started
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Queue an Event for a single subscriber.  Returns once the Event is queued, unless the
+	 * subscriber's queue is full and the overflow policy is BLOCK
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @param event Event to send
+	 */
+	public void deliver(Integer subID, Event event) {
+		outbox(subID).offer(event);
+	}
+
+	/**
+	 * Queue a list of Events for a single subscriber all at once, keeping their order.  Used to send
+	 * a returning subscriber everything it missed
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @param events Events to send, in order
+	 */
+	public void deliverAll(Integer subID, List<Event> events) {
+		if (events.isEmpty())
+			return;
+		Outbox box = outbox(subID);
+		synchronized (box) {
+			for (Event event : events)
+				box.offer(event);
+		}
+	}
+
+	/**
+	 * Queue Events replayed from the event log for a single subscriber, keeping their order.  When the
+	 * subscriber's queue is full this waits for room whatever the overflow policy, since the log already
+	 * holds the Events and the caller can simply read them more slowly
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @param events Events to send, in order
+	 */
+	public void replay(Integer subID, List<Event> events) {
+		Outbox box = outbox(subID);
+		for (Event event : events)
+			box.offer(event, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Put Events that are being tried again back at the front of a subscriber's queue, ahead of the Events
+	 * held behind them, and start sending again.  Never waits, whatever the overflow policy, since the
+	 * retry thread must not be held up by one slow subscriber
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @param events Events handed back from its last failed delivery, in order
+	 */
+	public void retry(Integer subID, List<Event> events) {
+		outbox(subID).retry(events);
+	}
+
+	/**
+	 * Start sending the Events held for a subscriber whose handed back Events are not being tried again,
+	 * because they went to its mailbox instead
+	 *
+	 * @param subID unique ID of the subscriber
+	 */
+	public void resume(Integer subID) {
+		Outbox box = outboxes.get(subID);
+		if (box != null)
+			box.retry(new ArrayList<Event>());
+	}
+
+	/**
+	 * Helper method to get the Outbox of a subscriber, making it the first time
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @return the subscriber's Outbox
+	 */
+	private Outbox outbox(Integer subID) {
+		Outbox box = outboxes.get(subID);
+		if (box == null) {
+			Outbox newBox = new Outbox(subID);
+			box = outboxes.putIfAbsent(subID, newBox);
+			if (box == null)
+				box = newBox;
+		}
+		return box;
+	}
+
+	/**
+	 * Throw away the queue of a subscriber that is not coming back
+	 *
+	 * @param subID unique ID of the subscriber
+	 */
+	public void remove(Integer subID) {
+		Outbox box = outboxes.remove(subID);
+		if (box != null)
+			box.clear();
+	}
+
+	/**
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @return number of Events waiting to be sent to this subscriber
+	 */
+	public int queued(Integer subID) {
+		Outbox box = outboxes.get(subID);
+		return (box == null) ? 0 : box.size();
+	}
+
+	/**
+	 * The outbound queue of a single subscriber.  At most one worker drains an Outbox at a time, which
+	 * keeps each subscriber's Events in the order they were published
+	 */
+	private class Outbox implements Runnable {
+
+		private Integer subID;
+		private ArrayDeque<Event> queue;
+		//Events that did not fit in the queue under SPILL_TO_DISK, oldest first
+		private SpillFile spill;
+		//true while this Outbox is waiting for, or running on, a worker
+		private boolean scheduled;
+		//true from a failed delivery until its retry, while new Events wait behind the handed back ones
+		private boolean held;
+		//number of deliveries in a row that have failed, reset by any success
+		private int failures = 0;
+		//true once the client has shown it does not support notifyBatch
+		private boolean legacy = false;
+		//Events thrown away since the last report, guarded by this
+		private int dropped = 0;
+
+		public Outbox(Integer _subID) {
+			this.subID = _subID;
+			queue = new ArrayDeque<>();
+		}
+
+		/**
+		 * Add an Event to the back of the queue, applying the overflow policy if it is full
+		 */
+		public synchronized void offer(Event event) {
+			offer(event, overflow);
+		}
+
+		/**
+		 * Add an Event to the back of the queue, applying the given policy if it is full.  An Event queued 
+		 * in memory holds a reference to its encoding, one written to disk does not
+		 */
+		public synchronized void offer(Event event, OverflowPolicy policy) {
+			hold(event);
+			if (spill != null && !spill.isEmpty()) {
+				//Once Events have spilled, new ones must follow them to keep the order
+				spill.write(event);
+				event.release();
+			} else if (queue.size() < queueDepth)
+				queue.add(event);
+			else {
+				switch (policy) {
+					case DROP_OLDEST:
+						queue.poll().release();
+						queue.add(event);
+						dropped++;
+						DeliveryEngine.this.dropped.incrementAndGet();
+						break;
+					case BLOCK:
+						while (queue.size() >= queueDepth) {
+							try {
+								this.wait();
+							} catch (InterruptedException e) { }
+						}
+						queue.add(event);
+						break;
+					case SPILL_TO_DISK:
+						if (spill == null)
+							spill = newSpillFile();
+						if (spill == null) {
+							//nowhere to spill to, so make room the only other way that does not block
+							queue.poll().release();
+							queue.add(event);
+							dropped++;
+							DeliveryEngine.this.dropped.incrementAndGet();
+						} else {
+							spill.write(event);
+							event.release();
+						}
+						break;
+				}
+			}
+			if (!scheduled && !held) {
+				scheduled = true;
+				workers.execute(this);
+			}
+			//wake a worker that is lingering for more Events
+			this.notifyAll();
+		}
+
+		/**
+		 * Put Events at the front of the queue, in order, even if that takes it past its depth, and stop
+		 * holding back the Events behind them
+		 */
+		public synchronized void retry(List<Event> events) {
+			for (int i = events.size() - 1; i >= 0; i--) {
+				hold(events.get(i));
+				queue.addFirst(events.get(i));
+			}
+			held = false;
+			if (!scheduled && size() > 0) {
+				scheduled = true;
+				workers.execute(this);
+			}
+			this.notifyAll();
+		}
+
+		/**
+		 * Helper method to start this subscriber's spill file
+		 *
+		 * @return the file, or null if the spill directory cannot be made
+		 */
+		private SpillFile newSpillFile() {
+			try {
+				File file = new File(spillDirectory(), "spill-" + subID + ".dat");
+				file.deleteOnExit();
+				return new SpillFile(file);
+			} catch (IOException e) {
+				System.err.println("Cannot make a directory to spill events to: " + e.getMessage());
+				return null;
+			}
+		}
+
+		/**
+		 * Helper method to print how many Events were thrown away since the last report, if any
+		 */
+		private void reportDropped() {
+			int n;
+			synchronized (this) {
+				n = dropped;
+				dropped = 0;
+			}
+			if (n > 0)
+				System.err.println("Dropped " + n + " events for Agent_" + subID + " whose queue was full");
+		}
+
+		/**
+		 * Helper method to take a reference to an Event's encoding
+		 */
+		private void hold(Event event) {
+			try {
+				event.retain();
+			} catch (IOException e) { System.err.println("Could not encode Event " + event.getID() + ": " + e.getMessage()); }
+		}
+
+		/**
+		 * Helper method to refill the memory queue from disk, taking a reference for each Event read back
+		 */
+		private void unspill() {
+			int before = queue.size();
+			spill.readInto(queue, queueDepth);
+			int i = 0;
+			for (Event event : queue)
+				if (i++ >= before)
+					hold(event);
+		}
+
+		/**
+		 * Take the next batch of Events from the front of the queue, refilling from disk if the memory
+		 * queue is empty.  If there are fewer than a full batch waiting, lingers for up to the linger time
+		 * to let more arrive so they can share one call.  When there is nothing left this Outbox is no
+		 * longer scheduled
+		 *
+		 * @return the next Events to send, oldest first, or an empty list if there are none
+		 */
+		private synchronized ArrayList<Event> nextBatch() {
+			int max = legacy ? 1 : maxBatch;
+			ArrayList<Event> batch = new ArrayList<>();
+			long deadline = 0;
+			while (true) {
+				if (queue.isEmpty() && spill != null)
+					unspill();
+				while (batch.size() < max && !queue.isEmpty())
+					batch.add(queue.poll());
+				//wake any publisher blocked on a full queue
+				this.notifyAll();
+				if (batch.isEmpty() || batch.size() >= max || linger <= 0)
+					break;
+				long now = System.currentTimeMillis();
+				if (deadline == 0)
+					deadline = now + linger;
+				else if (now >= deadline)
+					break;
+				try {
+					this.wait(deadline - now);
+				} catch (InterruptedException e) { break; }
+			}
+			if (batch.isEmpty())
+				scheduled = false;
+			return batch;
+		}
+
+		/**
+		 * Take every Event that is waiting, without lingering.  This Outbox is no longer scheduled
+		 *
+		 * @return the Events that were waiting, oldest first
+		 */
+		private synchronized ArrayList<Event> takeAll() {
+			ArrayList<Event> rest = new ArrayList<>(queue);
+			queue.clear();
+			while (spill != null && !spill.isEmpty()) {
+				unspill();
+				rest.addAll(queue);
+				queue.clear();
+			}
+			scheduled = false;
+			this.notifyAll();
+			return rest;
+		}
+
+		/**
+		 * @return number of Events waiting, in memory or on disk
+		 */
+		public synchronized int size() {
+			return queue.size() + ((spill == null) ? 0 : spill.size());
+		}
+
+		/**
+		 * Drop every queued Event, including those on disk
+		 */
+		public synchronized void clear() {
+			for (Event event : queue)
+				event.release();
+			queue.clear();
+			if (spill != null)
+				spill.delete();
+			spill = null;
+			this.notifyAll();
+		}
+
+		/**
+		 * Send queued Events in order, coalescing them into batches for one notifyBatch call each.  A
+		 * client built before notifyBatch existed is sent one Event per call instead.  If the subscriber
+		 * is unreachable, the batch and everything queued behind it goes back to the EventManager to be
+		 * tried again later.  A batch sent to a ConfirmingSubscriber ends the run, and its receipt picks up
+		 * where it left off.  Only one worker runs an Outbox at a time, or its receipt once the run has
+		 * ended, so its fields need no lock
+		 */
+		public void run() {
+			ArrayList<Event> batch;
+			int sent = 0;
+			while (!(batch = nextBatch()).isEmpty()) {
+				Subscriber sub = manager.getSubscriber(subID);
+				int done = 0;
+				try {
+					if (sub == null)
+						throw new RemoteException("Agent_" + subID + " is offline");
+					if (sub instanceof ConfirmingSubscriber) {
+						final ArrayList<Event> sending = batch;
+						((ConfirmingSubscriber) sub).send(batch, new Receipt() {
+							public void done(boolean taken) {
+								receipt(sending, taken);
+							}
+						});
+						return;
+					}
+					if (batch.size() > 1 && !legacy) {
+						try {
+							sub.notifyBatch(batch);
+							done = batch.size();
+						} catch (ServerException e) {
+							if (!(e.getCause() instanceof UnmarshalException))
+								throw e;
+							//the client does not know notifyBatch, so fall back to single notify from now on
+							legacy = true;
+						}
+					}
+					for (; done < batch.size(); done++)
+						sub.notify(batch.get(done));
+					delivered(batch);
+				} catch (RemoteException e) {
+					failed(batch, done);
+					return;
+				}
+				sent += batch.size();
+				if (sent >= MAX_DRAIN) {
+					//give the other subscribers a turn, and come back to the rest later
+					synchronized (this) {
+						workers.execute(this);
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Helper method to carry on once the client of a ConfirmingSubscriber has said whether it took a
+		 * batch, sending the next batch or handing everything back to be tried again later
+		 */
+		private void receipt(ArrayList<Event> batch, boolean taken) {
+			if (!taken) {
+				failed(batch, 0);
+				return;
+			}
+			delivered(batch);
+			synchronized (this) {
+				workers.execute(this);
+			}
+		}
+
+		/**
+		 * Helper method to record that the subscriber received a batch
+		 */
+		private void delivered(List<Event> batch) {
+			failures = 0;
+			reportDropped();
+			manager.delivered(subID, batch);
+			for (Event event : batch)
+				event.release();
+		}
+
+		/**
+		 * Helper method to hand back a batch the subscriber did not receive past the first done Events,
+		 * along with everything queued behind it.  This Outbox is then no longer scheduled, and holds any
+		 * new Events until the EventManager retries or resumes it
+		 */
+		private void failed(List<Event> batch, int done) {
+			int attempt = failures++;
+			synchronized (this) {
+				held = true;
+			}
+			if (done > 0)
+				manager.delivered(subID, batch.subList(0, done));
+			//handed back before letting go, so an Event tried again at once keeps its encoding
+			for (int i = done; i < batch.size(); i++)
+				manager.deliveryFailed(subID, batch.get(i), attempt);
+			for (Event event : batch)
+				event.release();
+			for (Event event : takeAll()) {
+				manager.deliveryFailed(subID, event, attempt);
+				event.release();
+			}
+		}
+	}
+
+	/**
+	 * An append-only file of Events for one subscriber, read back from the front in the same order
+	 * they were written.  Each Event is stored as its length followed by its EventCodec encoding, which is
+	 * the same bytes it is sent in
+	 */
+	private static class SpillFile {
+
+		private File file;
+		private RandomAccessFile raf;
+		private long readPos = 0;
+		private long writePos = 0;
+		private int count = 0;
+
+		public SpillFile(File _file) {
+			this.file = _file;
+		}
+
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Append an Event to the end of the file
+		 */
+		public void write(Event event) {
+			try {
+				if (raf == null) {
+					file.getParentFile().mkdirs();
+					raf = new RandomAccessFile(file, "rw");
+					raf.setLength(0);
+				}
+				SharedBuffer encoded = event.retain();
+				try {
+					raf.seek(writePos);
+					raf.writeInt(encoded.size());
+					encoded.writeTo(raf);
+				} finally {
+					event.release();
+				}
+				writePos = raf.getFilePointer();
+				count++;
+			} catch (IOException e) {
+				System.err.println("Could not spill Event " + event.getID() + " to disk: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Move Events from the front of the file into the queue until it holds max Events
+		 */
+		public void readInto(ArrayDeque<Event> queue, int max) {
+			try {
+				while (count > 0 && queue.size() < max) {
+					raf.seek(readPos);
+					byte[] bytes = new byte[raf.readInt()];
+					raf.readFully(bytes);
+					readPos = raf.getFilePointer();
+					count--;
+					queue.add( EventCodec.decode(ByteBuffer.wrap(bytes)) );
+				}
+				if (count == 0) {
+					//everything has been read back, so start the file over
+					raf.setLength(0);
+					readPos = writePos = 0;
+				}
+			} catch (IOException e) {
+				System.err.println("Could not read spilled Events back from disk: " + e.getMessage());
+				count = 0;
+			}
+		}
+
+		/**
+		 * Close and remove the file
+		 */
+		public void delete() {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) { }
+			file.delete();
+			count = 0;
+		}
+	}
+}
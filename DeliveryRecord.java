@@ -0,0 +1,86 @@
+package pubsub;
+//******************************************************************************
+//File:    DeliveryRecord.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+
+/**
+ * This class is the server's record of delivering one published Event: the Event, and every Subscriber
+ * that wants to receive a copy of it, gathered by Topic, Topic pattern and content filtering.  Keeping the
+ * subscribers here rather than in the Event means the Event sent to each subscriber holds nothing but
+ * what the subscriber needs, never tells one subscriber about the others, and can be shared by all of
+ * them.
+ *
+ * @author rob mccartney
+ *
+ */
+public class DeliveryRecord {
+
+	private Event event;
+	private IntSet recipients;
+
+	/**
+	 * Constructor
+	 *
+	 * @param _event Event that has been given its ID
+	 */
+	public DeliveryRecord(Event _event) {
+		this.event = _event;
+		this.recipients = new IntSet();
+	}
+
+	/**
+	 *
+	 * @return the unique ID of the Event this record is for
+	 */
+	public int getEventID() {
+		return event.getID();
+	}
+
+	/**
+	 *
+	 * @return the Event as it is sent to subscribers
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * Used once the Event has been appended to the event log, so that subscribers are sent its offset
+	 *
+	 * @param offset of the Event's record
+	 */
+	public void logged(long offset) {
+		event = event.withOffset(offset);
+	}
+
+	/**
+	 *
+	 * @param subs some other set of subscribers (either content or topic filtering) to be added to the
+	 * list of subscribers of this event, by set union
+	 * @return true/false that any subscriber was added
+	 */
+	public synchronized boolean addRecipients(IntSet subs) {
+		return recipients.addAll(subs);
+	}
+
+	/**
+	 *
+	 * @return the ID's of every Subscriber left to notify, in increasing order.  They are taken off this
+	 * record, since each one is now the job of the delivery path
+	 */
+	public synchronized int[] takeRecipients() {
+		int[] subs = recipients.toArray();
+		recipients.clear();
+		return subs;
+	}
+
+	/**
+	 *
+	 * @return number of users left to notify
+	 */
+	public synchronized int size() {
+		return recipients.size();
+	}
+}
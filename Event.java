@@ -4,27 +4,42 @@ package pubsub;
 //Package: pubsub
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
-import java.io.Serializable;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * This class represents a single event that can be published or subscribed by the system
- * The Event itself holds the list of all Subscribers that want to receive a copy of it
+ * This class represents a single event that can be published or subscribed by the system.  Besides its
+ * keywords an Event can carry typed attributes, numbers or strings, that subscribers filter on with
+ * comparisons such as "stockId == 3 AND price < 120.0".  An Event never changes once it is made: the 
+ * with methods return a changed copy instead.  So one Event can be shared by every subscriber it goes
+ * to, and while it is waiting to be sent it is encoded in the compact format of EventCodec only once, into
+ * a pooled buffer that every send writes.
+ * Which subscribers it goes to is kept by the server in a DeliveryRecord
  * 
  * @author rob mccartney
  *
  */
-public class Event implements Serializable {
+public class Event implements Externalizable {
 
 	private static final long serialVersionUID = 1L;
 	private int id = 0;
+	//position of this Event in the server's event log, or -1 if it has not been logged
+	private long offset = -1;
 	private Topic topic;
 	private String title;
 	private String content;
 	private String[] keywords;
-	private LinkedHashSet<Integer> toBeNotified;
+	//named values for filtering, only made once the first one is set
+	private LinkedHashMap<String, Object> attributes;
+	//this Event in the format of EventCodec while it is waiting to be sent, or null.  Guarded by this
+	private transient SharedBuffer encoding;
 	
 	/**
 	 * Constructor
@@ -41,17 +56,36 @@ public class Event implements Serializable {
 		this.keywords = _keywords;
 		if (keywords == null)
 			this.keywords = topic.getKeywords();
-		toBeNotified = new LinkedHashSet<>();
 	}
 	
 	/**
-	 * Used by the server to set the ID once it has been published
-	 * @param n the ID to set this too
-	 * @return this instance
+	 * Constructor used only when decoding an Event
 	 */
-	public Event setID(int n) {
-		this.id = n;
-		return this;
+	public Event() {
+	}
+	
+	/**
+	 * Helper constructor for the with methods, sharing everything with the original
+	 */
+	private Event(Event e) {
+		this.id = e.id;
+		this.offset = e.offset;
+		this.topic = e.topic;
+		this.title = e.title;
+		this.content = e.content;
+		this.keywords = e.keywords;
+		this.attributes = e.attributes;
+	}
+	
+	/**
+	 * Used by the server to give the Event its ID once it has been published
+	 * @param n the ID of the Event
+	 * @return a copy of this Event with the ID
+	 */
+	public Event withID(int n) {
+		Event e = new Event(this);
+		e.id = n;
+		return e;
 	}
 	
 	/**
@@ -62,6 +96,25 @@ public class Event implements Serializable {
 		return id;
 	}
 	
+	/**
+	 * Used by the server to record where this Event is in the event log
+	 * @param n the offset of the Event's record
+	 * @return a copy of this Event with the offset
+	 */
+	public Event withOffset(long n) {
+		Event e = new Event(this);
+		e.offset = n;
+		return e;
+	}
+	
+	/**
+	 * 
+	 * @return offset of this Event in the server's event log, or -1 if it has not been logged
+	 */
+	public long getOffset() {
+		return offset;
+	}
+	
 	/**
 	 * 
 	 * @return the Topic of this Event
@@ -94,6 +147,66 @@ public class Event implements Serializable {
 		return keywords;
 	}
 	
+	/**
+	 * Add a numeric attribute, which subscribers can compare with ==, !=, <, <=, > and >=
+	 * 
+	 * @param name of the attribute
+	 * @param value of the attribute
+	 * @return a copy of this Event with the attribute
+	 */
+	public Event withAttribute(String name, Number value) {
+		return new Event(this).putAttribute(name, value);
+	}
+	
+	/**
+	 * Add a string attribute, which subscribers can compare with == and !=
+	 * 
+	 * @param name of the attribute
+	 * @param value of the attribute
+	 * @return a copy of this Event with the attribute
+	 */
+	public Event withAttribute(String name, String value) {
+		return new Event(this).putAttribute(name, value);
+	}
+	
+	/**
+	 * 
+	 * @param name of the attribute
+	 * @return the value of the attribute, either a Number or a String, or null if it is not set
+	 */
+	public Object getAttribute(String name) {
+		return (attributes == null) ? null : attributes.get(name);
+	}
+	
+	/**
+	 * 
+	 * @param name of the attribute
+	 * @return the value of a numeric attribute, or null if it is not set or is not a number
+	 */
+	public Number getNumber(String name) {
+		Object value = getAttribute(name);
+		return (value instanceof Number) ? (Number) value : null;
+	}
+	
+	/**
+	 * 
+	 * @return every attribute of this Event, in the order they were set.  Must not be modified
+	 */
+	public Map<String, Object> getAttributes() {
+		if (attributes == null)
+			return Collections.emptyMap();
+		return attributes;
+	}
+	
+	/**
+	 * Helper method to set an attribute on a copy that has not been shared yet
+	 */
+	private Event putAttribute(String name, Object value) {
+		attributes = (attributes == null) ? new LinkedHashMap<String, Object>() : new LinkedHashMap<>(attributes);
+		attributes.put(name, value);
+		return this;
+	}
+	
 	/**
 	 * Override the Obj equals in order to hash an Event correctly, where an Event is uniquely
 	 * determined by its Topic and Title
@@ -119,35 +232,124 @@ public class Event implements Serializable {
 					   "\tKeywords=";
 		for (int i = 0; i < keywords.length; i++) 
 			event += keywords[i] + ((i==keywords.length-1)?"\n":",");
+		if (attributes != null)
+			event += "\tAttributes=" + attributes + "\n";
+		if (offset >= 0)
+			event += "\tOffset=" + offset + "\n";
 		event += "\tContent: " + content + "\n";
 		return event;
 	}
 	
 	/**
-	 * 
-	 * @return iterator to allow for removal of Subscribers as they are notified one by one about this event
+	 * Encodes this Event in the format of EventCodec, when it is sent over RMI.  If the Event is waiting
+	 * to be sent to subscribers its shared encoding is written as it is, otherwise it is encoded afresh
 	 */
-	public synchronized Iterator<Integer> iterator() {
-		return toBeNotified.iterator();
+	public void writeExternal(ObjectOutput out) throws IOException {
+		SharedBuffer shared;
+		synchronized (this) {
+			shared = encoding;
+			if (shared != null)
+				shared.retain();
+		}
+		if (shared == null) {
+			write(out);
+			return;
+		}
+		try {
+			shared.writeTo(out);
+		} finally {
+			release();
+		}
 	}
-
+	
 	/**
+	 * Used by the delivery engine while the Event waits to be sent to a subscriber.  The first holder 
+	 * encodes the Event into a pooled buffer, and later ones share it
 	 * 
-	 * @return number of users left to notify
+	 * @return the shared encoding
+	 * @throws IOException never, since the bytes are kept in memory
 	 */
-	public synchronized int notifySize() {
-		return toBeNotified.size();
+	synchronized SharedBuffer retain() throws IOException {
+		if (encoding == null)
+			encoding = SharedBuffer.encode(this, BufferPool.shared());
+		else
+			encoding.retain();
+		return encoding;
 	}
 	
 	/**
-	 * 
-	 * @param c some other list of subscribers (either content or topic filtering) to be added to the 
-	 * list of subscribers of this event
-	 * @return true/false that the list was successfully added
-	 */
-	public synchronized boolean addSubscriberList(Collection<Integer> c) {
-		if (c != null)
-			return toBeNotified.addAll(c);
-		return false;
+	 * Used by the delivery engine once a subscriber no longer needs the Event.  When no one does, the
+	 * buffer goes back to its pool
+	 */
+	synchronized void release() {
+		if (encoding != null && encoding.release())
+			encoding = null;
+	}
+	
+	/**
+	 * Decodes this Event from the format of EventCodec, when it is received over RMI
+	 */
+	public void readExternal(ObjectInput in) throws IOException {
+		read(in);
+	}
+	
+	/**
+	 * Helper method to encode this Event as
+	 * [version][id][offset + 1][Topic ID][Topic name][title][content][keywords][attributes]
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeByte(EventCodec.VERSION);
+		EventCodec.writeVarInt(out, id);
+		EventCodec.writeVarLong(out, offset + 1);
+		EventCodec.writeVarInt(out, topic.getID());
+		EventCodec.writeString(out, topic.getName());
+		EventCodec.writeString(out, title);
+		EventCodec.writeString(out, content);
+		EventCodec.writeStrings(out, keywords);
+		Map<String, Object> attrs = getAttributes();
+		EventCodec.writeVarInt(out, attrs.size());
+		for (Map.Entry<String, Object> a : attrs.entrySet()) {
+			EventCodec.writeString(out, a.getKey());
+			Object value = a.getValue();
+			if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				out.writeByte(EventCodec.INT);
+				EventCodec.writeVarInt(out, ((Number) value).intValue());
+			} else if (value instanceof Long) {
+				out.writeByte(EventCodec.LONG);
+				EventCodec.writeVarLong(out, (Long) value);
+			} else if (value instanceof Number) {
+				out.writeByte(EventCodec.DOUBLE);
+				out.writeDouble(((Number) value).doubleValue());
+			} else {
+				out.writeByte(EventCodec.STRING);
+				EventCodec.writeString(out, (String) value);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to decode this Event from the encoding of write()
+	 */
+	void read(DataInput in) throws IOException {
+		EventCodec.readVersion(in, "Event");
+		id = EventCodec.readVarInt(in);
+		offset = EventCodec.readVarLong(in) - 1;
+		int topicID = EventCodec.readVarInt(in);
+		topic = EventCodec.topic(topicID, EventCodec.readInterned(in));
+		title = EventCodec.readString(in);
+		content = EventCodec.readString(in);
+		keywords = EventCodec.readInternedStrings(in);
+		int n = EventCodec.readVarInt(in);
+		if (n > 0)
+			attributes = new LinkedHashMap<>();
+		for (int i = 0; i < n; i++) {
+			String name = EventCodec.readInterned(in);
+			switch (in.readByte()) {
+				case EventCodec.INT: attributes.put(name, EventCodec.readVarInt(in)); break;
+				case EventCodec.LONG: attributes.put(name, EventCodec.readVarLong(in)); break;
+				case EventCodec.DOUBLE: attributes.put(name, in.readDouble()); break;
+				default: attributes.put(name, EventCodec.readString(in));
+			}
+		}
 	}
 }
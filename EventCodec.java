@@ -0,0 +1,225 @@
+package pubsub;
+//******************************************************************************
+//File:    EventCodec.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the compact binary format Events and Topics are sent and logged in, in place of default
+ * Java serialization.  Every encoding starts with a version byte so that the format can change later
+ * while old data is still read.  Numbers are written as variable-length integers, strings as UTF-8
+ * with a length prefix, and an Event refers to its Topic only by ID and name rather than carrying the
+ * Topic's keywords.  Decoded Topics and keywords are interned, so every Event on a Topic shares one Topic
+ * object and one copy of each keyword string.
+ *
+ * @author rob mccartney
+ *
+ */
+public final class EventCodec {
+
+	//Version written at the start of every encoding
+	public static final byte VERSION = 1;
+
+	//Tags of the attribute value types
+	static final byte STRING = 0;
+	static final byte INT = 1;
+	static final byte LONG = 2;
+	static final byte DOUBLE = 3;
+
+	//Maps from the ID of every Topic seen to its one shared instance
+	private static final ConcurrentHashMap<Integer, Topic> topics = new ConcurrentHashMap<>();
+
+	private EventCodec() {}
+
+	/**
+	 * Encode an Event on its own, as it is stored in the event log
+	 *
+	 * @param event to encode
+	 * @return the encoding
+	 * @throws IOException never, since the bytes are kept in memory
+	 */
+	public static byte[] encode(Event event) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		event.write(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode an Event encoded by encode(), straight out of a buffer whether it is on the heap or mapped
+	 *
+	 * @param buffer holding the encoding from its position to its limit, which is left where it was
+	 * @return the Event
+	 * @throws IOException if the encoding is corrupt or of a newer version
+	 */
+	public static Event decode(ByteBuffer buffer) throws IOException {
+		Event event = new Event();
+		event.read(new DataInputStream(new BufferInput(buffer.duplicate())));
+		return event;
+	}
+
+	/**
+	 * Read the version byte of an encoding, failing on a version this code does not know
+	 *
+	 * @param in encoding
+	 * @param what kind of object is being read, for the error
+	 * @return the version
+	 * @throws IOException if the version is not known
+	 */
+	static byte readVersion(DataInput in, String what) throws IOException {
+		byte version = in.readByte();
+		if (version < 1 || version > VERSION)
+			throw new InvalidObjectException("Unsupported " + what + " encoding version " + version);
+		return version;
+	}
+
+	/**
+	 * Find the shared instance of a Topic referred to by an Event, making one without keywords if this is
+	 * the first time it is seen
+	 *
+	 * @param id unique ID of the Topic
+	 * @param name of the Topic
+	 * @return the shared Topic
+	 */
+	static Topic topic(int id, String name) {
+		Topic t = topics.get(id);
+		if (t != null && t.getName().equals(name))
+			return t;
+		t = new Topic(name).setID(id);
+		topics.put(id, t);
+		return t;
+	}
+
+	/**
+	 * Make a fully decoded Topic the shared instance for its ID, so Events on it get its keywords too
+	 *
+	 * @param t decoded Topic
+	 */
+	static void register(Topic t) {
+		if (t.getID() != 0)
+			topics.put(t.getID(), t);
+	}
+
+	static void writeVarInt(DataOutput out, int n) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			n |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return n;
+		}
+		throw new InvalidObjectException("Malformed variable-length integer");
+	}
+
+	static void writeVarLong(DataOutput out, long n) throws IOException {
+		while ((n & ~0x7FL) != 0) {
+			out.writeByte((int) (n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte((int) n);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			n |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return n;
+		}
+		throw new InvalidObjectException("Malformed variable-length integer");
+	}
+
+	/**
+	 * Write a string as its length plus one, or 0 for null, followed by its UTF-8 bytes
+	 */
+	static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in) - 1;
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a string that many Events repeat, such as a keyword, as its one shared instance
+	 */
+	static String readInterned(DataInput in) throws IOException {
+		String s = readString(in);
+		return (s == null) ? null : s.intern();
+	}
+
+	static void writeStrings(DataOutput out, String[] strings) throws IOException {
+		if (strings == null)
+			strings = new String[0];
+		writeVarInt(out, strings.length);
+		for (String s : strings)
+			writeString(out, s);
+	}
+
+	static String[] readInternedStrings(DataInput in) throws IOException {
+		String[] strings = new String[readVarInt(in)];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = readInterned(in);
+		return strings;
+	}
+
+	/**
+	 * Reads a ByteBuffer as a stream, so an Event can be decoded where it lies without copying it
+	 */
+	private static class BufferInput extends InputStream {
+		private ByteBuffer buffer;
+
+		BufferInput(ByteBuffer _buffer) {
+			this.buffer = _buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
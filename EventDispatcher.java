@@ -0,0 +1,193 @@
+package pubsub;
+//******************************************************************************
+//File:    EventDispatcher.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import pubsub.interfaces.EventHandler;
+
+/**
+ * This class runs an agent's EventHandlers on the Events it receives.  The thread the server notifies the
+ * agent on only queues each Event, and a task on the dispatcher's executor runs the handlers, one Event at
+ * a time and in the order they arrived: first the handlers of the Event's Topic, then the handlers of
+ * every Event.  At most one such task runs for an agent at once, so handlers never race each other.
+ *
+ * The queue is bounded.  Once it is full the notifying thread waits for room, so a subscriber whose
+ * handlers fall behind slows down the server's deliveries to it, which back up in its outbox on the
+ * server, rather than queueing Events in memory without limit.
+ *
+ * @author rob mccartney
+ *
+ */
+public class EventDispatcher {
+
+	//Most Events waiting for their handlers when no capacity is given
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private volatile Executor executor;
+	private int capacity;
+	//handlers of every Event, and of the Events of each Topic by Topic ID
+	private CopyOnWriteArrayList<EventHandler> handlers = new CopyOnWriteArrayList<>();
+	private ConcurrentHashMap<Integer, CopyOnWriteArrayList<EventHandler>> topicHandlers = new ConcurrentHashMap<>();
+	//Events waiting for their handlers, and whether a task is running them, both guarded by this
+	private ArrayDeque<Event> waiting = new ArrayDeque<>();
+	private boolean scheduled = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param _executor to run handlers on
+	 * @param _capacity most Events waiting for their handlers before the notifying thread waits for room
+	 */
+	public EventDispatcher(Executor _executor, int _capacity) {
+		if (_capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.executor = _executor;
+		this.capacity = _capacity;
+	}
+
+	/**
+	 * Run handlers on another executor from now on
+	 *
+	 * @param _executor to run handlers on
+	 */
+	public void setExecutor(Executor _executor) {
+		this.executor = _executor;
+	}
+
+	/**
+	 * Run a handler on every Event
+	 *
+	 * @param handler to run
+	 */
+	public void addHandler(EventHandler handler) {
+		handlers.addIfAbsent(handler);
+	}
+
+	/**
+	 * Run a handler on the Events of one Topic
+	 *
+	 * @param topicID ID of the Topic
+	 * @param handler to run
+	 */
+	public void addHandler(int topicID, EventHandler handler) {
+		CopyOnWriteArrayList<EventHandler> list = topicHandlers.get(topicID);
+		if (list == null) {
+			CopyOnWriteArrayList<EventHandler> fresh = new CopyOnWriteArrayList<>();
+			list = topicHandlers.putIfAbsent(topicID, fresh);
+			if (list == null)
+				list = fresh;
+		}
+		list.addIfAbsent(handler);
+	}
+
+	/**
+	 * Stop running a handler, on every Event and on every Topic it was added for
+	 *
+	 * @param handler to stop running
+	 * @return true if the handler had been added
+	 */
+	public boolean removeHandler(EventHandler handler) {
+		boolean removed = handlers.remove(handler);
+		for (CopyOnWriteArrayList<EventHandler> list : topicHandlers.values())
+			removed |= list.remove(handler);
+		return removed;
+	}
+
+	/**
+	 * Queue Events for their handlers, waiting for room while the queue is full
+	 *
+	 * @param events received, in order
+	 */
+	public void dispatch(List<Event> events) {
+		for (Event e : events) {
+			boolean start = false;
+			synchronized (this) {
+				try {
+					while (waiting.size() >= capacity)
+						wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					System.err.println("Interrupted handing events to handlers, the rest of the batch is dropped");
+					return;
+				}
+				waiting.add(e);
+				if (!scheduled) {
+					scheduled = true;
+					start = true;
+				}
+			}
+			if (start)
+				start();
+		}
+	}
+
+	/**
+	 *
+	 * @return number of Events waiting for their handlers
+	 */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Helper method to start the task that runs handlers
+	 */
+	private void start() {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					drain();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			System.err.println("Event handlers could not be started: " + e.getMessage());
+			synchronized (this) {
+				scheduled = false;
+				waiting.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Helper method to run handlers on every waiting Event, until none are left
+	 */
+	private void drain() {
+		while (true) {
+			Event e;
+			synchronized (this) {
+				e = waiting.poll();
+				if (e == null) {
+					scheduled = false;
+					return;
+				}
+				notifyAll();
+			}
+			CopyOnWriteArrayList<EventHandler> list = topicHandlers.get(e.getTopic().getID());
+			if (list != null)
+				for (EventHandler h : list)
+					handle(h, e);
+			for (EventHandler h : handlers)
+				handle(h, e);
+		}
+	}
+
+	/**
+	 * Helper method to run one handler, so one that fails does not keep the others from the Event
+	 */
+	private void handle(EventHandler handler, Event e) {
+		try {
+			handler.onEvent(e);
+		} catch (RuntimeException ex) {
+			System.err.println("Event handler failed on Event " + e.getID() + ": " + ex);
+		}
+	}
+}
@@ -0,0 +1,901 @@
+package pubsub;
+//******************************************************************************
+//File:    EventLog.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * This class is the server's durable, append-only record of every Event it publishes and of which
+ * subscribers have received it.  The log is a directory of segment files, each named by the offset of its
+ * first record, so that old segments can be deleted whole once they pass the retention limits.  Each
+ * segment has a sparse index from offset to file position, with one entry every INDEX_INTERVAL bytes,
+ * so a reader can start anywhere in the log without scanning the segment from the start.
+ *
+ * Segments that are no longer written to are read through a read-only memory map, and each record is
+ * handed to the reader as a slice of the mapped file rather than copied into the heap, so replaying hours
+ * of history costs page cache reads rather than garbage.  The segment being written to is read through
+ * its channel.
+ *
+ * Appends are group committed: callers queue their records and a single writer thread writes everything
+ * queued in one gathering write, then forces it to disk according to the fsync policy and wakes every
+ * caller it covered.  Under load many publishes share each write and each fsync.
+ *
+ * Each record is laid out as
+ * [int length][long offset][long timestamp][byte type][int crc of payload][payload]
+ * where length counts everything after itself.  On startup the last segment is checked record by record,
+ * and anything after the first torn or corrupt record is cut off.
+ *
+ * Every Topic the server registers is kept beside the segments in a file of its own, as
+ * [int length][int crc of payload][encoded Topic], so that a Topic keeps its ID across restarts however
+ * much of the log retention has deleted.
+ *
+ * @author rob mccartney
+ *
+ */
+public class EventLog {
+
+	/**
+	 * When appended records are forced to disk: after every group commit, at most once per
+	 * FSYNC_INTERVAL, or whenever the operating system decides
+	 */
+	public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+	//A published Event with the subscribers it is going to
+	public static final byte EVENT = 1;
+	//A subscriber received some Events
+	public static final byte ACK = 2;
+	//A subscriber left for good and will not need its Events
+	public static final byte LEAVE = 3;
+	//A subscriber's committed offset on a Topic moved forward
+	public static final byte COMMIT = 4;
+
+	//Default size a segment grows to before a new one is started
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+	//Largest size a segment can grow to, since positions within a segment are kept as ints
+	public static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+	//Default total size of the log before the oldest segments are deleted
+	public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+	//Default time in milliseconds a closed segment is kept
+	public static final long DEFAULT_RETENTION_MS = 7L * 24 * 60 * 60 * 1000;
+	//Longest time in milliseconds between fsyncs under the INTERVAL policy
+	public static final long FSYNC_INTERVAL = 1000;
+	//Bytes of log between entries of a segment's offset index
+	public static final int INDEX_INTERVAL = 4096;
+	//How often in milliseconds the writer checks the retention limits
+	private static final long RETENTION_CHECK = 60 * 1000;
+	//Bytes of a record before its payload
+	private static final int HEADER = 4 + 8 + 8 + 1 + 4;
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	//Name of the file of registered Topics, which must not end in LOG_SUFFIX
+	private static final String TOPICS_FILE = "topics";
+	//Name of the file held locked by the server using the directory, so that a second server cannot
+	//write the same log.  Must not end in LOG_SUFFIX either
+	private static final String LOCK_FILE = "lock";
+
+	private File dir;
+	private FsyncPolicy fsync;
+	private long segmentBytes;
+	private long retentionBytes;
+	private long retentionMs;
+	//every segment in order of offset, the last one being the one written to
+	private CopyOnWriteArrayList<Segment> segments;
+	//offset the next appended record will get
+	private long nextOffset;
+	//records waiting for the writer, in offset order
+	private ArrayList<ByteBuffer> pending;
+	//last offset written to the file, and last offset forced to disk
+	private long written;
+	private long synced;
+	//set once a write fails, after which every append fails
+	private IOException failure;
+	private boolean closed = false;
+	private Thread writer;
+	//tells retention which subscribers are still owed Events, or null if nobody is asked
+	private volatile OwedEvents owed;
+	//every Topic the server registered, guarded by itself
+	private RandomAccessFile topicFile;
+	private FileChannel lockChannel;
+
+	/**
+	 * Receives the records of the log, in offset order, from scan()
+	 */
+	public interface Visitor {
+		/**
+		 * @param offset of the record
+		 * @param timestamp time in milliseconds the record was appended
+		 * @param type EVENT, ACK, LEAVE or COMMIT
+		 * @param payload contents of the record, which may be a slice of a mapped file.  Only valid 
+		 * until this method returns
+		 * @return true to keep reading, false to stop the scan here
+		 * @throws IOException if the payload cannot be read
+		 */
+		boolean record(long offset, long timestamp, byte type, ByteBuffer payload) throws IOException;
+	}
+
+	/**
+	 * Tells the log which subscribers are still owed Events, so that retention can report how many of
+	 * those it deletes
+	 */
+	public interface OwedEvents {
+		/**
+		 * @return for each subscriber still owed logged Events, the offset of the first of them
+		 */
+		Map<Integer, Long> firstOwed();
+	}
+
+	/**
+	 * Constructor that opens the log in a directory, creating it if needed and recovering whatever a
+	 * previous run left there
+	 *
+	 * @param _dir directory holding the segment files
+	 * @param _fsync when records are forced to disk
+	 * @param _segmentBytes size a segment grows to before a new one is started
+	 * @param _retentionBytes total size of the log before the oldest segments are deleted
+	 * @param _retentionMs time in milliseconds a closed segment is kept
+	 * @throws IOException if the directory cannot be used, or another server is already using it
+	 */
+	public EventLog(File _dir, FsyncPolicy _fsync, long _segmentBytes, long _retentionBytes, long _retentionMs)
+			throws IOException {
+		if (_segmentBytes <= 0 || _segmentBytes > MAX_SEGMENT_BYTES)
+			throw new IllegalArgumentException("Segment size must be between 1 byte and " + MAX_SEGMENT_BYTES + " bytes");
+		this.dir = _dir;
+		this.fsync = _fsync;
+		this.segmentBytes = _segmentBytes;
+		this.retentionBytes = _retentionBytes;
+		this.retentionMs = _retentionMs;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create event log directory " + dir);
+		lock();
+		segments = new CopyOnWriteArrayList<>();
+		pending = new ArrayList<>();
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File f : files)
+			if (f.getName().endsWith(LOG_SUFFIX))
+				segments.add(new Segment(dir, Long.parseLong(f.getName().replace(LOG_SUFFIX, ""))));
+		if (segments.isEmpty())
+			segments.add(new Segment(dir, 0));
+		for (int i = 0; i < segments.size() - 1; i++)
+			segments.get(i).loadIndex();
+		nextOffset = active().recover();
+		written = synced = nextOffset - 1;
+		topicFile = new RandomAccessFile(new File(dir, TOPICS_FILE), "rw");
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "event-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Helper method to take the lock file of the directory, which the operating system releases if this 
+	 * server dies without closing the log
+	 *
+	 * @throws IOException if another server already holds it
+	 */
+	private void lock() throws IOException {
+		lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+		FileLock lock;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("another server is already using it");
+		}
+	}
+
+	/**
+	 *
+	 * @return offset of the oldest record still in the log
+	 */
+	public long firstOffset() {
+		return segments.get(0).base;
+	}
+
+	/**
+	 *
+	 * @return offset the next record will get
+	 */
+	public synchronized long nextOffset() {
+		return nextOffset;
+	}
+
+	/**
+	 * Append a published Event and the subscribers it is going to, waiting until it is durable
+	 *
+	 * @param event Event that has been given its ID
+	 * @param recipients ID of every subscriber the Event is going to
+	 * @return offset of the record
+	 * @throws IOException if the log cannot be written
+	 */
+	public long appendEvent(Event event, int[] recipients) throws IOException {
+		byte[] encoded = EventCodec.encode(event);
+		ByteBuffer payload = ByteBuffer.allocate(12 + 4 * recipients.length + encoded.length);
+		payload.putInt(event.getID()).putInt(event.getTopic().getID()).putInt(recipients.length);
+		for (int subID : recipients)
+			payload.putInt(subID);
+		payload.put(encoded);
+		return append(EVENT, payload.array(), true);
+	}
+
+	/**
+	 * Append that a subscriber received some Events.  Does not wait, since losing the record only
+	 * means the Events are sent again after a crash
+	 *
+	 * @param subID ID of the subscriber
+	 * @param events Events it received
+	 * @throws IOException if the log cannot be written
+	 */
+	public void appendAck(int subID, List<Event> events) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(8 + 4 * events.size());
+		payload.putInt(subID).putInt(events.size());
+		for (Event e : events)
+			payload.putInt(e.getID());
+		append(ACK, payload.array(), false);
+	}
+
+	/**
+	 * Append that a subscriber left for good
+	 *
+	 * @param subID ID of the subscriber
+	 * @throws IOException if the log cannot be written
+	 */
+	public void appendLeave(int subID) throws IOException {
+		append(LEAVE, ByteBuffer.allocate(4).putInt(subID).array(), false);
+	}
+
+	/**
+	 * Append that a subscriber has received every Event on a Topic before an offset.  Does not wait, since
+	 * losing the record only means the subscriber resumes from an older offset after a crash
+	 *
+	 * @param subID ID of the subscriber
+	 * @param topicID ID of the Topic
+	 * @param offset offset after the newest Event on the Topic the subscriber received
+	 * @throws IOException if the log cannot be written
+	 */
+	public void appendCommit(int subID, int topicID, long offset) throws IOException {
+		append(COMMIT, ByteBuffer.allocate(16).putInt(subID).putInt(topicID).putLong(offset).array(), false);
+	}
+
+	/**
+	 * Record a Topic the server registered, so that it gets the same ID when the server restarts.  Forced
+	 * to disk before returning unless the fsync policy is NEVER, since Topics are registered rarely
+	 *
+	 * @param topic Topic that has been given its ID
+	 * @throws IOException if the file of Topics cannot be written
+	 */
+	public void appendTopic(Topic topic) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		topic.write(new DataOutputStream(bytes));
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(4 + payload.length).putInt((int) crc.getValue()).put(payload);
+		synchronized (topicFile) {
+			topicFile.seek(topicFile.length());
+			topicFile.write(record.array());
+			if (fsync != FsyncPolicy.NEVER)
+				topicFile.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Read every Topic recorded by appendTopic(), cutting off a torn or corrupt record at the end
+	 *
+	 * @return every Topic recorded, with its ID, in the order they were registered
+	 * @throws IOException if the file of Topics cannot be read
+	 */
+	public List<Topic> readTopics() throws IOException {
+		List<Topic> topics = new ArrayList<>();
+		synchronized (topicFile) {
+			byte[] all = new byte[(int) topicFile.length()];
+			topicFile.seek(0);
+			topicFile.readFully(all);
+			ByteBuffer in = ByteBuffer.wrap(all);
+			CRC32 crc = new CRC32();
+			while (in.remaining() >= 8) {
+				int length = in.getInt(in.position());
+				if (length < 4 || length > in.remaining() - 4)
+					break;
+				crc.reset();
+				crc.update(all, in.position() + 8, length - 4);
+				if ((int) crc.getValue() != in.getInt(in.position() + 4))
+					break;
+				Topic topic = new Topic();
+				topic.read(new DataInputStream(new ByteArrayInputStream(all, in.position() + 8, length - 4)));
+				topics.add(topic);
+				in.position(in.position() + 4 + length);
+			}
+			if (in.hasRemaining()) {
+				System.err.println("Cutting off a torn record at the end of the event log's Topics");
+				topicFile.setLength(in.position());
+			}
+		}
+		return topics;
+	}
+
+	/**
+	 * The payload of an EVENT record is [int event ID][int Topic ID][int n][n subscriber IDs][encoded Event],
+	 * so that recovery can follow which subscribers are still owed an Event, and a replay can pick out a
+	 * Topic, without reading the Event itself.  These methods leave the position of the payload where it was
+	 *
+	 * @param payload of an EVENT record
+	 * @return ID of the Event
+	 */
+	public static int readEventID(ByteBuffer payload) {
+		return payload.getInt(payload.position());
+	}
+
+	/**
+	 * @param payload of an EVENT record
+	 * @return ID of the Topic the Event was published under
+	 */
+	public static int readTopicID(ByteBuffer payload) {
+		return payload.getInt(payload.position() + 4);
+	}
+
+	/**
+	 * @param payload of an EVENT record
+	 * @return ID of every subscriber the Event was going to
+	 */
+	public static int[] readRecipients(ByteBuffer payload) {
+		int start = payload.position();
+		int[] recipients = new int[payload.getInt(start + 8)];
+		for (int i = 0; i < recipients.length; i++)
+			recipients[i] = payload.getInt(start + 12 + 4 * i);
+		return recipients;
+	}
+
+	/**
+	 * @param payload of an EVENT record
+	 * @param subID ID of a subscriber
+	 * @return true if the Event was going to that subscriber
+	 */
+	public static boolean isRecipient(ByteBuffer payload, int subID) {
+		int start = payload.position();
+		int n = payload.getInt(start + 8);
+		for (int i = 0; i < n; i++)
+			if (payload.getInt(start + 12 + 4 * i) == subID)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param payload of an EVENT record
+	 * @return the Event, read straight out of the payload whether it is on the heap or mapped
+	 * @throws IOException if the Event cannot be deserialized
+	 */
+	public static Event readEvent(ByteBuffer payload) throws IOException {
+		ByteBuffer encoded = payload.duplicate();
+		encoded.position(encoded.position() + 12 + 4 * payload.getInt(payload.position() + 8));
+		return EventCodec.decode(encoded);
+	}
+
+	/**
+	 * Read every record from an offset to the end of what has been written, in offset order
+	 *
+	 * @param from offset to start at.  Records before the start of the log are skipped
+	 * @param visitor receives each record
+	 * @throws IOException if the log cannot be read
+	 */
+	public void scan(long from, Visitor visitor) throws IOException {
+		scan(from, Long.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Read the records in a range of offsets, in offset order.  The sparse index of the first segment
+	 * in the range finds where to start, so only the records in the range are read
+	 *
+	 * @param from offset to start at.  Records before the start of the log are skipped
+	 * @param to offset to stop before
+	 * @param visitor receives each record, and can stop the scan early
+	 * @throws IOException if the log cannot be read
+	 */
+	public void scan(long from, long to, Visitor visitor) throws IOException {
+		List<Segment> all = new ArrayList<>(segments);
+		for (int i = 0; i < all.size(); i++) {
+			Segment s = all.get(i);
+			if (i + 1 < all.size() && all.get(i + 1).base <= from)
+				continue;
+			if (s.base >= to)
+				return;
+			boolean more = (i + 1 < all.size()) ? s.scanMapped(from, to, visitor) : s.scan(from, to, s.size, visitor);
+			if (!more)
+				return;
+		}
+	}
+
+	/**
+	 * Write out everything appended so far, force it to disk and stop the writer
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Segment s : segments)
+			s.close();
+		synchronized (topicFile) {
+			try {
+				topicFile.close();
+			} catch (IOException e) {
+				System.err.println("Event log Topics close failed: " + e.getMessage());
+			}
+		}
+		try {
+			lockChannel.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Helper method to queue a record for the writer
+	 *
+	 * @param type of record
+	 * @param payload contents of the record
+	 * @param wait whether to wait until the record is durable under the fsync policy
+	 * @return offset of the record
+	 * @throws IOException if the log has failed or is closed
+	 */
+	private synchronized long append(byte type, byte[] payload, boolean wait) throws IOException {
+		if (failure != null)
+			throw failure;
+		if (closed)
+			throw new IOException("Event log is closed");
+		long offset = nextOffset++;
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+		record.putInt(HEADER - 4 + payload.length).putLong(offset).putLong(System.currentTimeMillis())
+				.put(type).putInt((int) crc.getValue()).put(payload).flip();
+		pending.add(record);
+		notifyAll();
+		if (wait) {
+			while (((fsync == FsyncPolicy.ALWAYS) ? synced : written) < offset && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+		return offset;
+	}
+
+	/**
+	 *
+	 * @return the segment being written to
+	 */
+	private Segment active() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * The writer thread: takes everything queued, writes it in one go, forces it to disk when the
+	 * policy says to and wakes the callers waiting on it
+	 */
+	private void writeLoop() {
+		long lastSync = System.currentTimeMillis();
+		long lastRetention = lastSync;
+		while (true) {
+			ArrayList<ByteBuffer> batch;
+			long last;
+			boolean dirty;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					//wake up for the retention check, or to force written records under the INTERVAL policy
+					long due = lastRetention + RETENTION_CHECK;
+					if (fsync == FsyncPolicy.INTERVAL && synced < written)
+						due = Math.min(due, lastSync + FSYNC_INTERVAL);
+					long now = System.currentTimeMillis();
+					if (now >= due)
+						break;
+					try {
+						wait(due - now);
+					} catch (InterruptedException e) {}
+				}
+				if (pending.isEmpty() && closed)
+					break;
+				batch = pending;
+				pending = new ArrayList<>();
+				last = nextOffset - 1;
+				dirty = synced < last;
+			}
+			long now = System.currentTimeMillis();
+			boolean forced = false;
+			try {
+				if (!batch.isEmpty())
+					write(batch);
+				if (dirty && (fsync == FsyncPolicy.ALWAYS || (fsync == FsyncPolicy.INTERVAL && now - lastSync >= FSYNC_INTERVAL))) {
+					active().channel.force(false);
+					lastSync = now;
+					forced = true;
+				}
+				if (now - lastRetention >= RETENTION_CHECK) {
+					enforceRetention();
+					lastRetention = now;
+				}
+			} catch (IOException e) {
+				System.err.println("Event log write failed: " + e.getMessage());
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				written = last;
+				if (forced || fsync == FsyncPolicy.NEVER)
+					synced = last;
+				notifyAll();
+			}
+		}
+		try {
+			active().channel.force(false);
+		} catch (IOException e) {
+			System.err.println("Event log sync failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Helper method to write a batch of records to the end of the log, starting new segments as they fill
+	 */
+	private void write(ArrayList<ByteBuffer> batch) throws IOException {
+		ArrayList<ByteBuffer> run = new ArrayList<>();
+		long runBytes = 0;
+		for (ByteBuffer record : batch) {
+			Segment s = active();
+			if (s.size + runBytes > 0 && s.size + runBytes + record.remaining() > segmentBytes) {
+				s.write(run);
+				run.clear();
+				runBytes = 0;
+				roll(record.getLong(4));
+			}
+			run.add(record);
+			runBytes += record.remaining();
+		}
+		active().write(run);
+	}
+
+	/**
+	 * Helper method to close the segment being written to and start a new one
+	 *
+	 * @param base offset of the first record of the new segment
+	 */
+	private void roll(long base) throws IOException {
+		Segment old = active();
+		old.channel.force(false);
+		old.indexChannel.force(false);
+		segments.add(new Segment(dir, base));
+		enforceRetention();
+	}
+
+	/**
+	 * Have retention report the Events it deletes that are still owed to a subscriber
+	 *
+	 * @param _owed tells which subscribers are owed Events
+	 */
+	public void setOwedEvents(OwedEvents _owed) {
+		this.owed = _owed;
+	}
+
+	/**
+	 * Helper method to delete the oldest closed segments while the log is over its size limit or they
+	 * are older than the time limit.  The segment being written to is never deleted.  Retention is a hard
+	 * limit, so a segment is deleted even if it holds Events a subscriber that is away has not received,
+	 * and how many there were is reported
+	 */
+	private void enforceRetention() {
+		long total = 0;
+		for (Segment s : segments)
+			total += s.size;
+		long now = System.currentTimeMillis();
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			if (total <= retentionBytes && now - oldest.logFile.lastModified() <= retentionMs)
+				break;
+			int lost = countOwed(oldest.base, segments.get(1).base);
+			if (lost > 0)
+				System.err.println("Event log retention deleted " + lost + " events still owed to subscribers that are away");
+			segments.remove(0);
+			total -= oldest.size;
+			oldest.delete();
+		}
+	}
+
+	/**
+	 * Helper method to count the Events in a range of the log that a subscriber is still owed
+	 *
+	 * @param from first offset of the range
+	 * @param to offset after the range
+	 * @return number of Events in the range owed to at least one subscriber
+	 */
+	private int countOwed(long from, long to) {
+		OwedEvents o = owed;
+		if (o == null)
+			return 0;
+		final Map<Integer, Long> first = o.firstOwed();
+		long min = Long.MAX_VALUE;
+		for (Long offset : first.values())
+			min = Math.min(min, offset);
+		if (min >= to)
+			return 0;
+		final int[] lost = new int[1];
+		try {
+			scan(Math.max(from, min), to, new Visitor() {
+				public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) {
+					if (type != EVENT)
+						return true;
+					for (int subID : readRecipients(payload)) {
+						Long f = first.get(subID);
+						if (f != null && offset >= f) {
+							lost[0]++;
+							break;
+						}
+					}
+					return true;
+				}
+			});
+		} catch (IOException e) { System.err.println("Could not count owed events in the event log: " + e.getMessage()); }
+		return lost[0];
+	}
+
+	/**
+	 * One file of the log, holding the records from its base offset up to the base of the next segment,
+	 * with its sparse offset index alongside
+	 */
+	private static class Segment {
+		final long base;
+		final File logFile, indexFile;
+		FileChannel channel, indexChannel;
+		//bytes of records in the file
+		volatile long size;
+		//offset of each index entry relative to base, and the file position of its record
+		int[] indexOffsets = new int[16];
+		int[] indexPositions = new int[16];
+		int indexSize = 0;
+		//the whole file, once it is closed and first read
+		MappedByteBuffer mapped;
+
+		Segment(File dir, long _base) throws IOException {
+			this.base = _base;
+			String name = String.format("%020d", base);
+			logFile = new File(dir, name + LOG_SUFFIX);
+			indexFile = new File(dir, name + INDEX_SUFFIX);
+			channel = new RandomAccessFile(logFile, "rw").getChannel();
+			indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+			size = channel.size();
+		}
+
+		/**
+		 * Load the index of a closed segment from its file
+		 */
+		void loadIndex() throws IOException {
+			ByteBuffer entries = ByteBuffer.allocate((int) indexChannel.size());
+			indexChannel.read(entries, 0);
+			entries.flip();
+			while (entries.remaining() >= 8)
+				addIndex(entries.getInt(), entries.getInt());
+		}
+
+		/**
+		 * Check every record of the last segment, cut off anything after the first torn or corrupt one
+		 * and rebuild the index
+		 *
+		 * @return offset the next record will get
+		 */
+		long recover() throws IOException {
+			final long[] next = { base };
+			final long[] end = { 0 };
+			indexChannel.truncate(0);
+			synchronized (this) {
+				indexSize = 0;
+			}
+			scan(base, Long.MAX_VALUE, channel.size(), new Visitor() {
+				public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) {
+					next[0] = offset + 1;
+					end[0] += HEADER + payload.remaining();
+					return true;
+				}
+			});
+			if (end[0] < channel.size()) {
+				System.err.println("Event log: cutting off " + (channel.size() - end[0]) + " damaged bytes from " + logFile);
+				channel.truncate(end[0]);
+			}
+			size = 0;
+			//rebuild the index as though every record had just been written
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (size < end[0]) {
+				header.clear();
+				channel.read(header, size);
+				indexRecord(header.getLong(4), size);
+				size += 4 + header.getInt(0);
+			}
+			return next[0];
+		}
+
+		/**
+		 * Write records to the end of this segment in one gathering write
+		 */
+		void write(List<ByteBuffer> records) throws IOException {
+			if (records.isEmpty())
+				return;
+			ByteBuffer[] all = records.toArray(new ByteBuffer[records.size()]);
+			long[] positions = new long[all.length];
+			long position = size;
+			for (int i = 0; i < all.length; i++) {
+				positions[i] = position;
+				position += all[i].remaining();
+			}
+			channel.position(size);
+			long left = position - size;
+			while (left > 0)
+				left -= channel.write(all);
+			size = position;
+			//index the records only once they are in the file, so a scan never starts past its end
+			for (int i = 0; i < all.length; i++)
+				indexRecord(all[i].getLong(4), positions[i]);
+		}
+
+		/**
+		 * Add an index entry for a record if enough bytes have passed since the last one
+		 */
+		private synchronized void indexRecord(long offset, long position) throws IOException {
+			if (indexSize > 0 && position - indexPositions[indexSize - 1] < INDEX_INTERVAL)
+				return;
+			addIndex((int) (offset - base), (int) position);
+			indexChannel.write(ByteBuffer.allocate(8).putInt((int) (offset - base)).putInt((int) position).flip(),
+					indexChannel.size());
+		}
+
+		private synchronized void addIndex(int relative, int position) {
+			if (indexSize == indexOffsets.length) {
+				indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+				indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+			}
+			indexOffsets[indexSize] = relative;
+			indexPositions[indexSize++] = position;
+		}
+
+		/**
+		 * @return file position of the last indexed record at or before an offset and no further in than
+		 * the limit, where a scan for that offset can start
+		 */
+		synchronized long position(long offset, long limit) {
+			int i = Arrays.binarySearch(indexOffsets, 0, indexSize, (int) Math.max(0, offset - base));
+			if (i < 0)
+				i = -i - 2;
+			while (i >= 0 && indexPositions[i] > limit)
+				i--;
+			return (i < 0) ? 0 : indexPositions[i];
+		}
+
+		/**
+		 * @return the whole of this segment mapped read-only, mapping it the first time.  Only used once
+		 * the segment is no longer written to
+		 */
+		synchronized ByteBuffer mapped() throws IOException {
+			if (mapped == null)
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return mapped;
+		}
+
+		/**
+		 * Read the records of this closed segment in a range of offsets through its memory map, handing
+		 * each payload to the visitor as a slice of the map.  Stops early at a record that is torn or
+		 * fails its checksum
+		 *
+		 * @return false if the visitor stopped the scan or the range ended in this segment
+		 */
+		boolean scanMapped(long from, long to, Visitor visitor) throws IOException {
+			ByteBuffer map = mapped().duplicate();
+			int limit = map.capacity();
+			int position = (int) position(from, limit);
+			CRC32 crc = new CRC32();
+			while (position + HEADER <= limit) {
+				int length = map.getInt(position);
+				long offset = map.getLong(position + 4);
+				if (offset >= to)
+					return false;
+				if (length < HEADER - 4 || position + 4 + length > limit)
+					return true;
+				map.limit(position + 4 + length).position(position + HEADER);
+				ByteBuffer payload = map.slice();
+				map.limit(limit);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if ((int) crc.getValue() != map.getInt(position + 21))
+					return true;
+				if (offset >= from && !visitor.record(offset, map.getLong(position + 12), map.get(position + 20), payload))
+					return false;
+				position += 4 + length;
+			}
+			return true;
+		}
+
+		/**
+		 * Read the records of this segment in a range of offsets up to a file position through its
+		 * channel, stopping early at a record that is torn or fails its checksum
+		 *
+		 * @return false if the visitor stopped the scan or the range ended in this segment
+		 */
+		boolean scan(long from, long to, long limit, Visitor visitor) throws IOException {
+			long position = position(from, limit);
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			CRC32 crc = new CRC32();
+			while (position + HEADER <= limit) {
+				header.clear();
+				if (channel.read(header, position) < HEADER)
+					return true;
+				int length = header.getInt(0);
+				long offset = header.getLong(4);
+				if (offset >= to)
+					return false;
+				if (length < HEADER - 4 || position + 4 + length > limit)
+					return true;
+				ByteBuffer payload = ByteBuffer.allocate(length - (HEADER - 4));
+				while (payload.hasRemaining())
+					if (channel.read(payload, position + HEADER + payload.position()) < 0)
+						return true;
+				crc.reset();
+				crc.update(payload.array());
+				if ((int) crc.getValue() != header.getInt(21))
+					return true;
+				payload.flip();
+				if (offset >= from && !visitor.record(offset, header.getLong(12), header.get(20), payload))
+					return false;
+				position += 4 + length;
+			}
+			return true;
+		}
+
+		void close() {
+			try {
+				channel.close();
+				indexChannel.close();
+			} catch (IOException e) {}
+		}
+
+		void delete() {
+			close();
+			logFile.delete();
+			indexFile.delete();
+		}
+	}
+}
@@ -7,14 +7,20 @@ package pubsub;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pubsub.interfaces.EventManInterface;
 import pubsub.interfaces.Subscriber;
@@ -27,23 +33,60 @@ import pubsub.interfaces.Subscriber;
 public class EventManager extends UnicastRemoteObject implements EventManInterface {
 	
 	private static final long serialVersionUID = 1L;
-	//Amount of time to wait between attempts to contact a non-responsive agent
-	public static final int TIMEOUT = 1000;
+	//Most events replayed from the event log that are queued for a subscriber at once
+	public static final int REPLAY_BATCH = 256;
+	//Most published Events kept in memory for showEvents when the event log is disabled
+	public static final int RECENT_EVENTS = 1000;
 	//counters used to assign Unique IDs
-	protected Integer topicID = 0;
-	protected Integer subscriberID = 0;
-	protected Integer eventID = 0;
-	//Storage for all Topic Containers (topic plus subscribers)
-	protected LinkedHashSet<TopicContainer> allTopicContainers;
-	//Events are stored here while they continue to try to contact a missing subscriber
-	protected LinkedList<Event> pendingEvents;
+	protected IdAllocator ids;
+	//Storage for all Topic Containers (topic plus subscribers), indexed by Topic ID and name
+	protected TopicRegistry topics;
+	//Events that could not reach a subscriber wait here, per subscriber, until their next attempt is due
+	protected RetryScheduler retries;
+	// Maps from the ID of a client that is offline to the events it has missed, which are all sent
+	// together once it says hello again.  Only used when the event log is disabled
+	protected ConcurrentHashMap<Integer, Mailbox> mailboxes;
+	//caps on each client's mailbox
+	protected int mailboxMaxEvents = Mailbox.DEFAULT_MAX_EVENTS;
+	protected long mailboxMaxAge = Mailbox.DEFAULT_MAX_AGE;
+	protected long mailboxMaxBytes = Mailbox.DEFAULT_MAX_BYTES;
 	// Maps from the name of a keyword to the ID of the clients that receive those keyword events
-	// in order to allow for efficient content-filtering
-	protected HashMap<String, LinkedHashSet<Integer>> contentFilter;
+	// in order to allow for efficient content-filtering, and back from each client to its keywords
+	protected KeywordIndex contentFilter;
+	// Matches events against the content filters that are more than a single keyword, such as
+	// "hockey AND (win OR medals)" or "stock.*"
+	protected ContentMatcher filters;
+	// Wildcard subscriptions to the hierarchical Topic namespace, such as "market/sells/*" or "market/#"
+	protected TopicTrie patterns;
+	// Maps from the ID of a client to the ID of every Topic it subscribes to, so that a full 
+	// unsubscribe only visits that client's Topics
+	protected ConcurrentHashMap<Integer, Set<Integer>> subscribedTopics;
 	// Maps from the ID of a client to the actual RMI object of the client 
 	// This allows the client to leave and come back later without 
-	//changing the unique identifier
-	protected HashMap<Integer, Subscriber> clientBinding;
+	//changing the unique identifier.  Only clients that are online are bound, and read without a lock
+	protected ConcurrentHashMap<Integer, Subscriber> clientBinding;
+	//ID of every client that is offline but expected back, kept apart from the bound ones
+	protected Set<Integer> offline;
+	//Sends events to each subscriber from its own queue so publishing never waits on a slow client
+	protected DeliveryEngine delivery;
+	//Durable record of every published Event and who has received it, or null if events are not persisted
+	protected EventLog log;
+	//The newest published Events, oldest first, kept for showEvents only when the event log is disabled
+	protected ArrayDeque<Event> recentEvents;
+	// Maps from the ID of a client that is offline to the log offset of the first event it missed.  When
+	// events are logged this replaces the mailbox: the client is replayed its events straight from the
+	// log when it says hello again, however long it was away.  Also the lock that orders going offline
+	// and coming back against events being parked
+	protected HashMap<Integer, Long> replayFrom;
+	// ID of every client being replayed events from the log.  Until its replay reaches the end of the log
+	// its live events are treated as missed too, so that they reach it after the backlog and in order
+	protected Set<Integer> catchingUp;
+	// Maps from the ID of a client to the Topics it has asked to be replayed from an offset, which its
+	// catch up sends before anything else.  Guarded by the replayFrom lock
+	protected HashMap<Integer, ArrayDeque<Backlog>> backlogs;
+	// Maps from the ID of a client to the ID of each Topic it has received logged events on, to the offset
+	// after the newest of them, so that a client can resume a Topic from where it left off
+	protected ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Long>> committed;
 
 	/**
 	 * Constructor
@@ -51,10 +94,22 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * @throws RemoteException for RMI errors
 	 */
 	public EventManager(boolean preload) throws RemoteException {
-		allTopicContainers = new LinkedHashSet<>();
-		pendingEvents = new LinkedList<>();
-		contentFilter = new HashMap<>();
-		clientBinding = new HashMap<>();
+		ids = new IdAllocator();
+		topics = new TopicRegistry();
+		retries = new RetryScheduler(this);
+		mailboxes = new ConcurrentHashMap<>();
+		replayFrom = new HashMap<>();
+		catchingUp = ConcurrentHashMap.newKeySet();
+		backlogs = new HashMap<>();
+		committed = new ConcurrentHashMap<>();
+		recentEvents = new ArrayDeque<>();
+		contentFilter = new KeywordIndex();
+		filters = new ContentMatcher();
+		patterns = new TopicTrie();
+		subscribedTopics = new ConcurrentHashMap<>();
+		clientBinding = new ConcurrentHashMap<>();
+		offline = ConcurrentHashMap.newKeySet();
+		delivery = new DeliveryEngine(this);
 		if (preload)
 			this.loadPrebuiltTopics();
 	}
@@ -82,20 +137,32 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * see interface javadoc
 	 */
 	public int sayHello(Subscriber sub) throws RemoteException {
+		int ID = ids.nextSubscriberID();
 		synchronized (clientBinding) {
-			clientBinding.put(++subscriberID, sub);
-			return subscriberID;
+			clientBinding.put(ID, sub);
 		}
+		return ID;
 	}
 	
 	/**
 	 * see interface javadoc
 	 */
 	public int sayHello(Integer ID, Subscriber sub) throws RemoteException {
-		synchronized (clientBinding) {
-			clientBinding.put(ID, sub);
-			return ID;
+		boolean replay;
+		synchronized (replayFrom) {
+			synchronized (clientBinding) {
+				clientBinding.put(ID, sub);
+				offline.remove(ID);
+			}
+			replay = (replayFrom.containsKey(ID) || backlogs.containsKey(ID)) && catchingUp.add(ID);
 		}
+		//send everything the client missed while it was away in one go
+		Mailbox box = mailboxes.get(ID);
+		if (box != null)
+			delivery.deliverAll(ID, box.drain());
+		if (replay)
+			catchUp(ID);
+		return ID;
 	}
 	
 	/**
@@ -103,7 +170,9 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 */
 	public void unbind(Integer ID) {
 		synchronized (clientBinding) {
-			clientBinding.put(ID, null);
+			//marked offline before it is unbound, so it is never taken for a client that left for good
+			offline.add(ID);
+			clientBinding.remove(ID);
 		}
 	}
 	/**
@@ -112,52 +181,497 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	public void unbindPermanent(Integer ID) {
 		synchronized (clientBinding) {
 			clientBinding.remove(ID);
+			offline.remove(ID);
+		}
+		delivery.remove(ID);
+		mailboxes.remove(ID);
+		committed.remove(ID);
+		synchronized (replayFrom) {
+			replayFrom.remove(ID);
+			backlogs.remove(ID);
+			catchingUp.remove(ID);
 		}
+		if (log != null) {
+			try {
+				log.appendLeave(ID);
+			} catch (IOException e) { System.err.println("Event log error: " + e.getMessage()); }
+		}
+	}
+	
+	/**
+	 * see interface javadoc
+	 */
+	public void ping() {
 	}
 	
 	public Subscriber getSubscriber(Integer ID) {
 		return clientBinding.get(ID);
 	}
 	
+	/**
+	 * Helper method to tell whether a client is online or expected back, rather than gone for good
+	 * 
+	 * @param ID unique ID of the client
+	 * @return true if the client is bound or offline
+	 */
+	private boolean known(Integer ID) {
+		return clientBinding.containsKey(ID) || offline.contains(ID);
+	}
+	
 	////////////////////////////////////////////////////////////////////////////////////
 	//  Asynchronous notification service
 	////////////////////////////////////////////////////////////////////////////////////
 	
 	/**
-	 * This is the method that runs in the background to contact all the Subscribers continually when they 
-	 * are offline until they return
+	 * This starts the background service that keeps contacting Subscribers that are offline until they 
+	 * return.  Each missed delivery is retried on its own schedule, backing off the longer the 
+	 * subscriber stays away
 	 */
 	public void startService() {
-		
-		Thread t = new Thread(new Runnable() {
+		retries.start();
+	}
+	
+	/**
+	 * Called by the delivery engine when an event could not be delivered to a subscriber.  If the subscriber
+	 * has gone offline the event waits in its mailbox and the subscriber's queue carries on, otherwise another
+	 * attempt is scheduled for later and the queue holds newer events until then
+	 * 
+	 * @param subID unique ID of the subscriber that could not be reached
+	 * @param event Event that was not delivered
+	 * @param attempt number of attempts that had already failed before this one
+	 */
+	public void deliveryFailed(Integer subID, Event event, int attempt) {
+		if (clientBinding.get(subID) == null) {
+			if (!park(subID, event))
+				delivery.deliver(subID, event);
+			delivery.resume(subID);
+		} else
+			retries.schedule(subID, event, attempt + 1);
+	}
+	
+	/**
+	 * Called by the delivery engine once a subscriber has received some events, so that they are not 
+	 * sent again after the server restarts.  The subscriber's committed offset on each Topic the events 
+	 * were published under moves past the newest of them
+	 * 
+	 * @param subID unique ID of the subscriber
+	 * @param events Events it received
+	 */
+	public void delivered(Integer subID, List<Event> events) {
+		if (log == null)
+			return;
+		HashMap<Integer, Long> newest = new HashMap<>();
+		for (Event e : events) {
+			Long last = newest.get(e.getTopic().getID());
+			if (e.getOffset() >= 0 && (last == null || e.getOffset() >= last))
+				newest.put(e.getTopic().getID(), e.getOffset() + 1);
+		}
+		try {
+			log.appendAck(subID, events);
+			for (Map.Entry<Integer, Long> e : newest.entrySet())
+				if (commit(subID, e.getKey(), e.getValue()))
+					log.appendCommit(subID, e.getKey(), e.getValue());
+		} catch (IOException e) { System.err.println("Event log error: " + e.getMessage()); }
+	}
+	
+	/**
+	 * Helper method to move a subscriber's committed offset on a Topic forward, never back
+	 * 
+	 * @param subID unique ID of the subscriber
+	 * @param topicID unique ID of the Topic
+	 * @param offset offset after the newest Event on the Topic the subscriber received
+	 * @return true if the committed offset moved
+	 */
+	private boolean commit(int subID, int topicID, long offset) {
+		ConcurrentHashMap<Integer, Long> mine = committed.get(subID);
+		if (mine == null) {
+			committed.putIfAbsent(subID, new ConcurrentHashMap<Integer, Long>());
+			mine = committed.get(subID);
+		}
+		while (true) {
+			Long old = mine.putIfAbsent(topicID, offset);
+			if (old == null)
+				return true;
+			if (old >= offset)
+				return false;
+			if (mine.replace(topicID, old, offset))
+				return true;
+		}
+	}
+	
+	/**
+	 * Called by the retry scheduler when it is time to try a subscriber again.  If the subscriber is 
+	 * bound the events go back to the front of its queue, ahead of anything published since, if it has 
+	 * gone offline they wait in its mailbox, and if it has left for good they are dropped for it.  Returns
+	 * without waiting for room in the subscriber's queue
+	 * 
+	 * @param subID unique ID of the subscriber 
+	 * @param events Events that have not been delivered, in order
+	 * @param attempt number of attempts that have already failed
+	 */
+	public void retryDue(Integer subID, List<Event> events, int attempt) {
+		if (clientBinding.get(subID) != null)
+			delivery.retry(subID, events);
+		else {
+			ArrayList<Event> back = new ArrayList<>();
+			for (Event event : events)
+				if (!park(subID, event))
+					back.add(event);
+			if (back.isEmpty())
+				delivery.resume(subID);
+			else
+				delivery.retry(subID, back);
+		}
+	}
+	
+	/**
+	 * Helper method to keep an event for a subscriber that is offline.  A logged event is already kept by
+	 * the log, so only the offset the subscriber's replay has to start from is remembered.  Otherwise the
+	 * event goes in the subscriber's mailbox.  Either way the binding is checked again under the lock the
+	 * subscriber takes to say hello, so that an event is never left behind once the subscriber has come back
+	 * 
+	 * @param subID unique ID of the subscriber 
+	 * @param event Event the subscriber missed
+	 * @return false if the subscriber has come back, so the event has to be sent to it after all
+	 */
+	private boolean park(Integer subID, Event event) {
+		if (!known(subID))
+			return true;
+		if (event.getOffset() >= 0)
+			return missed(subID, event.getOffset());
+		Mailbox box = mailboxes.get(subID);
+		if (box == null) {
+			Mailbox newBox = new Mailbox(mailboxMaxEvents, mailboxMaxAge, mailboxMaxBytes);
+			box = mailboxes.putIfAbsent(subID, newBox);
+			if (box == null)
+				box = newBox;
+		}
+		synchronized (box) {
+			if (clientBinding.get(subID) == null) {
+				box.add(event);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Helper method to remember that a subscriber missed the logged event at an offset, if it is offline
+	 * or still catching up on the log
+	 * 
+	 * @param subID unique ID of the subscriber
+	 * @param offset of the event in the log
+	 * @return true if the event was missed, false if the subscriber is live and should be sent the event
+	 */
+	private boolean missed(Integer subID, long offset) {
+		synchronized (replayFrom) {
+			if (clientBinding.get(subID) != null && !catchingUp.contains(subID))
+				return false;
+			Long from = replayFrom.get(subID);
+			if (from == null || offset < from)
+				replayFrom.put(subID, offset);
+			return true;
+		}
+	}
+	
+	/**
+	 * Helper method to bring a subscriber up to date from the log, on a thread of its own.  First every 
+	 * Topic the subscriber asked to be replayed is sent, each from its offset up to when the subscriber
+	 * subscribed.  Then, for as long as the subscriber has missed events, the log is read from the first
+	 * one it missed to the end: first for the subscriber's acknowledgements, so an event that did reach it
+	 * is not sent again, then for the events themselves, which are read straight out of the log's mapped
+	 * files and queued a REPLAY_BATCH at a time as the subscriber keeps up.  Live events that arrive 
+	 * meanwhile are missed on purpose, and the subscriber only goes live once there is nothing left to
+	 * send.  If the subscriber goes offline part way through, the replay stops and picks up from where it
+	 * was when the subscriber says hello again
+	 * 
+	 * @param subID unique ID of the subscriber, which is already in catchingUp
+	 */
+	private void catchUp(final int subID) {
+		new Thread(new Runnable() {
 			public void run() {
-				while(true) {
-					try { Thread.sleep(TIMEOUT); } catch (InterruptedException e1) { }
-					synchronized(pendingEvents) {
-						while (pendingEvents.isEmpty()) {
-							try {  
-								pendingEvents.wait(); 
-							} catch (Exception e) { }
+				try {
+					long next = 0;
+					//events already queued for the subscriber by this catch up or acknowledged by it
+					final IntSet sent = new IntSet();
+					while (true) {
+						Backlog backlog = null;
+						long start = 0, to = 0;
+						synchronized (replayFrom) {
+							Long missedFrom = replayFrom.get(subID);
+							ArrayDeque<Backlog> mine = backlogs.get(subID);
+							if (clientBinding.get(subID) == null || (missedFrom == null && mine == null)) {
+								catchingUp.remove(subID);
+								return;
+							}
+							if (mine != null) {
+								backlog = mine.poll();
+								if (mine.isEmpty())
+									backlogs.remove(subID);
+							} else {
+								replayFrom.remove(subID);
+								start = Math.max(missedFrom, next);
+								to = log.nextOffset();
+							}
 						}
-						asynchNotify();
+						if (backlog != null) {
+							long stopped = replay(subID, backlog.from, backlog.until, backlog.topicID, sent);
+							if (stopped < backlog.until && (stopped > backlog.from || clientBinding.get(subID) == null))
+								requeue(subID, new Backlog(stopped, backlog.until, backlog.topicID));
+							continue;
+						}
+						log.scan(start, to, new EventLog.Visitor() {
+							public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) {
+								if (type == EventLog.ACK && payload.getInt(payload.position()) == subID) {
+									for (int i = 0; i < payload.getInt(payload.position() + 4); i++)
+										sent.add(payload.getInt(payload.position() + 8 + 4 * i));
+								}
+								return true;
+							}
+						});
+						next = replay(subID, start, to, 0, sent);
+					}
+				} catch (IOException | RuntimeException e) {
+					System.err.println("Replay to Agent_" + subID + " failed: " + e);
+					synchronized (replayFrom) {
+						catchingUp.remove(subID);
 					}
 				}
 			}
-			/**
-			 * helper method that iterates through each event that is pending compelte 
-			 * notification of its subscribers
-			 */
-			public void asynchNotify() {
-				Iterator<Event> event_iter = pendingEvents.iterator();
-				while( event_iter.hasNext() ) {
-					if (notifySubscribers(event_iter.next()) == 0) 
-						event_iter.remove();	
+		}, "replay-" + subID).start();
+	}
+	
+	/**
+	 * Helper method to put back the part of a Topic replay that was cut short by the subscriber going 
+	 * offline, ahead of any other Topic it asked for
+	 */
+	private void requeue(int subID, Backlog backlog) {
+		synchronized (replayFrom) {
+			if (!known(subID))
+				return;
+			ArrayDeque<Backlog> mine = backlogs.get(subID);
+			if (mine == null)
+				backlogs.put(subID, mine = new ArrayDeque<>());
+			mine.addFirst(backlog);
+		}
+	}
+	
+	/**
+	 * Helper method for catchUp to send a subscriber the logged events in a range, either every event on a
+	 * Topic or the events it was owed and has not acknowledged.  Stops if the subscriber goes offline
+	 * 
+	 * @param subID unique ID of the subscriber
+	 * @param from offset to start at
+	 * @param to offset to stop before
+	 * @param topicID unique ID of the Topic to send, or 0 to send the subscriber's own events
+	 * @param sent ID of the events the subscriber has already been sent, which are skipped.  The events sent
+	 * now are added to it, so a later range does not send them again before they are acknowledged
+	 * @return offset after the last record read, which every earlier record was read before, or if the
+	 * subscriber went offline the offset to carry on from
+	 * @throws IOException if the log cannot be read
+	 */
+	private long replay(final int subID, long from, long to, final int topicID, final IntSet sent) throws IOException {
+		final ArrayList<Event> batch = new ArrayList<>();
+		final long[] next = { from };
+		log.scan(from, to, new EventLog.Visitor() {
+			public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) throws IOException {
+				if (clientBinding.get(subID) == null) {
+					if (!batch.isEmpty())
+						next[0] = batch.get(0).getOffset();
+					if (topicID == 0)
+						missed(subID, next[0]);
+					batch.clear();
+					return false;
+				}
+				next[0] = offset + 1;
+				if (type != EventLog.EVENT)
+					return true;
+				if (topicID != 0 ? EventLog.readTopicID(payload) != topicID : !EventLog.isRecipient(payload, subID))
+					return true;
+				if (!sent.add(EventLog.readEventID(payload)))
+					return true;
+				batch.add(EventLog.readEvent(payload).withOffset(offset));
+				if (batch.size() == REPLAY_BATCH) {
+					delivery.replay(subID, batch);
+					batch.clear();
+				}
+				return true;
+			}
+		});
+		delivery.replay(subID, batch);
+		return next[0];
+	}
+	
+	/**
+	 * Changes how much each offline subscriber's mailbox can hold.  Mailboxes that already exist keep
+	 * their caps
+	 * 
+	 * @param maxEvents most events a mailbox holds before dropping the oldest
+	 * @param maxAge longest time in milliseconds an event is held
+	 * @param maxBytes most bytes of encoded events a mailbox holds before dropping the oldest
+	 */
+	public void configureMailboxes(int maxEvents, long maxAge, long maxBytes) {
+		this.mailboxMaxEvents = maxEvents;
+		this.mailboxMaxAge = maxAge;
+		this.mailboxMaxBytes = maxBytes;
+	}
+	
+	/**
+	 * Changes how the delivery engine queues events for each subscriber
+	 * 
+	 * @param queueDepth number of events that can wait in memory for a single subscriber
+	 * @param overflow what to do with a new event when a subscriber's queue is full
+	 */
+	public void configureDelivery(int queueDepth, DeliveryEngine.OverflowPolicy overflow) {
+		delivery.setQueueDepth(queueDepth);
+		delivery.setOverflowPolicy(overflow);
+	}
+	
+	/**
+	 * Starts persisting every published event to a durable log, first recovering the events a previous 
+	 * run of the server had not yet delivered.  Subscribers that were owed events are treated as offline
+	 * until they say hello again, when the events they missed are replayed from the log.  Topics get back
+	 * the IDs they had, since every Topic registered is recorded beside the log.  Events that spill
+	 * out of a subscriber's queue are written inside the log's directory, which no other server uses
+	 * 
+	 * @param dir directory of the log
+	 * @param fsync when appended events are forced to disk
+	 * @param segmentBytes size each file of the log grows to before a new one is started
+	 * @param retentionBytes total size of the log before the oldest files are deleted
+	 * @param retentionMs time in milliseconds a full file of the log is kept
+	 * @throws IOException if the log cannot be opened
+	 */
+	public void openLog(File dir, EventLog.FsyncPolicy fsync, long segmentBytes, long retentionBytes, 
+			long retentionMs) throws IOException {
+		log = new EventLog(dir, fsync, segmentBytes, retentionBytes, retentionMs);
+		delivery.setSpillDirectory(new File(dir, "spill"));
+		recover();
+		log.setOwedEvents(new EventLog.OwedEvents() {
+			public Map<Integer, Long> firstOwed() {
+				synchronized (replayFrom) {
+					return new HashMap<>(replayFrom);
 				}
 			}
 		});
-		//Daemon allows this thread not to block program from exiting
-		t.setDaemon(true);
-		t.start();		
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				log.close();
+			}
+		}));
+	}
+	
+	/**
+	 * Helper method to give every Topic a previous run of the server registered the ID it had then, so that
+	 * committed offsets and the Topic IDs in the log still refer to the right Topic.  Topics registered
+	 * before the log was opened, such as the prebuilt ones, are recorded if they are not already
+	 * 
+	 * @throws IOException if the log's Topics cannot be read or written
+	 */
+	private void recoverTopics() throws IOException {
+		int highest = 0;
+		HashSet<String> logged = new HashSet<>();
+		synchronized (topics) {
+			for (Topic topic : log.readTopics()) {
+				highest = Math.max(highest, topic.getID());
+				logged.add(topic.getName());
+				TopicContainer tc = topics.get(topic.getName());
+				if (tc != null) {
+					if (tc.getTopic().getID() != topic.getID())
+						System.err.println("Topic " + topic.getName() + " was " + topic.getID() + " in the event log but is now " 
+								+ tc.getTopic().getID() + ", its committed offsets no longer apply");
+				} else if (topics.get(topic.getID()) != null) {
+					System.err.println("Topic " + topic.getName() + " cannot get back ID " + topic.getID() 
+							+ ", which is now " + topics.get(topic.getID()).getTopic().getName());
+				} else {
+					topics.add(topic, topic.getID());
+				}
+			}
+			ids.skipTopicIDs(highest);
+			for (Topic topic : topics.topics())
+				if (!logged.contains(topic.getName()))
+					log.appendTopic(topic);
+		}
+	}
+	
+	/**
+	 * Helper method to read the whole log and find, for every subscriber that has not received some event, 
+	 * the offset of the first such event.  The subscriber is replayed from there when it says hello again, 
+	 * so no event is deserialized here
+	 * 
+	 * @throws IOException if the log cannot be read
+	 */
+	private void recover() throws IOException {
+		recoverTopics();
+		//Maps from the ID of an event to the subscribers still owed it, and to its offset in the log
+		final LinkedHashMap<Integer, IntSet> owed = new LinkedHashMap<>();
+		final HashMap<Integer, Long> offsets = new HashMap<>();
+		final IntSet left = new IntSet();
+		final int[] highest = new int[2];
+		log.scan(log.firstOffset(), new EventLog.Visitor() {
+			public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) {
+				switch (type) {
+					case EventLog.EVENT:
+						int eventID = EventLog.readEventID(payload);
+						highest[0] = Math.max(highest[0], eventID);
+						IntSet subs = new IntSet();
+						for (int subID : EventLog.readRecipients(payload)) {
+							subs.add(subID);
+							highest[1] = Math.max(highest[1], subID);
+						}
+						if (!subs.isEmpty()) {
+							owed.put(eventID, subs);
+							offsets.put(eventID, offset);
+						}
+						break;
+					case EventLog.ACK:
+						int subID = payload.getInt();
+						for (int i = payload.getInt(); i > 0; i--) {
+							int ackedID = payload.getInt();
+							IntSet waiting = owed.get(ackedID);
+							if (waiting != null && waiting.remove(subID) && waiting.isEmpty()) {
+								owed.remove(ackedID);
+								offsets.remove(ackedID);
+							}
+						}
+						break;
+					case EventLog.LEAVE:
+						left.add(payload.getInt());
+						break;
+					case EventLog.COMMIT:
+						commit(payload.getInt(), payload.getInt(), payload.getLong());
+						break;
+				}
+				return true;
+			}
+		});
+		ids.skipEventIDs(highest[0]);
+		ids.skipSubscriberIDs(highest[1]);
+		for (int subID : left.toArray())
+			committed.remove(subID);
+		for (Map.Entry<Integer, IntSet> e : owed.entrySet()) {
+			for (int subID : e.getValue().toArray()) {
+				if (left.contains(subID))
+					continue;
+				synchronized (clientBinding) {
+					if (!clientBinding.containsKey(subID))
+						offline.add(subID);
+				}
+				missed(subID, offsets.get(e.getKey()));
+			}
+		}
+		if (!owed.isEmpty())
+			System.out.println("Recovered " + owed.size() + " undelivered events for " + replayFrom.size() + 
+							   " subscribers from the event log");
+	}
+	
+	/**
+	 * Changes how the delivery engine coalesces events for a subscriber into one notifyBatch call
+	 * 
+	 * @param maxBatch most events sent to a subscriber in one call
+	 * @param linger time in milliseconds to wait for more events to fill a batch
+	 */
+	public void configureBatching(int maxBatch, long linger) {
+		delivery.setBatching(maxBatch, linger);
 	}
 
 	
@@ -167,66 +681,142 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	
 	/**
 	 * Helper method to notify all subscribers of a given event.  Subscribers have been added based on both 
-	 * Topic filtering and content filtering at this point.  As subscribers are contacted, they are removed from
-	 * the internal list of the event.  When the event subscriber list is empty, then the event is removed from
-	 * the lsit of all pending events
+	 * Topic filtering and content filtering at this point.  The event and its subscribers are appended to 
+	 * the event log before anyone is sent it.  Every subscriber that is currently bound is 
+	 * handed to the delivery engine, which sends the event on its own threads.  Subscribers that are 
+	 * offline get the event in their mailbox, or with the log enabled are replayed from the log, when they return.
+	 * Every subscriber is handed the same Event, and a reference to its encoding is held until all of them
+	 * are queued, so it is only encoded once
 	 * 
-	 * @param event Event to notify subscribers of
+	 * @param record the event and the subscribers to notify of it
+	 * @return number of subscribers that are offline and still need the event
 	 */
-	public int notifySubscribers(Event event) {
-		Iterator<Integer> sub_iter = event.iterator();
-		while (sub_iter.hasNext()) {
+	public int notifySubscribers(DeliveryRecord record) {
+		int offline = 0;
+		int[] subs = record.takeRecipients();
+		if (log != null) {
 			try {
-				Integer subID = sub_iter.next();
-				if (clientBinding.get(subID) != null) {
-					clientBinding.get(subID).notify(event);
-					sub_iter.remove();
+				record.logged(log.appendEvent(record.getEvent(), subs));
+			} catch (IOException e) { System.err.println("Event " + record.getEventID() + " not logged: " + e.getMessage()); }
+		}
+		Event event = record.getEvent();
+		boolean held = false;
+		for (int subID : subs) {
+			if (clientBinding.get(subID) != null && !catchingUp.contains(subID)) {
+				if (!held) {
+					try {
+						event.retain();
+					} catch (IOException e) { System.err.println("Could not encode Event " + event.getID() + ": " + e.getMessage()); }
+					held = true;
 				}
-			} catch(RemoteException e) { } //Do nothing on remote exception, try again later 
+				delivery.deliver(subID, event);
+			} else if (park(subID, event))
+				offline++;
+			else
+				delivery.deliver(subID, event);
 		}
-		//when this returns 0, we know every subscriber has received the message
-		return event.notifySize();
+		if (held)
+			event.release();
+		return offline;
 	}
 	
 	/**
 	 * see interface javadoc
 	 */
 	public int publish(Event event) throws RemoteException {
-		if (event.getID() != 0) {
-			System.err.println("Event has already been published.");
+		TopicContainer tc = findContainer(event);
+		if (tc == null)
 			return 0;
+		int ID = ids.nextEventID();
+		route(event.withID(ID), tc);
+		return ID;
+	}
+	
+	/**
+	 * see interface javadoc
+	 */
+	public int[] publishBatch(List<Event> events) throws RemoteException {
+		int[] IDs = new int[events.size()];
+		TopicContainer[] containers = new TopicContainer[events.size()];
+		int accepted = 0;
+		for (int i = 0; i < containers.length; i++) {
+			if ((containers[i] = findContainer(events.get(i))) != null)
+				accepted++;
 		}
-		synchronized (allTopicContainers) {
-			for( TopicContainer tc : allTopicContainers) {
-				if (tc.getTopic().getID() == event.getTopic().getID() ) {
-					event.setID(++eventID).addSubscriberList(tc.getSubscribers());
-					for(String key : event.getKeywords() )
-						event.addSubscriberList( contentFilter.get(key) );
-					if (notifySubscribers(event) > 0) {
-						synchronized (pendingEvents) {
-							pendingEvents.add(event);
-							pendingEvents.notifyAll();
-						}
-					}
-					return eventID;
-				}
+		if (accepted == 0)
+			return IDs;
+		//the accepted events get one contiguous block of IDs, in the order they were sent
+		int nextID = ids.reserveEventIDs(accepted);
+		for (int i = 0; i < containers.length; i++) {
+			if (containers[i] != null) {
+				IDs[i] = nextID++;
+				route(events.get(i).withID(IDs[i]), containers[i]);
 			}
 		}
-		System.err.println("Event topic not found.");
-		return 0;
+		return IDs;
+	}
+	
+	/**
+	 * Helper method to check that an event can be published and find the container of its Topic
+	 * 
+	 * @param event Event about to be published
+	 * @return the container of the event's Topic, or null if the event cannot be published
+	 */
+	private TopicContainer findContainer(Event event) {
+		if (event.getID() != 0) {
+			System.err.println("Event has already been published.");
+			return null;
+		}
+		TopicContainer tc = topics.get( event.getTopic().getID() );
+		if (tc == null)
+			System.err.println("Event topic not found.");
+		return tc;
+	}
+	
+	/**
+	 * Helper method to gather the subscribers of an event, by Topic, Topic pattern and content filtering,
+	 * and send it to them
+	 * 
+	 * @param event Event that has been given its ID
+	 * @param tc container of the event's Topic
+	 */
+	private void route(Event event, TopicContainer tc) {
+		DeliveryRecord record = new DeliveryRecord(event);
+		record.addRecipients(tc.getSubscribers());
+		if (!patterns.isEmpty())
+			record.addRecipients( patterns.resolve(tc.getTopic().getName()) );
+		for(String key : event.getKeywords() )
+			record.addRecipients( contentFilter.get(key) );
+		if (!filters.isEmpty())
+			record.addRecipients( filters.match(event) );
+		if (log == null)
+			remember(event);
+		notifySubscribers(record);
 	}
 	
 	/**
 	 * see interface javadoc
 	 */
 	public int addTopic(Topic topic) throws RemoteException {
-		synchronized (allTopicContainers) {
-			if (allTopicContainers.add( new TopicContainer(topic) )) {
-				topic.setID(++topicID);
-				return topicID;
-			}
+		if (TopicTrie.hasWildcard( topic.getName() )) {
+			System.err.println("Topic names cannot have wildcard levels.");
 			return 0;
 		}
+		synchronized (topics) {
+			if (topics.contains( topic.getName() ))
+				return 0;
+			int ID = ids.nextTopicID();
+			topics.add(topic, ID);
+			if (log != null) {
+				try {
+					log.appendTopic(topic);
+				} catch (IOException e) {
+					System.err.println("Topic " + topic.getName() + " was not logged, it may get another ID after a restart: " 
+							+ e.getMessage());
+				}
+			}
+			return ID;
+		}
 	}
 	
 	////////////////////////////////////////////////////////////////////////////////////
@@ -237,35 +827,105 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * see interface javadoc
 	 */
 	public boolean addSubscriber(Integer subID, Topic topic) throws RemoteException {
-		for( TopicContainer tc : allTopicContainers) {
-			if (tc.getTopic().getID() == topic.getID() ) {
-				return tc.addSubscriber(subID);
+		TopicContainer tc = topics.get( topic.getID() );
+		if (tc != null && tc.addSubscriber(subID)) {
+			Set<Integer> mine = subscribedTopics.get(subID);
+			if (mine == null) {
+				subscribedTopics.putIfAbsent(subID, ConcurrentHashMap.<Integer>newKeySet());
+				mine = subscribedTopics.get(subID);
 			}
+			mine.add(topic.getID());
+			return true;
 		}
 		return false;
 	}
 	
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addSubscriber(Integer subID, Topic topic, long fromOffset) throws RemoteException {
+		if (topics.get( topic.getID() ) == null)
+			return false;
+		if (log == null) {
+			addSubscriber(subID, topic);
+			return true;
+		}
+		if (fromOffset < 0)
+			fromOffset = getCommittedOffset(subID, topic);
+		boolean replay = false;
+		synchronized (replayFrom) {
+			//subscribed before the end of the backlog is read, so every event is in the backlog, live or both
+			addSubscriber(subID, topic);
+			long until = log.nextOffset();
+			if (fromOffset >= 0 && fromOffset < until) {
+				ArrayDeque<Backlog> mine = backlogs.get(subID);
+				if (mine == null)
+					backlogs.put(subID, mine = new ArrayDeque<>());
+				mine.add(new Backlog(fromOffset, until, topic.getID()));
+				replay = catchingUp.add(subID);
+			}
+		}
+		if (replay)
+			catchUp(subID);
+		return true;
+	}
+	
+	/**
+	 * see interface javadoc
+	 */
+	public long getCommittedOffset(Integer subID, Topic topic) throws RemoteException {
+		ConcurrentHashMap<Integer, Long> mine = committed.get(subID);
+		Long offset = (mine == null) ? null : mine.get(topic.getID());
+		return (offset == null) ? -1 : offset;
+	}
+	
 	/**
 	 * see interface javadoc
 	 */
 	public boolean addSubscriber(Integer subID, String keyword) throws RemoteException {
-		if (contentFilter.get(keyword) != null)
-			return contentFilter.get(keyword).add(subID);
-		else {
-			contentFilter.put(keyword, new LinkedHashSet<Integer>());
-			return contentFilter.get(keyword).add(subID);
+		if (FilterExpression.isPlainKeyword(keyword))
+			return contentFilter.add(subID, keyword);
+		try {
+			return filters.add(subID, new FilterExpression(keyword));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return false;
 		}
 	}
 
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addPatternSubscriber(Integer subID, String pattern) throws RemoteException {
+		if (!TopicTrie.isValidPattern(pattern)) {
+			System.err.println("Topic pattern " + pattern + " is not well formed.");
+			return false;
+		}
+		return patterns.add(subID, pattern);
+	}
+	
+	/**
+	 * see interface javadoc
+	 */
+	public boolean removePatternSubscriber(Integer subID, String pattern) throws RemoteException {
+		return patterns.remove(subID, pattern);
+	}
+
 	/**
 	 * see interface javadoc
 	 */
 	public boolean removeSubscriber(Integer subID) throws RemoteException {
-		for( TopicContainer tc : allTopicContainers)
-			tc.removeSubscriber(subID);
-		for(String key : contentFilter.keySet()) {
-			removeSubscriber(subID, key);
+		Set<Integer> mine = subscribedTopics.remove(subID);
+		if (mine != null) {
+			for (Integer topicID : mine) {
+				TopicContainer tc = topics.get(topicID);
+				if (tc != null)
+					tc.removeSubscriber(subID);
+			}
 		}
+		contentFilter.removeAll(subID);
+		filters.removeAll(subID);
+		patterns.removeAll(subID);
 		return true;
 	}
 	
@@ -273,24 +933,21 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * see interface javadoc
 	 */
 	public boolean removeSubscriber(Integer subID, String keyword) throws RemoteException {
-		Iterator<Integer> it = contentFilter.get(keyword).iterator();
-		while (it.hasNext()) {
-			if (it.next().equals(subID)) {
-				it.remove();
-				return true;
-			}
-		}
-		return false;
+		if (FilterExpression.isPlainKeyword(keyword))
+			return contentFilter.remove(subID, keyword);
+		return filters.remove(subID, keyword);
 	}
 	
 	/**
 	 * see interface javadoc
 	 */
 	public boolean removeSubscriber(Integer subID, Topic topic) throws RemoteException {
-		for( TopicContainer tc : allTopicContainers) {
-			if (tc.getTopic().getID() == topic.getID() ) {
-				return tc.removeSubscriber(subID);
-			}
+		TopicContainer tc = topics.get( topic.getID() );
+		if (tc != null && tc.removeSubscriber(subID)) {
+			Set<Integer> mine = subscribedTopics.get(subID);
+			if (mine != null)
+				mine.remove(topic.getID());
+			return true;
 		}
 		return false;
 	}
@@ -299,12 +956,7 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * see interface javadoc
 	 */
 	public ArrayList<Topic> getTopics() {
-		synchronized (allTopicContainers) {
-			ArrayList<Topic> topics = new ArrayList<>();
-			for (TopicContainer tc : allTopicContainers)
-				topics.add( tc.getTopic() );
-			return topics;
-		}
+		return topics.topics();
 	}
 	
 	////////////////////////////////////////////////////////////////////////////////////
@@ -314,18 +966,19 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 	 * This is how a user interacts with the server side of the pub-sub system.  Allows for
 	 * 1. Showing all topics
 	 * 2. Showing all subscribers
-	 * 3. Quitting
-	 * Note you cannot show all events because they are not stored after being fully delivered
+	 * 3. Showing the events still in the event log, or the newest ones kept in memory without a log
+	 * 4. Quitting
 	 * 
 	 * @throws RemoteException
 	 */
 	public void commandLineInterface() throws RemoteException {
 		Scanner in = new Scanner(System.in);
 		do {
-			System.out.println("What would you like to do? Enter choice [1-3]:");
+			System.out.println("What would you like to do? Enter choice [1-4]:");
 			System.out.println(" 1: Show topics");
 			System.out.println(" 2: Show subscribers");
-			System.out.println(" 3: Quit server");
+			System.out.println(" 3: Show events");
+			System.out.println(" 4: Quit server");
 			System.out.print("> ");
 			int choice = -1;
 			try {
@@ -333,34 +986,106 @@ public class EventManager extends UnicastRemoteObject implements EventManInterfa
 			} catch (Exception e) { in.nextLine(); }
 			switch (choice) {
 				case 1: 
-					for (TopicContainer tc : allTopicContainers)
+					for (TopicContainer tc : topics.containers())
 						System.out.print( tc.getTopic() );
 					break;
 				case 2: showSubscribers(); break;
-				case 3: in.close(); System.exit(0); 
+				case 3: showEvents(); break;
+				case 4: in.close(); System.exit(0); 
 				default: System.out.println("Input not recognized");
 			}
 		} while (true);
 	}
 	
+	/**
+	 * Helper method to keep a published event for showEvents when there is no log to read it back from,
+	 * dropping the oldest once RECENT_EVENTS are kept
+	 */
+	private void remember(Event event) {
+		synchronized (recentEvents) {
+			recentEvents.add(event);
+			if (recentEvents.size() > RECENT_EVENTS)
+				recentEvents.poll();
+		}
+	}
+	
+	/**
+	 * show every event still in the event log, used by the server for command line printing.  Without a
+	 * log, shows the newest events the server has kept in memory
+	 */
+	public void showEvents() {
+		if (log == null) {
+			ArrayList<Event> recent;
+			synchronized (recentEvents) {
+				recent = new ArrayList<>(recentEvents);
+			}
+			if (recent.size() == RECENT_EVENTS)
+				System.out.println("Events are not being logged, so only the newest " + RECENT_EVENTS + " are shown");
+			for (Event e : recent)
+				System.out.print(e);
+			return;
+		}
+		try {
+			log.scan(log.firstOffset(), new EventLog.Visitor() {
+				public boolean record(long offset, long timestamp, byte type, ByteBuffer payload) throws IOException {
+					if (type == EventLog.EVENT)
+						System.out.print( EventLog.readEvent(payload) );
+					return true;
+				}
+			});
+		} catch (IOException e) { System.out.println("Error reading the event log."); }
+	}
+	
 	/**
 	 * show the complete list of subscribers, used by server for command line printing
-	 * Prints both all the subscribers to each topic and all the subscribers to each 
-	 * keyword
+	 * Prints all the subscribers to each topic, each topic pattern and each keyword
 	 */
 	public void showSubscribers() throws RemoteException {
-		for( TopicContainer tc : allTopicContainers) 
+		for( TopicContainer tc : topics.containers()) 
 			System.out.print("Topic: " +tc.getTopic().getName()+ "\n" +
 							 "\tSubscribers: " + tc.printSubscribers());
 		String contentPrint = "";
-		for( String key : contentFilter.keySet() ) {
+		for( Map.Entry<String, IntSet> pattern : patterns.subscriptions().entrySet() ) {
+			contentPrint += "Topic pattern: " + pattern.getKey() + "\n\tSubscribers: ";
+			int i = pattern.getValue().size();
+			for ( int subID : pattern.getValue().toArray() )
+				contentPrint += "Agent_" + subID + ((--i > 0)?",":"\n");
+		}
+		for( String key : contentFilter.keywords() ) {
+			IntSet subs = contentFilter.get(key);
+			if (subs == null)
+				continue;
 			contentPrint += "Keyword: " + key + "\n\tSubscribers: ";
-			int i = contentFilter.get(key).size();
-			if (i == 0)
-				contentPrint += "None\n";
-			for ( Integer subID : contentFilter.get(key) )
+			int i = subs.size();
+			for ( int subID : subs.toArray() )
+				contentPrint += "Agent_" + subID + ((--i > 0)?",":"\n");
+		}
+		for( Map.Entry<String, IntSet> filter : filters.subscriptions().entrySet() ) {
+			contentPrint += "Filter: " + filter.getKey() + "\n\tSubscribers: ";
+			int i = filter.getValue().size();
+			for ( int subID : filter.getValue().toArray() )
 				contentPrint += "Agent_" + subID + ((--i > 0)?",":"\n");
 		}
 		System.out.print(contentPrint);
+		if (delivery.getDropped() > 0)
+			System.out.println("Events dropped from full subscriber queues: " + delivery.getDropped());
+		for (Map.Entry<Integer, Mailbox> box : mailboxes.entrySet())
+			if (box.getValue().getDropped() > 0)
+				System.out.println("Events dropped from the mailbox of Agent_" + box.getKey() + ": " + box.getValue().getDropped());
+	}
+	
+	/**
+	 * A range of the log to replay to a subscriber, for one Topic
+	 */
+	private static class Backlog {
+		long from;
+		long until;
+		int topicID;
+		
+		Backlog(long _from, long _until, int _topicID) {
+			this.from = _from;
+			this.until = _until;
+			this.topicID = _topicID;
+		}
 	}
 }
@@ -5,6 +5,8 @@ package pubsub;
 //Package: None
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
@@ -21,9 +23,22 @@ import pubsub.EventManager;
  */
 public class EventServer {
 
-	private int port = 1099;
+	private int port = -1;
+	private boolean nio = false;
 	private String hostName = "";
 	private EventManager manager = null;
+	private int queueDepth = DeliveryEngine.DEFAULT_QUEUE_DEPTH;
+	private DeliveryEngine.OverflowPolicy overflow = DeliveryEngine.OverflowPolicy.DROP_OLDEST;
+	private int maxBatch = DeliveryEngine.DEFAULT_MAX_BATCH;
+	private long linger = DeliveryEngine.DEFAULT_LINGER;
+	private String logDir = "eventlog";
+	private EventLog.FsyncPolicy fsync = EventLog.FsyncPolicy.INTERVAL;
+	private long segmentBytes = EventLog.DEFAULT_SEGMENT_BYTES;
+	private long retentionBytes = EventLog.DEFAULT_RETENTION_BYTES;
+	private long retentionMs = EventLog.DEFAULT_RETENTION_MS;
+	private int mailboxEvents = Mailbox.DEFAULT_MAX_EVENTS;
+	private long mailboxAge = Mailbox.DEFAULT_MAX_AGE;
+	private long mailboxBytes = Mailbox.DEFAULT_MAX_BYTES;
 	
 	/**
 	 * Constructor that makes a new EventManager and loads pre-built Topics
@@ -32,16 +47,24 @@ public class EventServer {
 	public EventServer(String[] args) {
 		if (args.length > 0)  
     		parseArgs(args);
+    	if (port < 0)
+    		port = nio ? NioProtocol.DEFAULT_PORT : 1099;
     	try {
     		if (hostName.length() == 0) 
     			hostName = InetAddress.getLocalHost().getHostAddress();
     		manager = new EventManager(true);
-    		Naming.rebind("//" + hostName + ":" + port + "/EventManager", manager);
-            System.out.println("EventManager bound in registry at " + hostName + ":" + port);
+    		manager.configureDelivery(queueDepth, overflow);
+    		manager.configureBatching(maxBatch, linger);
+    		manager.configureMailboxes(mailboxEvents, mailboxAge, mailboxBytes);
+    		openLog(manager);
+    		serve(manager, "EventManager");
             manager.startService();
 		} catch (Exception e) {
 			System.out.println( "EventManager error");
-			System.out.println( "Did you run 'rmiregistry [port] &' first then 'java EventServer [-p <port>]'?" );
+			if (nio)
+				System.out.println( "Is another server already listening on port " + port + "?" );
+			else
+				System.out.println( "Did you run 'rmiregistry [port] &' first then 'java EventServer [-p <port>]'?" );
 			System.exit(1);
 		}
 	}
@@ -55,15 +78,59 @@ public class EventServer {
 	public EventServer(String[] args, EventManager manager) {
 		if (args.length > 0)  
     		parseArgs(args);
+    	if (port < 0)
+    		port = nio ? NioProtocol.DEFAULT_PORT : 1099;
     	try {
     		if (hostName.length() == 0) 
     			hostName = InetAddress.getLocalHost().getHostAddress();
-    		Naming.rebind("//" + hostName + ":" + port + "/EventManager", manager);
-            System.out.println(manager + " bound in registry at " + hostName + ":" + port);
+    		manager.configureDelivery(queueDepth, overflow);
+    		manager.configureBatching(maxBatch, linger);
+    		manager.configureMailboxes(mailboxEvents, mailboxAge, mailboxBytes);
+    		openLog(manager);
+    		serve(manager, manager.toString());
             manager.startService();
 		} catch (Exception e) {
 			System.out.println( "Binding error");
-			System.out.println( "Did you run 'rmiregistry [port] &' before running 'java "+manager+" [-p <port>]'?" );
+			if (nio)
+				System.out.println( "Is another server already listening on port " + port + "?" );
+			else
+				System.out.println( "Did you run 'rmiregistry [port] &' before running 'java "+manager+" [-p <port>]'?" );
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Helper method to make the manager reachable by clients, either over the NIO transport or by binding
+	 * it in the RMI registry
+	 * 
+	 * @param manager that will be communicating with the clients
+	 * @param name of the manager to print
+	 * @throws Exception if the port cannot be listened on or the registry cannot be reached
+	 */
+	private void serve(EventManager manager, String name) throws Exception {
+		if (nio) {
+			new NioServer(manager, hostName, port).start();
+			System.out.println(name + " serving NIO clients at " + hostName + ":" + port);
+		} else {
+			Naming.rebind("//" + hostName + ":" + port + "/EventManager", manager);
+			System.out.println(name + " bound in registry at " + hostName + ":" + port);
+		}
+	}
+	
+	/**
+	 * Helper method to start the manager's event log, recovering what the last run left undelivered.
+	 * The server cannot promise durability without it, so it stops if the log cannot be opened
+	 * 
+	 * @param manager that will be writing the log
+	 */
+	private void openLog(EventManager manager) {
+		if (logDir == null)
+			return;
+		try {
+			manager.openLog(new File(logDir), fsync, segmentBytes, retentionBytes, retentionMs);
+		} catch (IOException e) {
+			System.out.println( "Cannot open event log in " + logDir + ": " + e.getMessage() );
+			System.out.println( "Use -log <dir> to choose another directory, or -nolog to run without one" );
 			System.exit(1);
 		}
 	}
@@ -79,15 +146,73 @@ public class EventServer {
 		for (int i = 0; i < args.length; i ++) {	
 			if (args[i].equals("-p")) port = new Integer(args[++i]).intValue();
 			else if (args[i].equals("-host")) hostName = args[++i];
+			else if (args[i].equals("-q")) queueDepth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-overflow") && (overflow = parseOverflow(args[++i])) != null) continue;
+			else if (args[i].equals("-batch")) maxBatch = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-linger")) linger = Long.parseLong(args[++i]);
+			else if (args[i].equals("-log")) logDir = args[++i];
+			else if (args[i].equals("-nolog")) logDir = null;
+			else if (args[i].equals("-fsync") && (fsync = parseFsync(args[++i])) != null) continue;
+			else if (args[i].equals("-segmentmb") && (segmentBytes = Long.parseLong(args[++i]) * 1024 * 1024) > 0
+					&& segmentBytes <= EventLog.MAX_SEGMENT_BYTES) continue;
+			else if (args[i].equals("-retainmb")) retentionBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+			else if (args[i].equals("-retainhours")) retentionMs = Long.parseLong(args[++i]) * 60 * 60 * 1000;
+			else if (args[i].equals("-mailbox")) mailboxEvents = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-mailboxmb")) mailboxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+			else if (args[i].equals("-mailboxhours")) mailboxAge = Long.parseLong(args[++i]) * 60 * 60 * 1000;
+			else if (args[i].equals("-direct")) BufferPool.shared().setDirect(true);
+			else if (args[i].equals("-nio")) nio = true;
 			else {
-				System.out.println("Correct usage: java EventServer [-host <hostName>] [-p <portnumber>]");
+				System.out.println("Correct usage: java EventServer [-host <hostName>] [-p <portnumber>] [-q <depth>] [-overflow drop|block|spill] [-batch <size>] [-linger <ms>]");
+				System.out.println("                        [-log <dir> | -nolog] [-fsync always|interval|never] [-segmentmb <MB>] [-retainmb <MB>] [-retainhours <hours>]");
+				System.out.println("                        [-mailbox <events>] [-mailboxmb <MB>] [-mailboxhours <hours>] [-direct] [-nio]");
 				System.out.println("  -host: override localhost to set the host to <hostName>.");
-				System.out.println("  -p: override default RMI Registry port 1099 to <port>.");
+				System.out.println("  -p: override default RMI Registry port 1099, or NIO port " + NioProtocol.DEFAULT_PORT + ", to <port>.");
+				System.out.println("  -q: override default per-subscriber queue depth " + DeliveryEngine.DEFAULT_QUEUE_DEPTH + " to <depth>.");
+				System.out.println("  -overflow: when a subscriber's queue is full drop the oldest event (default), block the publisher, or spill to disk.");
+				System.out.println("  -batch: override default " + DeliveryEngine.DEFAULT_MAX_BATCH + " most events sent to a subscriber in one call.");
+				System.out.println("  -linger: override default " + DeliveryEngine.DEFAULT_LINGER + "ms wait for more events to fill a batch.");
+				System.out.println("  -log: override default event log directory eventlog to <dir>, or -nolog to not persist events.");
+				System.out.println("  -fsync: force the log to disk on every write, about once a second (default), or leave it to the OS.");
+				System.out.println("  -segmentmb: override default " + (EventLog.DEFAULT_SEGMENT_BYTES >> 20) + "MB size of each log file, less than " + ((EventLog.MAX_SEGMENT_BYTES + 1) >> 20) + "MB.");
+				System.out.println("  -retainmb: override default " + (EventLog.DEFAULT_RETENTION_BYTES >> 20) + "MB total size of the log.");
+				System.out.println("  -retainhours: override default " + (EventLog.DEFAULT_RETENTION_MS / 3600000) + " hours a full log file is kept.");
+				System.out.println("  -mailbox: override default " + Mailbox.DEFAULT_MAX_EVENTS + " most events kept for an offline subscriber without the log.");
+				System.out.println("  -mailboxmb: override default " + (Mailbox.DEFAULT_MAX_BYTES >> 20) + "MB most encoded events kept for an offline subscriber without the log.");
+				System.out.println("  -mailboxhours: override default " + (Mailbox.DEFAULT_MAX_AGE / 3600000) + " hours an event is kept for an offline subscriber without the log.");
+				System.out.println("  -direct: encode events for delivery into direct buffers outside the heap.");
+				System.out.println("  -nio: serve clients over persistent non-blocking socket connections instead of RMI.");
 				System.exit(1);
 			}
 		}
 	}
 
+	/**
+	 * Helper method to read the overflow policy from the command line
+	 * 
+	 * @param arg one of drop, block or spill
+	 * @return the matching policy, or null if the argument was not recognized
+	 */
+	private DeliveryEngine.OverflowPolicy parseOverflow(String arg) {
+		if (arg.equalsIgnoreCase("drop")) return DeliveryEngine.OverflowPolicy.DROP_OLDEST;
+		if (arg.equalsIgnoreCase("block")) return DeliveryEngine.OverflowPolicy.BLOCK;
+		if (arg.equalsIgnoreCase("spill")) return DeliveryEngine.OverflowPolicy.SPILL_TO_DISK;
+		return null;
+	}
+
+	/**
+	 * Helper method to read the fsync policy from the command line
+	 * 
+	 * @param arg one of always, interval or never
+	 * @return the matching policy, or null if the argument was not recognized
+	 */
+	private EventLog.FsyncPolicy parseFsync(String arg) {
+		if (arg.equalsIgnoreCase("always")) return EventLog.FsyncPolicy.ALWAYS;
+		if (arg.equalsIgnoreCase("interval")) return EventLog.FsyncPolicy.INTERVAL;
+		if (arg.equalsIgnoreCase("never")) return EventLog.FsyncPolicy.NEVER;
+		return null;
+	}
+
 	/**
 	 * @param args port number and hostname to use
 	 * @throws RemoteException 
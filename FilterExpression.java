@@ -0,0 +1,376 @@
+package pubsub;
+//******************************************************************************
+//File:    FilterExpression.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * This class is a content-filter subscription made of keywords joined by AND, OR and NOT, with
+ * parentheses for grouping, such as "hockey AND (win OR medals)".  A keyword ending in * matches every
+ * keyword that starts with it, so "stock.*" matches "stock.3" and "stock.sells".  An Event's typed
+ * attributes can be tested with ==, !=, <, <=, > and >=, as in "stockId == 3 AND price < 120.0".  A number
+ * is compared as a number and anything else as a string, and only numbers can be compared with < or >.  A
+ * test with != also matches Events that do not have the attribute at all.  Operators are not case
+ * sensitive.  The expression is compiled into disjunctive normal form: a list of Clauses, each of which
+ * is a set of literals that must all be present and a set that must all be absent.  An Event matches the
+ * expression when it matches any one Clause, which is what lets the server's ContentMatcher count its
+ * way to a match instead of evaluating every expression.
+ *
+ * @author rob mccartney
+ *
+ */
+public class FilterExpression {
+
+	//Most clauses an expression may expand to before it is rejected as too complex
+	public static final int MAX_CLAUSES = 64;
+
+	private String text;
+	private ArrayList<Clause> clauses;
+
+	/**
+	 * Constructor that parses and compiles an expression
+	 *
+	 * @param _text the expression as the subscriber typed it
+	 * @throws IllegalArgumentException if the expression is not well formed or is too complex
+	 */
+	public FilterExpression(String _text) {
+		this.text = _text.trim();
+		Parser p = new Parser(tokenize(text));
+		Node root = p.parseOr();
+		if (p.pos != p.tokens.size())
+			throw new IllegalArgumentException("Unexpected '" + p.tokens.get(p.pos) + "' in filter " + text);
+		clauses = root.toDNF(false);
+		if (clauses.isEmpty())
+			throw new IllegalArgumentException("Filter " + text + " can never match");
+	}
+
+	/**
+	 * Whether a subscription string is a single plain keyword rather than an expression.  Plain keywords
+	 * are indexed directly, which is both the common case and the fastest one
+	 *
+	 * @param text subscription string
+	 * @return true if it has no operators, comparisons, parentheses, wildcards or spaces
+	 */
+	public static boolean isPlainKeyword(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '(' || c == ')' || c == '*' || c == '<' || c == '>' || c == '=' || Character.isWhitespace(c))
+				return false;
+		}
+		return !isOperator(text);
+	}
+
+	/**
+	 *
+	 * @return the expression as the subscriber typed it
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 *
+	 * @return the clauses of the expression, any one of which is a match
+	 */
+	public List<Clause> getClauses() {
+		return clauses;
+	}
+
+	/**
+	 * Override Object toString
+	 */
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * One keyword or keyword prefix of an expression, or one test of an attribute against a value
+	 */
+	public static class Literal {
+		public static final String EQ = "==", LT = "<", LE = "<=", GT = ">", GE = ">=";
+		//the keyword, or the name of the attribute for a test
+		public final String text;
+		public final boolean prefix;
+		//comparison of a test, or null for a keyword
+		public final String op;
+		//value of a test, either a Double or a String
+		public final Object value;
+
+		public Literal(String _text, boolean _prefix) {
+			this(_text, _prefix, null, null);
+		}
+
+		public Literal(String _attribute, String _op, Object _value) {
+			this(_attribute, false, _op, _value);
+		}
+
+		private Literal(String _text, boolean _prefix, String _op, Object _value) {
+			this.text = _text;
+			this.prefix = _prefix;
+			this.op = _op;
+			this.value = _value;
+		}
+
+		/**
+		 * @return true if this is a test of an attribute rather than a keyword
+		 */
+		public boolean isPredicate() {
+			return op != null;
+		}
+
+		public boolean equals(Object obj) {
+			Literal l = (Literal) obj;
+			return this.prefix == l.prefix && this.text.equals(l.text) && Objects.equals(this.op, l.op)
+					&& Objects.equals(this.value, l.value);
+		}
+
+		public int hashCode() {
+			return Objects.hash(text, prefix, op, value);
+		}
+
+		public String toString() {
+			if (isPredicate())
+				return text + " " + op + " " + value;
+			return prefix ? text + "*" : text;
+		}
+	}
+
+	/**
+	 * A conjunction of literals: an Event matches when it has every positive literal and none of the
+	 * negative ones
+	 */
+	public static class Clause {
+		public final LinkedHashSet<Literal> positive;
+		public final LinkedHashSet<Literal> negative;
+
+		Clause() {
+			positive = new LinkedHashSet<>();
+			negative = new LinkedHashSet<>();
+		}
+
+		/**
+		 * @return a new Clause requiring everything this one and the other one require, or null if
+		 * the two contradict each other
+		 */
+		Clause and(Clause other) {
+			Clause c = new Clause();
+			c.positive.addAll(this.positive);
+			c.positive.addAll(other.positive);
+			c.negative.addAll(this.negative);
+			c.negative.addAll(other.negative);
+			for (Literal l : c.positive)
+				if (c.negative.contains(l))
+					return null;
+			return c;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////
+	//  Parsing
+	////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Helper method to split an expression into keywords, operators, comparisons and parentheses.  A value
+	 * in double quotes is kept whole, so it can hold spaces
+	 */
+	private static ArrayList<String> tokenize(String text) {
+		ArrayList<String> tokens = new ArrayList<>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String comparison = comparisonAt(text, i);
+			if (c == '(' || c == ')' || comparison != null || Character.isWhitespace(c)) {
+				if (word.length() > 0)
+					tokens.add(word.toString());
+				word.setLength(0);
+				if (comparison != null) {
+					tokens.add(comparison);
+					i += comparison.length() - 1;
+				} else if (!Character.isWhitespace(c))
+					tokens.add(String.valueOf(c));
+			} else if (c == '"' && word.length() == 0) {
+				int end = text.indexOf('"', i + 1);
+				if (end < 0)
+					throw new IllegalArgumentException("Missing closing quote in filter");
+				word.append(text, i, end + 1);
+				i = end;
+			} else
+				word.append(c);
+		}
+		if (word.length() > 0)
+			tokens.add(word.toString());
+		return tokens;
+	}
+
+	/**
+	 * Helper method to find a comparison starting at index i of the text
+	 *
+	 * @return the comparison, or null if there is none
+	 */
+	private static String comparisonAt(String text, int i) {
+		char c = text.charAt(i);
+		boolean eqNext = i + 1 < text.length() && text.charAt(i + 1) == '=';
+		if (c == '<' || c == '>' || c == '=')
+			return eqNext ? text.substring(i, i + 2) : String.valueOf(c);
+		if (c == '!' && eqNext)
+			return "!=";
+		return null;
+	}
+
+	private static boolean isOperator(String token) {
+		return token.equalsIgnoreCase("AND") || token.equalsIgnoreCase("OR") || token.equalsIgnoreCase("NOT");
+	}
+
+	private static boolean isComparison(String token) {
+		return token.equals("=") || token.equals("==") || token.equals("!=") || token.equals("<")
+				|| token.equals("<=") || token.equals(">") || token.equals(">=");
+	}
+
+	/**
+	 * Helper method to read the value of a test: a number if it parses as one, otherwise a string with
+	 * any surrounding quotes taken off
+	 */
+	private static Object parseValue(String token) {
+		if (token.length() >= 2 && token.startsWith("\"") && token.endsWith("\""))
+			return token.substring(1, token.length() - 1);
+		try {
+			return Double.valueOf(token);
+		} catch (NumberFormatException e) {
+			return token;
+		}
+	}
+
+	/**
+	 * Recursive-descent parser.  NOT binds tightest, then AND, then OR
+	 */
+	private static class Parser {
+		ArrayList<String> tokens;
+		int pos = 0;
+
+		Parser(ArrayList<String> _tokens) {
+			this.tokens = _tokens;
+		}
+
+		Node parseOr() {
+			Node left = parseAnd();
+			while (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase("OR")) {
+				pos++;
+				left = new Node(Node.OR, left, parseAnd());
+			}
+			return left;
+		}
+
+		Node parseAnd() {
+			Node left = parseNot();
+			while (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase("AND")) {
+				pos++;
+				left = new Node(Node.AND, left, parseNot());
+			}
+			return left;
+		}
+
+		Node parseNot() {
+			if (pos >= tokens.size())
+				throw new IllegalArgumentException("Filter ends too soon");
+			String token = tokens.get(pos++);
+			if (token.equalsIgnoreCase("NOT"))
+				return new Node(Node.NOT, parseNot(), null);
+			if (token.equals("(")) {
+				Node inner = parseOr();
+				if (pos >= tokens.size() || !tokens.get(pos++).equals(")"))
+					throw new IllegalArgumentException("Missing ')' in filter");
+				return inner;
+			}
+			if (token.equals(")") || isOperator(token) || isComparison(token))
+				throw new IllegalArgumentException("Unexpected '" + token + "' in filter");
+			if (pos < tokens.size() && isComparison(tokens.get(pos)))
+				return parseTest(token);
+			if (token.endsWith("*"))
+				return new Node(new Literal(token.substring(0, token.length() - 1), true));
+			return new Node(new Literal(token, false));
+		}
+
+		/**
+		 * Parse the comparison and value that follow the name of an attribute.  != is read as NOT ==
+		 */
+		Node parseTest(String attribute) {
+			String op = tokens.get(pos++);
+			if (pos >= tokens.size())
+				throw new IllegalArgumentException("Filter ends too soon");
+			String token = tokens.get(pos++);
+			if (token.equals("(") || token.equals(")") || isOperator(token) || isComparison(token))
+				throw new IllegalArgumentException("Unexpected '" + token + "' in filter");
+			Object value = parseValue(token);
+			boolean negated = op.equals("!=");
+			if (op.equals("=") || negated)
+				op = Literal.EQ;
+			else if (!(value instanceof Double))
+				throw new IllegalArgumentException("Attribute " + attribute + " can only be compared to a number with " + op);
+			Node test = new Node(new Literal(attribute, op, value));
+			return negated ? new Node(Node.NOT, test, null) : test;
+		}
+	}
+
+	/**
+	 * A node of the parsed expression
+	 */
+	private static class Node {
+		static final int LITERAL = 0, AND = 1, OR = 2, NOT = 3;
+		int op;
+		Literal literal;
+		Node left, right;
+
+		Node(Literal _literal) {
+			this.op = LITERAL;
+			this.literal = _literal;
+		}
+
+		Node(int _op, Node _left, Node _right) {
+			this.op = _op;
+			this.left = _left;
+			this.right = _right;
+		}
+
+		/**
+		 * Expand this node into disjunctive normal form, pushing NOT down to the literals
+		 *
+		 * @param negated whether this node is under an odd number of NOTs
+		 * @return the clauses of the expansion
+		 */
+		ArrayList<Clause> toDNF(boolean negated) {
+			ArrayList<Clause> result = new ArrayList<>();
+			switch (op) {
+				case LITERAL:
+					Clause c = new Clause();
+					(negated ? c.negative : c.positive).add(literal);
+					result.add(c);
+					break;
+				case NOT:
+					return left.toDNF(!negated);
+				default:
+					ArrayList<Clause> l = left.toDNF(negated), r = right.toDNF(negated);
+					//NOT (a AND b) is (NOT a) OR (NOT b), and the other way round
+					if ((op == OR) != negated) {
+						result.addAll(l);
+						result.addAll(r);
+					} else {
+						for (Clause a : l) {
+							for (Clause b : r) {
+								Clause both = a.and(b);
+								if (both != null)
+									result.add(both);
+							}
+						}
+					}
+			}
+			if (result.size() > MAX_CLAUSES)
+				throw new IllegalArgumentException("Filter is too complex");
+			return result;
+		}
+	}
+}
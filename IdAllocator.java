@@ -0,0 +1,92 @@
+package pubsub;
+//******************************************************************************
+//File:    IdAllocator.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class issues the unique IDs the server gives to Topics, subscribers and Events.  Each kind of ID
+ * has its own atomic counter, so IDs are unique and increasing no matter how many threads ask for them,
+ * and issuing one never waits on a lock held for routing.  Event IDs can also be reserved as a block
+ * for a batch of Events.  The first ID of each kind is 1, since 0 means "no ID" throughout the system.
+ *
+ * @author rob mccartney
+ *
+ */
+public class IdAllocator {
+
+	private final AtomicInteger topicID = new AtomicInteger();
+	private final AtomicInteger subscriberID = new AtomicInteger();
+	private final AtomicInteger eventID = new AtomicInteger();
+
+	/**
+	 *
+	 * @return a new unique Topic ID
+	 */
+	public int nextTopicID() {
+		return topicID.incrementAndGet();
+	}
+
+	/**
+	 *
+	 * @return a new unique subscriber ID
+	 */
+	public int nextSubscriberID() {
+		return subscriberID.incrementAndGet();
+	}
+
+	/**
+	 *
+	 * @return a new unique Event ID
+	 */
+	public int nextEventID() {
+		return eventID.incrementAndGet();
+	}
+
+	/**
+	 * Reserve a contiguous block of Event IDs in one step
+	 *
+	 * @param n number of IDs to reserve
+	 * @return the first ID of the block, the other n-1 follow it in order
+	 */
+	public int reserveEventIDs(int n) {
+		return eventID.getAndAdd(n) + 1;
+	}
+
+	/**
+	 * Make sure no Event ID up to and including one already in use is issued again, such as one
+	 * recovered from the event log
+	 *
+	 * @param used an Event ID that is taken
+	 */
+	public void skipEventIDs(int used) {
+		skip(eventID, used);
+	}
+
+	/**
+	 * Make sure no Topic ID up to and including one already in use is issued again, such as one
+	 * recovered from the event log
+	 *
+	 * @param used a Topic ID that is taken
+	 */
+	public void skipTopicIDs(int used) {
+		skip(topicID, used);
+	}
+
+	/**
+	 * Make sure no subscriber ID up to and including one already in use is issued again
+	 *
+	 * @param used a subscriber ID that is taken
+	 */
+	public void skipSubscriberIDs(int used) {
+		skip(subscriberID, used);
+	}
+
+	private static void skip(AtomicInteger counter, int used) {
+		int current = counter.get();
+		while (current < used && !counter.compareAndSet(current, used))
+			current = counter.get();
+	}
+}
@@ -0,0 +1,351 @@
+package pubsub;
+//******************************************************************************
+//File:    IntSet.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class is a set of primitive ints, used for every set of subscriber IDs on the server.  It is a
+ * compressed bitmap in the style of a Roaring bitmap: the 32-bit space is split into chunks of 65536
+ * values by the high 16 bits, and each chunk holds its low 16 bits either as a sorted char array (when
+ * the chunk has few members) or as a 65536-bit bitmap (once it has more than ARRAY_MAX).  Since subscriber
+ * IDs are issued in order they cluster into a few chunks, so a set costs about 2 bytes per member when
+ * sparse and 1 bit per possible member when dense, with no boxing.  Union of two sets merges chunk by chunk.
+ *
+ * This class is not thread-safe.  Shared sets are either guarded by their owner or treated as immutable
+ * snapshots that are copied before being changed.
+ *
+ * @author rob mccartney
+ *
+ */
+public class IntSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	//Most members a chunk holds as a sorted array before it becomes a bitmap
+	public static final int ARRAY_MAX = 4096;
+	//Number of longs in the bitmap of one chunk (65536 bits)
+	private static final int BITMAP_WORDS = 1024;
+
+	//high 16 bits of each chunk, sorted
+	private char[] keys;
+	//the chunk for each key at the same index
+	private Chunk[] chunks;
+	//number of chunks in use
+	private int used;
+	//number of members in the whole set
+	private int size;
+
+	/**
+	 * Constructor for an empty set
+	 */
+	public IntSet() {
+		keys = new char[4];
+		chunks = new Chunk[4];
+	}
+
+	/**
+	 * Copy constructor
+	 *
+	 * @param other set to copy, which is left unchanged
+	 */
+	public IntSet(IntSet other) {
+		keys = Arrays.copyOf(other.keys, Math.max(4, other.used));
+		chunks = new Chunk[keys.length];
+		for (int i = 0; i < other.used; i++)
+			chunks[i] = new Chunk(other.chunks[i]);
+		used = other.used;
+		size = other.size;
+	}
+
+	/**
+	 *
+	 * @return number of members
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return true if the set has no members
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 *
+	 * @param n value to look for
+	 * @return true if n is a member
+	 */
+	public boolean contains(int n) {
+		int i = find((char) (n >>> 16));
+		return i >= 0 && chunks[i].contains((char) n);
+	}
+
+	/**
+	 * Add a member
+	 *
+	 * @param n value to add
+	 * @return true if n was not already a member
+	 */
+	public boolean add(int n) {
+		char key = (char) (n >>> 16);
+		int i = find(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertChunk(i, key, new Chunk());
+		}
+		if (chunks[i].add((char) n)) {
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove a member
+	 *
+	 * @param n value to remove
+	 * @return true if n was a member
+	 */
+	public boolean remove(int n) {
+		int i = find((char) (n >>> 16));
+		if (i < 0 || !chunks[i].remove((char) n))
+			return false;
+		size--;
+		if (chunks[i].card == 0) {
+			System.arraycopy(keys, i + 1, keys, i, used - i - 1);
+			System.arraycopy(chunks, i + 1, chunks, i, used - i - 1);
+			chunks[--used] = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Add every member of another set to this one (set union)
+	 *
+	 * @param other set whose members are added, which is left unchanged.  null is treated as empty
+	 * @return true if this set changed
+	 */
+	public boolean addAll(IntSet other) {
+		if (other == null || other.size == 0)
+			return false;
+		int before = size;
+		for (int j = 0; j < other.used; j++) {
+			int i = find(other.keys[j]);
+			if (i < 0) {
+				i = -i - 1;
+				insertChunk(i, other.keys[j], new Chunk(other.chunks[j]));
+				size += chunks[i].card;
+			} else {
+				int card = chunks[i].card;
+				chunks[i].or(other.chunks[j]);
+				size += chunks[i].card - card;
+			}
+		}
+		return size != before;
+	}
+
+	/**
+	 * Remove every member
+	 */
+	public void clear() {
+		Arrays.fill(chunks, 0, used, null);
+		used = 0;
+		size = 0;
+	}
+
+	/**
+	 *
+	 * @return every member in increasing order
+	 */
+	public int[] toArray() {
+		int[] all = new int[size];
+		int k = 0;
+		for (int i = 0; i < used; i++)
+			k = chunks[i].copyTo(all, k, keys[i] << 16);
+		return all;
+	}
+
+	/**
+	 * Override Object toString to list the members
+	 */
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	/**
+	 * Helper method to binary search the keys
+	 *
+	 * @param key high 16 bits to look for
+	 * @return index of the key, or (-(insertion point) - 1) if it is not there
+	 */
+	private int find(char key) {
+		return Arrays.binarySearch(keys, 0, used, key);
+	}
+
+	/**
+	 * Helper method to put a new chunk in at a given index, growing the arrays if needed
+	 */
+	private void insertChunk(int i, char key, Chunk chunk) {
+		if (used == keys.length) {
+			keys = Arrays.copyOf(keys, used * 2);
+			chunks = Arrays.copyOf(chunks, used * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, used - i);
+		System.arraycopy(chunks, i, chunks, i + 1, used - i);
+		keys[i] = key;
+		chunks[i] = chunk;
+		used++;
+	}
+
+	/**
+	 * The members of the set that share the same high 16 bits.  Held as a sorted array of the low
+	 * 16 bits until it has more than ARRAY_MAX members, then as a bitmap
+	 */
+	private static class Chunk implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+		char[] array;
+		long[] bits;
+		int card;
+
+		Chunk() {
+			array = new char[4];
+		}
+
+		Chunk(Chunk other) {
+			if (other.bits != null)
+				bits = other.bits.clone();
+			else
+				array = Arrays.copyOf(other.array, Math.max(4, other.card));
+			card = other.card;
+		}
+
+		boolean contains(char low) {
+			if (bits != null)
+				return (bits[low >>> 6] & (1L << low)) != 0;
+			return Arrays.binarySearch(array, 0, card, low) >= 0;
+		}
+
+		boolean add(char low) {
+			if (bits != null) {
+				long before = bits[low >>> 6];
+				bits[low >>> 6] |= 1L << low;
+				if (before == bits[low >>> 6])
+					return false;
+				card++;
+				return true;
+			}
+			int i = Arrays.binarySearch(array, 0, card, low);
+			if (i >= 0)
+				return false;
+			i = -i - 1;
+			if (card == ARRAY_MAX) {
+				toBitmap();
+				return add(low);
+			}
+			if (card == array.length)
+				array = Arrays.copyOf(array, Math.min(ARRAY_MAX, card * 2));
+			System.arraycopy(array, i, array, i + 1, card - i);
+			array[i] = low;
+			card++;
+			return true;
+		}
+
+		boolean remove(char low) {
+			if (bits != null) {
+				long before = bits[low >>> 6];
+				bits[low >>> 6] &= ~(1L << low);
+				if (before == bits[low >>> 6])
+					return false;
+				card--;
+				return true;
+			}
+			int i = Arrays.binarySearch(array, 0, card, low);
+			if (i < 0)
+				return false;
+			System.arraycopy(array, i + 1, array, i, card - i - 1);
+			card--;
+			return true;
+		}
+
+		/**
+		 * Union another chunk into this one
+		 */
+		void or(Chunk other) {
+			if (bits == null && other.bits == null && card + other.card <= ARRAY_MAX) {
+				mergeArrays(other);
+				return;
+			}
+			if (bits == null)
+				toBitmap();
+			if (other.bits != null) {
+				for (int w = 0; w < BITMAP_WORDS; w++)
+					bits[w] |= other.bits[w];
+				card = 0;
+				for (long word : bits)
+					card += Long.bitCount(word);
+			} else {
+				for (int i = 0; i < other.card; i++)
+					add(other.array[i]);
+			}
+		}
+
+		/**
+		 * Helper method to merge two sorted arrays whose union is known to fit in an array chunk
+		 */
+		private void mergeArrays(Chunk other) {
+			char[] merged = new char[Math.max(4, card + other.card)];
+			int i = 0, j = 0, k = 0;
+			while (i < card && j < other.card) {
+				if (array[i] < other.array[j])
+					merged[k++] = array[i++];
+				else if (array[i] > other.array[j])
+					merged[k++] = other.array[j++];
+				else {
+					merged[k++] = array[i++];
+					j++;
+				}
+			}
+			while (i < card)
+				merged[k++] = array[i++];
+			while (j < other.card)
+				merged[k++] = other.array[j++];
+			array = merged;
+			card = k;
+		}
+
+		private void toBitmap() {
+			bits = new long[BITMAP_WORDS];
+			for (int i = 0; i < card; i++)
+				bits[array[i] >>> 6] |= 1L << array[i];
+			array = null;
+		}
+
+		/**
+		 * Copy the members of this chunk, with the high bits put back, into dest starting at index k
+		 *
+		 * @return index after the last member copied
+		 */
+		int copyTo(int[] dest, int k, int high) {
+			if (bits == null) {
+				for (int i = 0; i < card; i++)
+					dest[k++] = high | array[i];
+				return k;
+			}
+			for (int w = 0; w < BITMAP_WORDS; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					dest[k++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return k;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package pubsub;
+//******************************************************************************
+//File:    KeywordIndex.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the server's content filter: it maps each keyword to the subscribers of that keyword,
+ * and each subscriber back to its keywords.  The subscribers of a keyword are an immutable IntSet that
+ * is swapped atomically whenever it changes, so a publish reads a consistent set with no lock while
+ * subscriptions change around it.  The reverse mapping lets a full unsubscribe touch only the keywords
+ * that client subscribed to.
+ *
+ * @author rob mccartney
+ *
+ */
+public class KeywordIndex {
+
+	//Maps from the keyword to a snapshot of the ID of the clients that receive those keyword events.
+	//Reads never lock; the map itself is the lock for swapping in a new snapshot
+	private ConcurrentHashMap<String, IntSet> subscribers;
+	//Maps from the ID of a client to its keywords.  Each set is also the lock for changes made
+	//on behalf of that client
+	private ConcurrentHashMap<Integer, HashSet<String>> keywords;
+
+	/**
+	 * Constructor
+	 */
+	public KeywordIndex() {
+		subscribers = new ConcurrentHashMap<>();
+		keywords = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Subscribe a client to a keyword
+	 *
+	 * @param subID unique ID of the client
+	 * @param keyword keyword to subscribe to
+	 * @return true if the client was not already subscribed to it
+	 */
+	public boolean add(int subID, final String keyword) {
+		while (true) {
+			HashSet<String> mine = keywords.get(subID);
+			if (mine == null) {
+				keywords.putIfAbsent(subID, new HashSet<String>());
+				continue;
+			}
+			synchronized (mine) {
+				//the client was fully unsubscribed while we waited, so start again with a new set
+				if (keywords.get(subID) != mine)
+					continue;
+				if (!mine.add(keyword))
+					return false;
+				synchronized (subscribers) {
+					IntSet current = subscribers.get(keyword);
+					IntSet next = (current == null) ? new IntSet() : new IntSet(current);
+					next.add(subID);
+					subscribers.put(keyword, next);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribe a client from a keyword
+	 *
+	 * @param subID unique ID of the client
+	 * @param keyword keyword to unsubscribe from
+	 * @return true if the client was subscribed to it
+	 */
+	public boolean remove(int subID, String keyword) {
+		HashSet<String> mine = keywords.get(subID);
+		if (mine == null)
+			return false;
+		synchronized (mine) {
+			if (!mine.remove(keyword))
+				return false;
+			drop(subID, keyword);
+			return true;
+		}
+	}
+
+	/**
+	 * Unsubscribe a client from every keyword it is subscribed to
+	 *
+	 * @param subID unique ID of the client
+	 * @return number of keywords the client was unsubscribed from
+	 */
+	public int removeAll(int subID) {
+		HashSet<String> mine = keywords.remove(subID);
+		if (mine == null)
+			return 0;
+		synchronized (mine) {
+			for (String keyword : mine)
+				drop(subID, keyword);
+			int removed = mine.size();
+			mine.clear();
+			return removed;
+		}
+	}
+
+	/**
+	 *
+	 * @param keyword a keyword of a published Event
+	 * @return snapshot of the subscribers to that keyword, or null if there are none. Must not be modified
+	 */
+	public IntSet get(String keyword) {
+		return subscribers.get(keyword);
+	}
+
+	/**
+	 *
+	 * @return every keyword that has at least one subscriber
+	 */
+	public List<String> keywords() {
+		return new ArrayList<>(subscribers.keySet());
+	}
+
+	/**
+	 * Helper method to swap in a snapshot of a keyword's subscribers without the given client, removing
+	 * the keyword altogether once nobody subscribes to it
+	 */
+	private void drop(int subID, String keyword) {
+		synchronized (subscribers) {
+			IntSet current = subscribers.get(keyword);
+			if (current == null || !current.contains(subID))
+				return;
+			IntSet next = new IntSet(current);
+			next.remove(subID);
+			if (next.isEmpty())
+				subscribers.remove(keyword);
+			else
+				subscribers.put(keyword, next);
+		}
+	}
+}
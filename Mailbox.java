@@ -0,0 +1,165 @@
+package pubsub;
+//******************************************************************************
+//File:    Mailbox.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * This class holds the Events missed by one subscriber while it is offline.  Only references to the
+ * Events are kept, so an Event shared by many offline subscribers is stored once.  A Mailbox is capped
+ * in the number of Events it holds, in their size once encoded, and in how long it holds them, dropping
+ * the oldest first, so a client that never comes back cannot grow the server without limit.  When the client says hello again
+ * the whole Mailbox is drained at once, in the order the Events were published.
+ *
+ * @author rob mccartney
+ *
+ */
+public class Mailbox {
+
+	//Default most Events a Mailbox holds before dropping the oldest
+	public static final int DEFAULT_MAX_EVENTS = 10000;
+	//Default longest time in milliseconds an Event waits in a Mailbox before it is dropped (one day)
+	public static final long DEFAULT_MAX_AGE = 24L * 60 * 60 * 1000;
+	//Default most bytes of encoded Events a Mailbox holds before dropping the oldest
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private ArrayDeque<Event> events;
+	//time each Event in events was added, in the same order
+	private ArrayDeque<Long> added;
+	//encoded size of each Event in events, in the same order, and their total
+	private ArrayDeque<Integer> sizes;
+	private long bytes = 0;
+	private int maxEvents;
+	private long maxAge;
+	private long maxBytes;
+	//number of Events dropped because of either cap
+	private int dropped = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param _maxEvents most Events this Mailbox holds
+	 * @param _maxAge longest time in milliseconds an Event is held
+	 * @param _maxBytes most bytes of encoded Events this Mailbox holds
+	 */
+	public Mailbox(int _maxEvents, long _maxAge, long _maxBytes) {
+		this.maxEvents = _maxEvents;
+		this.maxAge = _maxAge;
+		this.maxBytes = _maxBytes;
+		events = new ArrayDeque<>();
+		added = new ArrayDeque<>();
+		sizes = new ArrayDeque<>();
+	}
+
+	/**
+	 * Constructor using the default caps
+	 */
+	public Mailbox() {
+		this(DEFAULT_MAX_EVENTS, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Keep an Event for the subscriber, dropping the oldest ones if a cap is reached.  An Event bigger
+	 * than the whole byte cap is dropped itself
+	 *
+	 * @param event Event the subscriber missed
+	 */
+	public synchronized void add(Event event) {
+		long now = System.currentTimeMillis();
+		expire(now);
+		int size = sizeOf(event);
+		if (size > maxBytes) {
+			dropped++;
+			return;
+		}
+		while (!events.isEmpty() && (events.size() >= maxEvents || bytes + size > maxBytes))
+			dropOldest();
+		events.add(event);
+		added.add(now);
+		sizes.add(size);
+		bytes += size;
+	}
+
+	/**
+	 * Take every Event out of the Mailbox.  Events can arrive here out of order when some were retried
+	 * first, so they are sorted back into the order they were published
+	 *
+	 * @return the Events that have not expired, oldest first
+	 */
+	public synchronized ArrayList<Event> drain() {
+		expire(System.currentTimeMillis());
+		ArrayList<Event> missed = new ArrayList<>(events);
+		events.clear();
+		added.clear();
+		sizes.clear();
+		bytes = 0;
+		Collections.sort(missed, new Comparator<Event>() {
+			public int compare(Event a, Event b) {
+				return Integer.compare(a.getID(), b.getID());
+			}
+		});
+		return missed;
+	}
+
+	/**
+	 *
+	 * @return number of Events waiting
+	 */
+	public synchronized int size() {
+		return events.size();
+	}
+
+	/**
+	 *
+	 * @return bytes of encoded Events waiting
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return number of Events that were dropped because a cap was reached
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Helper method to drop every Event at the front that has been held longer than the age cap
+	 *
+	 * @param now current time in milliseconds
+	 */
+	private void expire(long now) {
+		while (!added.isEmpty() && now - added.peek() > maxAge)
+			dropOldest();
+	}
+
+	/**
+	 * Helper method to drop the Event at the front
+	 */
+	private void dropOldest() {
+		events.poll();
+		added.poll();
+		bytes -= sizes.poll();
+		dropped++;
+	}
+
+	/**
+	 * Helper method to find how many bytes an Event takes in the format of EventCodec
+	 */
+	private static int sizeOf(Event event) {
+		try {
+			return EventCodec.encode(event).length;
+		} catch (IOException e) {
+			System.err.println("Could not encode Event " + event.getID() + ": " + e.getMessage());
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package pubsub;
+//******************************************************************************
+//File:    NioClient.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pubsub.interfaces.EventManInterface;
+import pubsub.interfaces.Subscriber;
+
+/**
+ * This class is the client's end of the NIO transport, standing in for the RMI stub of the EventManager.
+ * It keeps one connection to the NioServer and sends each call over it as a frame tagged with a request
+ * ID, so calls made from many threads at once are pipelined over the one connection and each thread waits
+ * only for its own reply.  A reader thread matches replies to the calls waiting on them, and hands the
+ * events the server sends to the Subscriber that said hello, on a thread of its own and in the order they
+ * arrived, answering each delivery once the Subscriber has the events so that the server sends them again
+ * if it does not.  A lost connection is opened again by the next call, so the agent's probe of the server
+ * reconnects it.  Saving this with an agent saves only the server's address, and loading it connects again.
+ *
+ * @author rob mccartney
+ *
+ */
+public class NioClient implements EventManInterface, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String host;
+	private int port;
+	//the open connection, replaced by a new one the first call after it is lost
+	private transient volatile Connection conn;
+	private transient AtomicInteger nextRequest;
+	private transient ExecutorService notifier;
+	private transient volatile Subscriber subscriber;
+	private transient volatile boolean shutdown;
+
+	/**
+	 * Constructor that connects to the server
+	 *
+	 * @param _host of the server
+	 * @param _port the server's NIO transport listens on
+	 * @throws IOException if the server cannot be reached
+	 */
+	public NioClient(String _host, int _port) throws IOException {
+		this.host = _host;
+		this.port = _port;
+		init();
+	}
+
+	/**
+	 * Restores a client saved with an agent, connecting to the server it was connected to
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	/**
+	 * Helper method to start the thread running notifications and open the first connection
+	 */
+	private void init() throws IOException {
+		nextRequest = new AtomicInteger();
+		notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "nio-client-notify");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		conn = new Connection();
+	}
+
+	/**
+	 * Helper method to get an open connection, connecting again if the last one was lost
+	 *
+	 * @return the open connection
+	 * @throws ConnectException if the server cannot be reached
+	 */
+	private synchronized Connection connection() throws ConnectException {
+		if (shutdown)
+			throw new ConnectException("Client closed");
+		if (!conn.closed)
+			return conn;
+		try {
+			conn = new Connection();
+			return conn;
+		} catch (IOException e) {
+			throw new ConnectException("Cannot reach server at " + host + ":" + port, e);
+		}
+	}
+
+	/**
+	 * Close the connection for good, failing every call still waiting
+	 */
+	public void close() {
+		shutdown = true;
+		conn.close();
+		notifier.shutdown();
+	}
+
+	/**
+	 * One connection to the server and the calls waiting for a reply over it
+	 */
+	private class Connection implements Runnable {
+		private SocketChannel channel;
+		//calls waiting for their reply, by request ID
+		private ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<>();
+		//guards writing to the channel, so frames from different threads are never interleaved
+		private Object writeLock = new Object();
+		private volatile boolean closed;
+
+		/**
+		 * Constructor that opens the connection and starts the thread reading it
+		 */
+		Connection() throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+			Thread reader = new Thread(this, "nio-client-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Close the connection, failing every call still waiting on it
+		 */
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) { /* closing anyway */ }
+			for (Call call : calls.values())
+				call.fail("Connection to server closed", false);
+			calls.clear();
+		}
+
+		/**
+		 * The reader thread: read frames until the connection closes, completing calls and passing on events
+		 */
+		public void run() {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			try {
+				while (true) {
+					length.clear();
+					readFully(length);
+					int n = length.getInt(0);
+					if (n < NioProtocol.HEADER - 4 || n > NioProtocol.MAX_FRAME)
+						throw new IOException("NIO frame of " + n + " bytes refused");
+					ByteBuffer frame = ByteBuffer.allocate(n);
+					readFully(frame);
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+					byte kind = in.readByte();
+					int requestID = in.readInt();
+					if (kind == NioProtocol.NOTIFY) {
+						deliver(this, requestID, NioProtocol.readEvents(in));
+						continue;
+					}
+					Call call = calls.remove(requestID);
+					if (call == null)
+						continue;
+					if (kind == NioProtocol.REPLY)
+						call.complete(in);
+					else
+						call.fail(EventCodec.readString(in), true);
+				}
+			} catch (IOException e) {
+				if (!closed)
+					System.err.println("Connection to server lost: " + e.getMessage());
+			} finally {
+				close();
+			}
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException("Server closed the connection");
+			}
+		}
+
+		/**
+		 * Send a call and wait for its reply
+		 */
+		DataInputStream invoke(ByteBuffer frame, int requestID) throws RemoteException {
+			Call call = new Call();
+			calls.put(requestID, call);
+			if (closed) {
+				calls.remove(requestID);
+				throw new ConnectException("Connection to server closed");
+			}
+			try {
+				write(frame);
+			} catch (IOException e) {
+				calls.remove(requestID);
+				close();
+				throw new ConnectException("Connection to server lost", e);
+			}
+			return call.await();
+		}
+
+		/**
+		 * Tell the server whether the Subscriber took the events of a delivery.  Nothing is sent if the
+		 * connection has closed, since the server then sends the events again anyway
+		 *
+		 * @param deliveryID of the NOTIFY frame being answered
+		 * @param error why the events were not taken, or null if they were
+		 */
+		void answer(int deliveryID, String error) {
+			if (closed)
+				return;
+			NioProtocol.FrameOutput out = NioProtocol.frame((error == null) ? NioProtocol.REPLY : NioProtocol.FAILURE, deliveryID);
+			try {
+				if (error != null)
+					EventCodec.writeString(out, error);
+				write(NioProtocol.finish(out));
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void write(ByteBuffer frame) throws IOException {
+			synchronized (writeLock) {
+				while (frame.hasRemaining())
+					channel.write(frame);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to hand events to the Subscriber without holding up the replies behind them, then
+	 * answer the delivery.  Events that arrive before any Subscriber has said hello are refused, so the
+	 * server keeps them and tries again
+	 *
+	 * @param from connection the events arrived on, which the answer goes back over
+	 * @param deliveryID of the NOTIFY frame, or 0 if the server wants no answer
+	 * @param events sent by the server, in order
+	 */
+	private void deliver(final Connection from, final int deliveryID, final List<Event> events) {
+		notifier.execute(new Runnable() {
+			public void run() {
+				Subscriber sub = subscriber;
+				String error = null;
+				if (sub == null)
+					error = "No subscriber to take the events";
+				else {
+					try {
+						if (events.size() == 1)
+							sub.notify(events.get(0));
+						else
+							sub.notifyBatch(events);
+					} catch (RemoteException e) {
+						error = "Subscriber error: " + e.getMessage();
+						System.err.println(error);
+					}
+				}
+				if (deliveryID != 0)
+					from.answer(deliveryID, error);
+			}
+		});
+	}
+
+	/**
+	 * Helper method to start the frame of a call
+	 *
+	 * @param method code from NioProtocol
+	 * @return the frame, to write the arguments to and pass to invoke()
+	 */
+	private NioProtocol.FrameOutput request(byte method) throws IOException {
+		NioProtocol.FrameOutput out = NioProtocol.frame(NioProtocol.CALL, nextRequest.incrementAndGet());
+		out.writeByte(method);
+		return out;
+	}
+
+	/**
+	 * Helper method to send a call and wait for its reply, over a new connection if the last one was lost
+	 *
+	 * @param out frame started by request()
+	 * @return the result of the call
+	 * @throws RemoteException if the server cannot be reached, or ServerException if the call failed on it
+	 */
+	private DataInputStream invoke(NioProtocol.FrameOutput out) throws RemoteException {
+		ByteBuffer frame = NioProtocol.finish(out);
+		return connection().invoke(frame, frame.getInt(5));
+	}
+
+	private RemoteException failure(IOException e) {
+		if (e instanceof RemoteException)
+			return (RemoteException) e;
+		return new RemoteException("Malformed reply from server", e);
+	}
+
+	/**
+	 * A call waiting for its reply
+	 */
+	private static class Call {
+		private DataInputStream result;
+		private String error;
+		private boolean serverSide;
+
+		synchronized void complete(DataInputStream _result) {
+			this.result = _result;
+			notifyAll();
+		}
+
+		/**
+		 * @param _error message
+		 * @param _serverSide true if the server was reached and failed the call, false if the connection was lost
+		 */
+		synchronized void fail(String _error, boolean _serverSide) {
+			this.error = (_error == null) ? "Call failed on server" : _error;
+			this.serverSide = _serverSide;
+			notifyAll();
+		}
+
+		synchronized DataInputStream await() throws RemoteException {
+			while (result == null && error == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("Interrupted waiting for server");
+				}
+			}
+			if (error != null)
+				throw serverSide ? new ServerException(error) : new ConnectException(error);
+			return result;
+		}
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public void ping() throws RemoteException {
+		try {
+			invoke(request(NioProtocol.PING));
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public int sayHello(Subscriber sub) throws RemoteException {
+		this.subscriber = sub;
+		try {
+			return invoke(request(NioProtocol.SAY_HELLO)).readInt();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public int sayHello(Integer ID, Subscriber sub) throws RemoteException {
+		this.subscriber = sub;
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.SAY_HELLO_AGAIN);
+			out.writeInt(ID);
+			return invoke(out).readInt();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public int addTopic(Topic topic) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.ADD_TOPIC);
+			topic.write(out);
+			return invoke(out).readInt();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addSubscriber(Integer subID, Topic t) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.ADD_SUBSCRIBER);
+			out.writeInt(subID);
+			t.write(out);
+			return invoke(out).readBoolean();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addSubscriber(Integer subID, Topic t, long fromOffset) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.ADD_SUBSCRIBER_FROM);
+			out.writeInt(subID);
+			t.write(out);
+			out.writeLong(fromOffset);
+			return invoke(out).readBoolean();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public long getCommittedOffset(Integer subID, Topic t) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.GET_COMMITTED_OFFSET);
+			out.writeInt(subID);
+			t.write(out);
+			return invoke(out).readLong();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addSubscriber(Integer subID, String keyword) throws RemoteException {
+		return call(NioProtocol.ADD_KEYWORD_SUBSCRIBER, subID, keyword);
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean addPatternSubscriber(Integer subID, String pattern) throws RemoteException {
+		return call(NioProtocol.ADD_PATTERN_SUBSCRIBER, subID, pattern);
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean removePatternSubscriber(Integer subID, String pattern) throws RemoteException {
+		return call(NioProtocol.REMOVE_PATTERN_SUBSCRIBER, subID, pattern);
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean removeSubscriber(Integer subID) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.REMOVE_SUBSCRIBER);
+			out.writeInt(subID);
+			return invoke(out).readBoolean();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean removeSubscriber(Integer subID, Topic t) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.REMOVE_TOPIC_SUBSCRIBER);
+			out.writeInt(subID);
+			t.write(out);
+			return invoke(out).readBoolean();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public boolean removeSubscriber(Integer subID, String keyword) throws RemoteException {
+		return call(NioProtocol.REMOVE_KEYWORD_SUBSCRIBER, subID, keyword);
+	}
+
+	/**
+	 * Helper method for the calls that take a subscriber ID and a string and answer yes or no
+	 */
+	private boolean call(byte method, Integer subID, String s) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(method);
+			out.writeInt(subID);
+			EventCodec.writeString(out, s);
+			return invoke(out).readBoolean();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public int publish(Event event) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.PUBLISH);
+			event.write(out);
+			return invoke(out).readInt();
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public int[] publishBatch(List<Event> events) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.PUBLISH_BATCH);
+			NioProtocol.writeEvents(out, events);
+			DataInputStream in = invoke(out);
+			int[] ids = new int[in.readInt()];
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = in.readInt();
+			return ids;
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public ArrayList<Topic> getTopics() throws RemoteException {
+		try {
+			DataInputStream in = invoke(request(NioProtocol.GET_TOPICS));
+			int n = in.readInt();
+			ArrayList<Topic> topics = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				topics.add(NioProtocol.readTopic(in));
+			return topics;
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public void unbind(Integer ID) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.UNBIND);
+			out.writeInt(ID);
+			invoke(out);
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * see interface javadoc
+	 */
+	public void unbindPermanent(Integer ID) throws RemoteException {
+		try {
+			NioProtocol.FrameOutput out = request(NioProtocol.UNBIND_PERMANENT);
+			out.writeInt(ID);
+			invoke(out);
+		} catch (IOException e) { throw failure(e); }
+	}
+
+	/**
+	 * Subscribers cannot be handed across the NIO transport, since a client can only reach the server
+	 *
+	 * @return null always
+	 */
+	public Subscriber getSubscriber(Integer ID) throws RemoteException {
+		return null;
+	}
+
+	public String toString() {
+		return "NioClient[" + host + ":" + port + "]";
+	}
+}
@@ -0,0 +1,133 @@
+package pubsub;
+//******************************************************************************
+//File:    NioProtocol.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the wire format of the NIO transport.  A client keeps one connection open to the server
+ * and every message either way is a frame of [int length][byte kind][int requestID][payload], where the
+ * length counts everything after itself.  A client sends a CALL frame naming an EventManInterface method,
+ * and may send more before the first is answered; the server answers each with a REPLY or FAILURE frame
+ * carrying the same request ID, in whatever order they finish.  The server sends events to a subscriber
+ * in NOTIFY frames whose request ID is a delivery ID, and the client answers each with a REPLY once its
+ * subscriber has the events or a FAILURE if it could not take them.  Arguments, results and events are
+ * written in the format of EventCodec.
+ *
+ * @author rob mccartney
+ *
+ */
+final class NioProtocol {
+
+	//Port the NIO server listens on when none is given
+	static final int DEFAULT_PORT = 7099;
+	//Largest frame either side accepts
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+	//Bytes before the payload of a frame
+	static final int HEADER = 4 + 1 + 4;
+
+	//Kinds of frame
+	static final byte CALL = 1;
+	static final byte REPLY = 2;
+	static final byte FAILURE = 3;
+	static final byte NOTIFY = 4;
+
+	//Methods a CALL frame can name
+	static final byte SAY_HELLO = 1;
+	static final byte SAY_HELLO_AGAIN = 2;
+	static final byte ADD_TOPIC = 3;
+	static final byte ADD_SUBSCRIBER = 4;
+	static final byte ADD_SUBSCRIBER_FROM = 5;
+	static final byte GET_COMMITTED_OFFSET = 6;
+	static final byte ADD_KEYWORD_SUBSCRIBER = 7;
+	static final byte ADD_PATTERN_SUBSCRIBER = 8;
+	static final byte REMOVE_PATTERN_SUBSCRIBER = 9;
+	static final byte REMOVE_SUBSCRIBER = 10;
+	static final byte REMOVE_TOPIC_SUBSCRIBER = 11;
+	static final byte REMOVE_KEYWORD_SUBSCRIBER = 12;
+	static final byte PUBLISH = 13;
+	static final byte PUBLISH_BATCH = 14;
+	static final byte GET_TOPICS = 15;
+	static final byte UNBIND = 16;
+	static final byte UNBIND_PERMANENT = 17;
+	static final byte PING = 18;
+
+	private NioProtocol() {}
+
+	/**
+	 * Start a frame whose payload is written to the returned stream
+	 *
+	 * @param kind of frame
+	 * @param requestID the frame belongs to
+	 * @return stream to write the payload to, then pass to finish()
+	 */
+	static FrameOutput frame(byte kind, int requestID) {
+		FrameOutput out = new FrameOutput();
+		try {
+			out.writeInt(0);
+			out.writeByte(kind);
+			out.writeInt(requestID);
+		} catch (IOException e) { /* never, since the bytes are kept in memory */ }
+		return out;
+	}
+
+	/**
+	 * Fill in the length of a frame started by frame()
+	 *
+	 * @param out the frame with its payload written
+	 * @return the whole frame, ready to write to a channel
+	 */
+	static ByteBuffer finish(FrameOutput out) {
+		ByteBuffer frame = ByteBuffer.wrap(out.bytes());
+		frame.putInt(0, frame.remaining() - 4);
+		return frame;
+	}
+
+	static void writeEvents(DataOutput out, List<Event> events) throws IOException {
+		out.writeInt(events.size());
+		for (Event e : events)
+			e.write(out);
+	}
+
+	static List<Event> readEvents(DataInput in) throws IOException {
+		int n = in.readInt();
+		List<Event> events = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			events.add(readEvent(in));
+		return events;
+	}
+
+	static Event readEvent(DataInput in) throws IOException {
+		Event event = new Event();
+		event.read(in);
+		return event;
+	}
+
+	static Topic readTopic(DataInput in) throws IOException {
+		Topic topic = new Topic();
+		topic.read(in);
+		return topic;
+	}
+
+	/**
+	 * A frame being written, kept in memory until it is finished
+	 */
+	static class FrameOutput extends DataOutputStream {
+		FrameOutput() {
+			super(new ByteArrayOutputStream(128));
+		}
+
+		byte[] bytes() {
+			return ((ByteArrayOutputStream) out).toByteArray();
+		}
+	}
+}
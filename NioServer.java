@@ -0,0 +1,667 @@
+package pubsub;
+//******************************************************************************
+//File:    NioServer.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pubsub.interfaces.Subscriber;
+
+/**
+ * This class serves the EventManager over plain sockets instead of RMI.  One selector thread accepts
+ * every connection and does all of the reading and writing without blocking, so the server needs no
+ * thread per client.  Each client keeps one connection open and pipelines its calls over it in the frames
+ * of NioProtocol.  The calls from one connection run in the order they arrived, on a small pool of worker
+ * threads shared by every connection, and their replies are queued back to the selector.  A client that
+ * says hello over a connection is given a Subscriber that sends its events back over the same connection,
+ * straight from the buffer each event was encoded into once.  Each NOTIFY frame carries a delivery ID that
+ * the client answers with a REPLY once its subscriber has the events, or a FAILURE if it has none, and only
+ * then does the delivery count, so the delivery engine never waits on the socket and never acknowledges
+ * events a client did not take.
+ *
+ * @author rob mccartney
+ *
+ */
+public class NioServer implements Runnable {
+
+	//Worker threads running calls
+	public static final int WORKERS = 8;
+	//Longest a client has to confirm it took a batch of events before the delivery counts as failed
+	public static final long SEND_TIMEOUT = 30000;
+	//Most bytes waiting to be written to one connection before a delivery to it counts as failed
+	public static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+	//How often in milliseconds the selector thread looks for deliveries past SEND_TIMEOUT
+	private static final long TIMEOUT_CHECK = 1000;
+
+	private EventManager manager;
+	private Selector selector;
+	private ServerSocketChannel acceptor;
+	private ExecutorService workers;
+	//tells deliveries how the client answered them, never tied up by a call that blocks in the manager
+	private ExecutorService receipts;
+	//connections with frames waiting to be written, for the selector thread to pick up
+	private ConcurrentLinkedQueue<Connection> flushing;
+	private volatile boolean running;
+
+	/**
+	 * Constructor that opens the listening socket
+	 *
+	 * @param _manager that the calls are made on
+	 * @param host address to listen on
+	 * @param port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	public NioServer(EventManager _manager, String host, int port) throws IOException {
+		this.manager = _manager;
+		this.flushing = new ConcurrentLinkedQueue<>();
+		this.selector = Selector.open();
+		this.acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(host, port));
+		acceptor.configureBlocking(false);
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		final AtomicInteger count = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "nio-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.receipts = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "nio-receipts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Start the selector thread
+	 */
+	public void start() {
+		running = true;
+		Thread t = new Thread(this, "nio-selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Stop accepting calls and close every connection
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 *
+	 * @return the port being listened on
+	 */
+	public int getPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	/**
+	 * The selector loop, which is the only thread that touches the channels
+	 */
+	public void run() {
+		long lastCheck = System.currentTimeMillis();
+		while (running) {
+			try {
+				selector.select(TIMEOUT_CHECK);
+			} catch (IOException e) {
+				System.err.println("NIO selector error: " + e.getMessage());
+				break;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection conn = (Connection) key.attachment();
+				if (key.isReadable())
+					conn.read();
+				if (key.isValid() && key.isWritable())
+					conn.flush();
+			}
+			Connection conn;
+			while ((conn = flushing.poll()) != null)
+				conn.flush();
+			long now = System.currentTimeMillis();
+			if (now - lastCheck >= TIMEOUT_CHECK) {
+				for (SelectionKey key : selector.keys())
+					if (key.attachment() instanceof Connection)
+						((Connection) key.attachment()).expire(now);
+				lastCheck = now;
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection)
+				((Connection) key.attachment()).close();
+		}
+		try {
+			acceptor.close();
+			selector.close();
+		} catch (IOException e) { /* closing anyway */ }
+		workers.shutdown();
+		receipts.shutdown();
+	}
+
+	/**
+	 * Helper method to take a new client connection
+	 */
+	private void accept() {
+		try {
+			SocketChannel channel = acceptor.accept();
+			if (channel == null)
+				return;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection conn = new Connection(channel);
+			conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+		} catch (IOException e) {
+			System.err.println("NIO accept error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * One client's connection: the frames read from it waiting to run, and the frames waiting to be
+	 * written to it
+	 */
+	private class Connection implements Runnable {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(BufferPool.MIN_SIZE * 16);
+		//calls in the order they arrived, and whether a worker is running them, both guarded by calls
+		private ArrayDeque<byte[]> calls = new ArrayDeque<>();
+		private boolean scheduled;
+		//frames to write and their total size, guarded by this
+		private ArrayDeque<Outgoing> out = new ArrayDeque<>();
+		private long queuedBytes = 0;
+		//deliveries the client has not yet confirmed by delivery ID, and the last ID given, guarded by this
+		private HashMap<Integer, Delivery> unconfirmed = new HashMap<>();
+		private int nextDelivery = 0;
+		private volatile boolean closed;
+		//the Subscriber handed to the manager for the client on the other end, and the ID it has
+		private ConnectionSubscriber subscriber;
+		private volatile Integer subscriberID;
+
+		Connection(SocketChannel _channel) {
+			this.channel = _channel;
+			this.subscriber = new ConnectionSubscriber(this);
+		}
+
+		/**
+		 * Read what has arrived and queue every whole frame in it to run
+		 */
+		void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			in.flip();
+			boolean schedule = false;
+			while (in.remaining() >= 4) {
+				int length = in.getInt(in.position());
+				if (length < NioProtocol.HEADER - 4 || length > NioProtocol.MAX_FRAME) {
+					System.err.println("NIO frame of " + length + " bytes refused");
+					close();
+					return;
+				}
+				if (in.remaining() < 4 + length)
+					break;
+				in.getInt();
+				byte[] frame = new byte[length];
+				in.get(frame);
+				if (frame[0] == NioProtocol.REPLY || frame[0] == NioProtocol.FAILURE) {
+					//an answer to a delivery, which must not wait behind calls that may block
+					confirm(ByteBuffer.wrap(frame).getInt(1), frame[0] == NioProtocol.REPLY);
+					continue;
+				}
+				synchronized (calls) {
+					calls.add(frame);
+					if (!scheduled)
+						schedule = scheduled = true;
+				}
+			}
+			if (in.position() == 0 && in.limit() == in.capacity()) {
+				//frame bigger than the buffer, so grow it to fit
+				ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(0));
+				bigger.put(in);
+				in = bigger;
+			} else {
+				in.compact();
+			}
+			if (schedule)
+				workers.execute(this);
+		}
+
+		/**
+		 * Run the calls queued so far, one at a time and in order, on a worker thread
+		 */
+		public void run() {
+			while (true) {
+				byte[] frame;
+				synchronized (calls) {
+					frame = calls.poll();
+					if (frame == null) {
+						scheduled = false;
+						return;
+					}
+				}
+				send(new Outgoing(call(this, frame), null));
+			}
+		}
+
+		/**
+		 * Queue a frame to be written by the selector thread
+		 */
+		void send(Outgoing frame) {
+			synchronized (this) {
+				if (closed) {
+					frame.done();
+					return;
+				}
+				out.add(frame);
+				queuedBytes += frame.size;
+			}
+			flushing.offer(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Queue a NOTIFY frame to be written, and remember the delivery until the client answers it
+		 *
+		 * @param events to send, whose encodings are held until the frame is written
+		 * @param receipt told whether the client took the events, or null if nobody needs to know
+		 * @throws RemoteException if the connection is closed or too far behind to take more
+		 */
+		void deliver(List<Event> events, DeliveryEngine.Receipt receipt) throws RemoteException {
+			ByteBuffer[] parts = new ByteBuffer[events.size() + 1];
+			List<Event> held = new ArrayList<>(events.size());
+			int length = NioProtocol.HEADER - 4 + 4;
+			try {
+				for (int i = 0; i < events.size(); i++) {
+					Event e = events.get(i);
+					SharedBuffer buffer = e.retain();
+					held.add(e);
+					parts[i + 1] = buffer.view();
+					length += buffer.size();
+				}
+			} catch (IOException ex) {
+				for (Event e : held)
+					e.release();
+				throw new RemoteException("Event could not be encoded", ex);
+			}
+			ByteBuffer header = ByteBuffer.allocate(NioProtocol.HEADER + 4);
+			parts[0] = header;
+			Outgoing frame = new Outgoing(parts, held);
+			synchronized (this) {
+				String refused = closed ? "Connection to subscriber closed" 
+						: (queuedBytes + frame.size > MAX_QUEUED_BYTES) ? "Subscriber " + subscriberID + " is not keeping up" : null;
+				if (refused != null) {
+					frame.done();
+					throw new RemoteException(refused);
+				}
+				//0 is left for frames that are not deliveries
+				if (++nextDelivery == 0)
+					nextDelivery = 1;
+				header.putInt(length).put(NioProtocol.NOTIFY).putInt(nextDelivery).putInt(events.size()).flip();
+				if (receipt != null)
+					unconfirmed.put(nextDelivery, new Delivery(receipt, System.currentTimeMillis() + SEND_TIMEOUT));
+				send(frame);
+			}
+		}
+
+		/**
+		 * Tell a delivery's receipt how the client answered it.  Used by the selector thread, so the receipt
+		 * is told on the receipts thread.  An answer that comes after the delivery timed out is ignored, and
+		 * the events are sent again
+		 *
+		 * @param deliveryID of the NOTIFY frame answered
+		 * @param taken true if the client's subscriber took the events
+		 */
+		void confirm(int deliveryID, final boolean taken) {
+			final Delivery d;
+			synchronized (this) {
+				d = unconfirmed.remove(deliveryID);
+			}
+			if (d == null)
+				return;
+			receipts.execute(new Runnable() {
+				public void run() {
+					d.receipt.done(taken);
+				}
+			});
+		}
+
+		/**
+		 * Fail every delivery the client has not confirmed in time.  Used by the selector thread, so the
+		 * receipts are told on the receipts thread
+		 *
+		 * @param now current time in milliseconds
+		 */
+		void expire(long now) {
+			List<Delivery> late = new ArrayList<>();
+			synchronized (this) {
+				Iterator<Delivery> it = unconfirmed.values().iterator();
+				while (it.hasNext()) {
+					Delivery d = it.next();
+					if (d.deadline <= now) {
+						late.add(d);
+						it.remove();
+					}
+				}
+			}
+			if (!late.isEmpty())
+				fail(late);
+		}
+
+		/**
+		 * Write as much as the socket takes, asking to be told when it can take the rest
+		 */
+		void flush() {
+			try {
+				synchronized (this) {
+					while (!out.isEmpty()) {
+						Outgoing frame = out.peek();
+						channel.write(frame.parts);
+						if (frame.parts[frame.parts.length - 1].hasRemaining())
+							break;
+						out.poll();
+						queuedBytes -= frame.size;
+						frame.done();
+					}
+					if (!closed)
+						key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Close the connection, failing every frame still waiting and every delivery not yet confirmed.  A
+		 * client that said hello over it is treated as gone offline, so its events wait for it to come back
+		 */
+		void close() {
+			List<Outgoing> failed;
+			List<Delivery> lost;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				failed = new ArrayList<>(out);
+				out.clear();
+				queuedBytes = 0;
+				lost = new ArrayList<>(unconfirmed.values());
+				unconfirmed.clear();
+			}
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) { /* closing anyway */ }
+			for (Outgoing frame : failed)
+				frame.done();
+			Integer ID = subscriberID;
+			if (ID != null && manager.getSubscriber(ID) == subscriber)
+				manager.unbind(ID);
+			if (!lost.isEmpty())
+				fail(lost);
+		}
+
+		/**
+		 * Helper method to tell receipts on the receipts thread that their deliveries failed
+		 */
+		private void fail(final List<Delivery> deliveries) {
+			receipts.execute(new Runnable() {
+				public void run() {
+					for (Delivery d : deliveries)
+						d.receipt.done(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * A delivery sent to a client and waiting for it to answer
+	 */
+	private static class Delivery {
+		private DeliveryEngine.Receipt receipt;
+		//time in milliseconds after which the delivery counts as failed
+		private long deadline;
+
+		Delivery(DeliveryEngine.Receipt _receipt, long _deadline) {
+			this.receipt = _receipt;
+			this.deadline = _deadline;
+		}
+	}
+
+	/**
+	 * A frame waiting to be written, with the events whose buffers it is written from
+	 */
+	private static class Outgoing {
+		private ByteBuffer[] parts;
+		private List<Event> held;
+		//bytes in the frame
+		private long size;
+
+		Outgoing(ByteBuffer frame, List<Event> _held) {
+			this(new ByteBuffer[] { frame }, _held);
+		}
+
+		Outgoing(ByteBuffer[] _parts, List<Event> _held) {
+			this.parts = _parts;
+			this.held = _held;
+			for (ByteBuffer part : _parts)
+				size += part.remaining();
+		}
+
+		/**
+		 * Used once the frame is written or never will be, to give back the event buffers
+		 */
+		synchronized void done() {
+			if (held != null) {
+				for (Event e : held)
+					e.release();
+				held = null;
+			}
+		}
+	}
+
+	/**
+	 * The Subscriber the manager is given for a client connected over NIO.  Events are sent back to the
+	 * client over its connection in NOTIFY frames, which the delivery engine learns the fate of from the
+	 * client's answer.  Only the delivery methods can be called on it, since subscribing is something the
+	 * client asks of the server and not the other way around
+	 */
+	private class ConnectionSubscriber implements Subscriber, DeliveryEngine.ConfirmingSubscriber {
+		private Connection conn;
+
+		ConnectionSubscriber(Connection _conn) {
+			this.conn = _conn;
+		}
+
+		public void notify(Event e) throws RemoteException {
+			List<Event> events = new ArrayList<>(1);
+			events.add(e);
+			notifyBatch(events);
+		}
+
+		/**
+		 * Send the events as one frame written straight from their shared buffers, without waiting for the
+		 * client to take them
+		 */
+		public void notifyBatch(List<Event> events) throws RemoteException {
+			conn.deliver(events, null);
+		}
+
+		/**
+		 * Send the events as one frame, telling the receipt once the client answers it
+		 */
+		public void send(List<Event> events, DeliveryEngine.Receipt receipt) throws RemoteException {
+			conn.deliver(events, receipt);
+		}
+
+		public CompletableFuture<Boolean> subscribe(Topic topic) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> subscribe(Topic topic, long fromOffset) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> subscribe(String keyword) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> subscribePattern(String pattern) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> unsubscribe(Topic topic) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> unsubscribe(String keyword) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> unsubscribePattern(String pattern) throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public CompletableFuture<Boolean> unsubscribe() throws RemoteException {
+			throw new RemoteException("Not supported over NIO");
+		}
+
+		public String toString() {
+			return "NIO subscriber " + conn.subscriberID;
+		}
+	}
+
+	/**
+	 * Run one call on the manager
+	 *
+	 * @param conn connection it came over
+	 * @param frame kind, request ID and payload of a CALL frame
+	 * @return the REPLY or FAILURE frame answering it
+	 */
+	private ByteBuffer call(Connection conn, byte[] frame) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		int requestID = 0;
+		try {
+			byte kind = in.readByte();
+			requestID = in.readInt();
+			if (kind != NioProtocol.CALL)
+				throw new IOException("Unexpected frame kind " + kind);
+			NioProtocol.FrameOutput out = NioProtocol.frame(NioProtocol.REPLY, requestID);
+			byte method = in.readByte();
+			switch (method) {
+			case NioProtocol.SAY_HELLO:
+				conn.subscriberID = manager.sayHello(conn.subscriber);
+				out.writeInt(conn.subscriberID);
+				break;
+			case NioProtocol.SAY_HELLO_AGAIN:
+				conn.subscriberID = in.readInt();
+				out.writeInt(manager.sayHello(conn.subscriberID, conn.subscriber));
+				break;
+			case NioProtocol.ADD_TOPIC:
+				out.writeInt(manager.addTopic(NioProtocol.readTopic(in)));
+				break;
+			case NioProtocol.ADD_SUBSCRIBER:
+				out.writeBoolean(manager.addSubscriber(in.readInt(), NioProtocol.readTopic(in)));
+				break;
+			case NioProtocol.ADD_SUBSCRIBER_FROM:
+				out.writeBoolean(manager.addSubscriber(in.readInt(), NioProtocol.readTopic(in), in.readLong()));
+				break;
+			case NioProtocol.GET_COMMITTED_OFFSET:
+				out.writeLong(manager.getCommittedOffset(in.readInt(), NioProtocol.readTopic(in)));
+				break;
+			case NioProtocol.ADD_KEYWORD_SUBSCRIBER:
+				out.writeBoolean(manager.addSubscriber(in.readInt(), EventCodec.readString(in)));
+				break;
+			case NioProtocol.ADD_PATTERN_SUBSCRIBER:
+				out.writeBoolean(manager.addPatternSubscriber(in.readInt(), EventCodec.readString(in)));
+				break;
+			case NioProtocol.REMOVE_PATTERN_SUBSCRIBER:
+				out.writeBoolean(manager.removePatternSubscriber(in.readInt(), EventCodec.readString(in)));
+				break;
+			case NioProtocol.REMOVE_SUBSCRIBER:
+				out.writeBoolean(manager.removeSubscriber(in.readInt()));
+				break;
+			case NioProtocol.REMOVE_TOPIC_SUBSCRIBER:
+				out.writeBoolean(manager.removeSubscriber(in.readInt(), NioProtocol.readTopic(in)));
+				break;
+			case NioProtocol.REMOVE_KEYWORD_SUBSCRIBER:
+				out.writeBoolean(manager.removeSubscriber(in.readInt(), EventCodec.readString(in)));
+				break;
+			case NioProtocol.PUBLISH:
+				out.writeInt(manager.publish(NioProtocol.readEvent(in)));
+				break;
+			case NioProtocol.PUBLISH_BATCH:
+				int[] ids = manager.publishBatch(NioProtocol.readEvents(in));
+				out.writeInt(ids.length);
+				for (int id : ids)
+					out.writeInt(id);
+				break;
+			case NioProtocol.GET_TOPICS:
+				List<Topic> topics = manager.getTopics();
+				out.writeInt(topics.size());
+				for (Topic t : topics)
+					t.write(out);
+				break;
+			case NioProtocol.UNBIND:
+				manager.unbind(in.readInt());
+				break;
+			case NioProtocol.UNBIND_PERMANENT:
+				manager.unbindPermanent(in.readInt());
+				break;
+			case NioProtocol.PING:
+				break;
+			default:
+				throw new IOException("Unknown method " + method);
+			}
+			return NioProtocol.finish(out);
+		} catch (Exception e) {
+			NioProtocol.FrameOutput out = NioProtocol.frame(NioProtocol.FAILURE, requestID);
+			try {
+				EventCodec.writeString(out, e.toString());
+			} catch (IOException ex) { /* never, since the bytes are kept in memory */ }
+			return NioProtocol.finish(out);
+		}
+	}
+}
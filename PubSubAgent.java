@@ -5,14 +5,23 @@ package pubsub;
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import pubsub.interfaces.EventHandler;
 import pubsub.interfaces.EventManInterface;
 import pubsub.interfaces.Publisher;
 import pubsub.interfaces.Subscriber;
@@ -26,20 +35,37 @@ import pubsub.interfaces.Subscriber;
  */
 public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subscriber, Serializable {
 
-	//Used by the agent to try to contact the server repeatedly before giving up
-	public static final int MAX_TRIES = 100;
-	//Used to make a thread sleep rather than repeated trying to contact the server
-	public static final int TIMEOUT = 1000;
+	//Longest time in milliseconds a request waits for the server to come back before giving up
+	public static final int GIVE_UP_AFTER = 100000;
+	//Most events the publisher accumulates before sending them to the server in one call
+	public static final int PUBLISH_BATCH = 32;
+	//Longest time in milliseconds an event waits to be sent with others
+	public static final int PUBLISH_LINGER = 5;
+	//Longest time in milliseconds the agent waits for its requests to reach the server before it exits
+	public static final int EXIT_WAIT = 10000;
 	
 	private static final long serialVersionUID = 1L;
 	protected EventManInterface server;
-	//Used by the subscriber
+	//Used by the subscriber, each list of subscriptions guarded by itself
 	protected ArrayList<Topic> subscrTopics;
 	protected ArrayList<String> subscrKeywords;
-	protected ArrayList<Event> recvdEvents;
+	protected ArrayList<String> subscrPatterns;
+	protected ReceivedEvents received;
+	//Runs the handlers of received events in the background
+	protected transient EventDispatcher handlers;
+	protected transient EventHandler printer;
 	//Used by the publisher
 	protected ArrayList<Topic> myPubTopics;
 	protected ArrayList<Event> myPubEvents;
+	//Events waiting to be sent to the server together, and the handles given out for them
+	protected ArrayList<Event> outgoing;
+	protected transient ArrayList<CompletableFuture<Integer>> outgoingHandles;
+	//Whether a flush of the accumulated events is scheduled, guarded by outgoing
+	private transient boolean flushScheduled;
+	//Requests yet to be made of the server, in order
+	protected transient RequestQueue queue;
+	//Whether the server can be reached
+	protected transient ServerMonitor monitor;
 	//Unique identifier assigned by the server
 	protected Integer ID;
 	/**
@@ -50,13 +76,92 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	 */
 	public PubSubAgent(EventManInterface _server) throws RemoteException {
 		this.server = _server;
+		this.monitor = newMonitor();
+		this.queue = newRequestQueue();
+		this.handlers = newDispatcher();
 		if (_server != null)
 			this.ID = server.sayHello(this);
 		subscrTopics = new ArrayList<>();
 		subscrKeywords = new ArrayList<>();
-		recvdEvents = new ArrayList<>();
+		subscrPatterns = new ArrayList<>();
+		received = new ReceivedEvents();
 		myPubTopics = new ArrayList<>();
 		myPubEvents = new ArrayList<>();
+		outgoing = new ArrayList<>();
+		outgoingHandles = new ArrayList<>();
+	}
+	/**
+	 * Restores an agent saved to disk, filling in the lists that agents saved by older versions did not have.
+	 * Events that were waiting to be published when it was saved are sent after the usual linger
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (subscrPatterns == null)
+			subscrPatterns = new ArrayList<>();
+		if (outgoing == null)
+			outgoing = new ArrayList<>();
+		if (received == null)
+			received = new ReceivedEvents();
+		monitor = newMonitor();
+		queue = newRequestQueue();
+		handlers = newDispatcher();
+		outgoingHandles = new ArrayList<>();
+		for (int i = 0; i < outgoing.size(); i++)
+			outgoingHandles.add(new CompletableFuture<Integer>());
+		synchronized (outgoing) {
+			if (!outgoing.isEmpty())
+				scheduleFlush();
+		}
+	}
+	/**
+	 * Helper method to watch the server, saying hello again whenever it comes back in case it restarted
+	 * and lost track of this agent, before any waiting request is sent.  A server that restarted is only
+	 * reached again if a locator was given with setLocator()
+	 */
+	private ServerMonitor newMonitor() {
+		ServerMonitor m = new ServerMonitor(server);
+		m.addListener(new Runnable() {
+			public void run() {
+				if (ID == null)
+					return;
+				try {
+					rebindToServer();
+				} catch (RemoteException e) {
+					System.err.println("Could not say hello to server again: " + e.getMessage());
+				}
+			}
+		});
+		return m;
+	}
+	/**
+	 * Helper method to make the dispatcher of received events, with a handler that prints each one
+	 */
+	private EventDispatcher newDispatcher() {
+		EventDispatcher d = new EventDispatcher(RequestExecutor.sharedExecutor(), EventDispatcher.DEFAULT_CAPACITY);
+		printer = new EventHandler() {
+			public void onEvent(Event event) {
+				System.out.println("*Notification of received event*");
+				System.out.print(event);
+				System.out.print("> ");
+			}
+		};
+		d.addHandler(printer);
+		return d;
+	}
+	/**
+	 * Helper method to make the log of requests to the server, which sends merged publishes in one call.
+	 * It sends one request at a time, so its executor never needs to run more
+	 */
+	private RequestQueue newRequestQueue() {
+		return new RequestQueue(new RequestExecutor(1, monitor, GIVE_UP_AFTER), new RequestQueue.BatchSender() {
+			public int[] publishBatch(List<Event> batch) throws RemoteException {
+				int[] uniqueIDs = server.publishBatch(batch);
+				for (int i = 0; i < uniqueIDs.length; i++)
+					if (uniqueIDs[i] != 0)
+						myPubEvents.add( batch.get(i).withID(uniqueIDs[i]) );
+				return uniqueIDs;
+			}
+		});
 	}
 	/**
 	 * Overwrite Obj equals for hashing purposes, and since an ID must be a unique identifier
@@ -79,6 +184,22 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	public void setServer(EventManInterface server) throws RemoteException {
 		this.server = server;
 		this.ID = server.sayHello(this);
+		monitor.setServer(server);
+	}
+	/**
+	 * Look the server up again whenever it cannot be reached, and use whatever is found from then on.
+	 * Needed over RMI, where a server that restarted is a new remote object the old stub cannot reach
+	 * 
+	 * @param locator finds the server, such as in the RMI registry
+	 */
+	public void setLocator(final ServerMonitor.Locator locator) {
+		monitor.setLocator(new ServerMonitor.Locator() {
+			public EventManInterface lookup() throws Exception {
+				EventManInterface found = locator.lookup();
+				server = found;
+				return found;
+			}
+		});
 	}
 	/**
 	 * This agent has come back onto the network and now must re-establish communication with the server
@@ -103,155 +224,252 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	 * Print out the topics this agent is subscribed to
 	 */
 	public void listSubscribedTopics() {
-		for (Topic t : subscrTopics)
+		for (Topic t : copy(subscrTopics))
 			System.out.print(t);
+		for (String p : copy(subscrPatterns))
+			System.out.println("Pattern: " + p);
 	}
 	/**
 	 * Print out the keywords this agent is subscribed to 
 	 */
 	public void listSubscribedKeywords() {
-		for (String k : subscrKeywords)
+		for (String k : copy(subscrKeywords))
 			System.out.println(k);
 	}
 	/**
-	 * Print all the received events that have come in during the life of this agent
+	 * Helper method to check a list of subscriptions.  The lists are changed by the request log once the
+	 * server confirms a change, on a thread of its own, so each list is its own lock
+	 */
+	private static <T> boolean holds(List<T> list, T item) {
+		synchronized (list) {
+			return list.contains(item);
+		}
+	}
+	/**
+	 * Helper method to record a subscription the server confirmed, or the end of one
+	 */
+	private static <T> void note(List<T> list, T item, boolean subscribed) {
+		synchronized (list) {
+			if (!subscribed)
+				list.remove(item);
+			else if (!list.contains(item))
+				list.add(item);
+		}
+	}
+	/**
+	 * Helper method to take a copy of a list of subscriptions to read without holding its lock
+	 */
+	private static <T> List<T> copy(List<T> list) {
+		synchronized (list) {
+			return new ArrayList<>(list);
+		}
+	}
+	/**
+	 * Print the received events this agent still holds, oldest first
 	 */
 	public void listReceivedEvents() {
-		for (Event e : recvdEvents)
+		for (Event e : received.list())
 			System.out.print(e);
 	}
 	/**
-	 * Used to notify the remote client
+	 *
+	 * @return the events this agent has received, which can be given other limits with setLimits()
+	 */
+	public ReceivedEvents getReceivedEvents() {
+		return received;
+	}
+	/**
+	 * Run a handler on every event this agent receives from now on
+	 *
+	 * @param handler to run, in the background
+	 */
+	public void onEvent(EventHandler handler) {
+		handlers.addHandler(handler);
+	}
+	/**
+	 * Run a handler on the events this agent receives under one Topic from now on
+	 *
+	 * @param topic the events are published under, as known to the server
+	 * @param handler to run, in the background
+	 */
+	public void onEvent(Topic topic, EventHandler handler) {
+		handlers.addHandler(topic.getID(), handler);
+	}
+	/**
+	 * Stop running a handler
+	 *
+	 * @param handler to stop running
+	 * @return true if the handler had been added
+	 */
+	public boolean removeHandler(EventHandler handler) {
+		return handlers.removeHandler(handler);
+	}
+	/**
+	 * Run handlers on another executor from now on, such as one thread for handlers that are not thread-safe
+	 *
+	 * @param executor to run handlers on
+	 */
+	public void setHandlerExecutor(Executor executor) {
+		handlers.setExecutor(executor);
+	}
+	/**
+	 * Turn printing of received events on or off, for agents that only react to them through handlers
+	 *
+	 * @param on true to print each received event
+	 */
+	public void setPrinting(boolean on) {
+		if (on)
+			handlers.addHandler(printer);
+		else
+			handlers.removeHandler(printer);
+	}
+	/**
+	 * Used to notify the remote client.  The event is handed to the handlers in the background, so this
+	 * returns at once unless the handlers have fallen too far behind
 	 * @param event Event that the Subscriber will be receiving from the server
 	 */
 	public void notify(Event event) throws RemoteException {
-		System.out.println("*Notification of received event*");
-		System.out.print(event);
-		System.out.print("> ");
-		recvdEvents.add(event);
+		if (received.add(event))
+			handlers.dispatch(Collections.singletonList(event));
+	}
+	/**
+	 * Used to notify the remote client of several events at once
+	 * @param events Events that the Subscriber will be receiving from the server, in the order they were published
+	 */
+	public void notifyBatch(List<Event> events) throws RemoteException {
+		handlers.dispatch(received.addAll(events));
 	}
 	/**
 	 * This method contacts the server to subscribe this agent to the given topic
 	 * @param topic Topic to subscribe to
+	 * @return handle that completes with whether the server accepted the subscription
 	 */
-	public void subscribe(final Topic topic) {
-		
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						if (server.addSubscriber(PubSubAgent.this.ID, topic))
-							subscrTopics.add(topic);
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1)
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
-				}
-				System.err.println("Could not contact server to subscribe to Topic "+topic.getName()+". Please try again later.");
+	public CompletableFuture<Boolean> subscribe(final Topic topic) {
+		return queue.change("topic:"+topic.getName(), true, holds(subscrTopics, topic), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.addSubscriber(PubSubAgent.this.ID, topic))
+					return false;
+				note(subscrTopics, topic, true);
+				return true;
 			}
-		}).start(); 
+		}, "to subscribe to Topic "+topic.getName());
+	}
+
+	/**
+	 * This method contacts the server to subscribe this agent to the given topic, replaying its history 
+	 * from an offset before the live events
+	 * @param topic Topic to subscribe to
+	 * @param fromOffset offset of the first event to receive, or -1 to resume from the last one received
+	 * @return handle that completes with whether the server accepted the subscription
+	 */
+	public CompletableFuture<Boolean> subscribe(final Topic topic, final long fromOffset) {
+		return queue.change("topic:"+topic.getName(), true, holds(subscrTopics, topic), false, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.addSubscriber(PubSubAgent.this.ID, topic, fromOffset))
+					return false;
+				note(subscrTopics, topic, true);
+				return true;
+			}
+		}, "to subscribe to Topic "+topic.getName());
 	}
 
 	/**
 	 * This method contacts the server to subscribe this agent to the given keyword
 	 * @param keyword String to subscribe to
+	 * @return handle that completes with whether the server accepted the subscription
 	 */
-	public void subscribe(final String keyword) {
-		
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						if (server.addSubscriber(PubSubAgent.this.ID, keyword))
-							subscrKeywords.add(keyword);
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1)
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
-				}
-				System.err.println("Could not contact server to subscribe to "+keyword+" keyword. Please try again later.");
+	public CompletableFuture<Boolean> subscribe(final String keyword) {
+		return queue.change("keyword:"+keyword, true, holds(subscrKeywords, keyword), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.addSubscriber(PubSubAgent.this.ID, keyword))
+					return false;
+				note(subscrKeywords, keyword, true);
+				return true;
 			}
-		}).start(); 
+		}, "to subscribe to "+keyword+" keyword");
 	}		
 
+	/**
+	 * This method contacts the server to subscribe this agent to every topic matching the given pattern
+	 * @param pattern String such as market/sells/* or market/#
+	 * @return handle that completes with whether the server accepted the subscription
+	 */
+	public CompletableFuture<Boolean> subscribePattern(final String pattern) {
+		return queue.change("pattern:"+pattern, true, holds(subscrPatterns, pattern), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.addPatternSubscriber(PubSubAgent.this.ID, pattern))
+					return false;
+				note(subscrPatterns, pattern, true);
+				return true;
+			}
+		}, "to subscribe to "+pattern+" pattern");
+	}
+
 	/**
 	 * This method contacts the server to unsubscribe this agent from the given topic
 	 * @param topic Topic to unsubscribe from
+	 * @return handle that completes with whether the agent was subscribed
 	 */
-	public void unsubscribe(final Topic topic) {
-		
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						if (server.removeSubscriber(PubSubAgent.this.ID, topic))
-							subscrTopics.remove(topic);
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1)
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
-				}
-				System.err.println("Could not contact server to unsubscribe from "+topic.getName()+". Please try again later.");
+	public CompletableFuture<Boolean> unsubscribe(final Topic topic) {
+		return queue.change("topic:"+topic.getName(), false, holds(subscrTopics, topic), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.removeSubscriber(PubSubAgent.this.ID, topic))
+					return false;
+				note(subscrTopics, topic, false);
+				return true;
 			}
-		}).start(); 
+		}, "to unsubscribe from "+topic.getName());
 	}
 	
 	/**
 	 * This method contacts the server to unsubscribe this agent from the given keyword
 	 * @param keyword String to unsubscribe from
+	 * @return handle that completes with whether the agent was subscribed
 	 */
-	public void unsubscribe(final String keyword) {
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						if (server.removeSubscriber(PubSubAgent.this.ID, keyword))
-							subscrKeywords.remove(keyword);
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1)
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
-				}
-				System.err.println("Could not contact server to unsubscribe from "+keyword+". Please try again later.");
+	public CompletableFuture<Boolean> unsubscribe(final String keyword) {
+		return queue.change("keyword:"+keyword, false, holds(subscrKeywords, keyword), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.removeSubscriber(PubSubAgent.this.ID, keyword))
+					return false;
+				note(subscrKeywords, keyword, false);
+				return true;
 			}
-		}).start(); 
+		}, "to unsubscribe from "+keyword);
 	}
 
 	/**
-	 * This method contacts the server to unsubscribe this agent from all topics and keywords
+	 * This method contacts the server to unsubscribe this agent from the given topic pattern
+	 * @param pattern String to unsubscribe from
+	 * @return handle that completes with whether the agent was subscribed
 	 */
-	public void unsubscribe() {
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						if (server.removeSubscriber(PubSubAgent.this.ID)) {
-							subscrKeywords.clear();
-							subscrTopics.clear();
-						}
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1)
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
+	public CompletableFuture<Boolean> unsubscribePattern(final String pattern) {
+		return queue.change("pattern:"+pattern, false, holds(subscrPatterns, pattern), true, new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.removePatternSubscriber(PubSubAgent.this.ID, pattern))
+					return false;
+				note(subscrPatterns, pattern, false);
+				return true;
+			}
+		}, "to unsubscribe from "+pattern);
+	}
+
+	/**
+	 * This method contacts the server to unsubscribe this agent from all topics, patterns and keywords
+	 * @return handle that completes with whether the agent was removed from everything
+	 */
+	public CompletableFuture<Boolean> unsubscribe() {
+		return queue.clear(new Callable<Boolean>() {
+			public Boolean call() throws RemoteException {
+				if (!server.removeSubscriber(PubSubAgent.this.ID))
+					return false;
+				for (List<?> list : Arrays.asList(subscrKeywords, subscrPatterns, subscrTopics)) {
+					synchronized (list) {
+						list.clear();
 					}
 				}
-				System.err.println("Could not contact server for full unsubscribe request. Please try again later.");
+				return true;
 			}
-		}).start(); 
+		}, "for full unsubscribe request");
 	}
 	
 	////////////////////////////////////////////////////////////////////////////////////
@@ -273,32 +491,63 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	}
 	
 	/**
-	 * ASynchronously publishes this event to all subscribers on the server
+	 * ASynchronously publishes this event to all subscribers on the server.  Events are accumulated and 
+	 * sent together in one publishBatch call, either once PUBLISH_BATCH of them are waiting or 
+	 * PUBLISH_LINGER milliseconds after the first one, whichever comes first
 	 * 
 	 * @param event Event to be published
+	 * @return handle that completes with the unique ID of the event, or 0 if it could not be published
 	 */
-	public void publish(final Event event) {
+	public CompletableFuture<Integer> publish(final Event event) {
 		if (event == null)
-			return;
+			return CompletableFuture.completedFuture(0);
 		
-		new Thread(new Runnable() {
+		CompletableFuture<Integer> handle = new CompletableFuture<>();
+		synchronized (outgoing) {
+			outgoing.add(event);
+			outgoingHandles.add(handle);
+			if (outgoing.size() >= PUBLISH_BATCH) 
+				flushPublishes();
+			else if (!flushScheduled)
+				scheduleFlush();
+		}
+		return handle;
+	}
+	
+	/**
+	 * Helper method to flush the accumulated events PUBLISH_LINGER milliseconds from now.  Caller holds 
+	 * the lock on outgoing
+	 */
+	private void scheduleFlush() {
+		flushScheduled = true;
+		RequestExecutor.schedule(new Runnable() {
 			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						int uniqueID = server.publish(event);
-						if (uniqueID != 0)
-							myPubEvents.add( event.setID(uniqueID) );
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1) 
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
+				synchronized (outgoing) {
+					flushScheduled = false;
 				}
-				System.err.println("Could not contact server for Event "+event.getTitle()+" creation. Please try again later.");
+				flushPublishes();
 			}
-		}).start(); 
+		}, PUBLISH_LINGER);
+	}
+	
+	/**
+	 * Sends every accumulated event to the server in one publishBatch call, retrying in the background 
+	 * while the server is unavailable.  Events still waiting from an earlier call are sent together with
+	 * these
+	 * 
+	 * @return handle that completes once every accumulated event has been sent
+	 */
+	public CompletableFuture<Void> flushPublishes() {
+		ArrayList<CompletableFuture<Integer>> handles;
+		synchronized (outgoing) {
+			if (outgoing.isEmpty())
+				return CompletableFuture.completedFuture(null);
+			handles = new ArrayList<>(outgoingHandles);
+			queue.publish(outgoing, handles);
+			outgoing.clear();
+			outgoingHandles.clear();
+		}
+		return CompletableFuture.allOf(handles.toArray(new CompletableFuture<?>[0]));
 	}
 	
 	/**
@@ -329,29 +578,19 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	 * The Publisher advertises a new topic on the server
 	 * 
 	 * @param newTopic Topic to be advertised
+	 * @return handle that completes with the unique ID of the Topic, or 0 if it already exists on the server
 	 */
-	public void advertise(final Topic newTopic) {
-
-		new Thread(new Runnable() {
-			public void run() {
-				int tries = 0;
-				while(++tries < MAX_TRIES) {
-					try {
-						int uniqueID = server.addTopic(newTopic);
-						if (uniqueID != 0)
-							myPubTopics.add(newTopic.setID(uniqueID));
-						else
-							System.err.println("Topic already exists on server");
-						return;
-					} catch(RemoteException e) {
-						if (tries == 1) 
-							System.err.println("Server currently unavailable. Will continue to process request in background.");
-						try { Thread.sleep(TIMEOUT); } catch(Exception f) {}
-					}
-				}
-				System.err.println("Could not contact server for Topic "+newTopic.getName()+" creation. Please try again later.");
+	public CompletableFuture<Integer> advertise(final Topic newTopic) {
+		return queue.submit(new Callable<Integer>() {
+			public Integer call() throws RemoteException {
+				int uniqueID = server.addTopic(newTopic);
+				if (uniqueID != 0)
+					myPubTopics.add(newTopic.setID(uniqueID));
+				else
+					System.err.println("Topic already exists on server");
+				return uniqueID;
 			}
-		}).start(); 
+		}, "for Topic "+newTopic.getName()+" creation");
 	}
 	
 	/**
@@ -441,17 +680,20 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	public void subscriberChoices(Scanner in) {
 		boolean continueExec = true;
 		do {
-			System.out.println("Subscriber actions [1-10]:");
+			System.out.println("Subscriber actions [1-13]:");
 			System.out.println(" 1: Subscribe to a topic");
 			System.out.println(" 2: Subscribe to a keyword");
 			System.out.println(" 3: Unsubscribe from a topic");
 			System.out.println(" 4: Unsubscribe from a keyword");
 			System.out.println(" 5: Unsubscribe from all");
-			System.out.println(" 6: Show currently subscribed topics");
+			System.out.println(" 6: Show currently subscribed topics and patterns");
 			System.out.println(" 7: Show currently subscribed keywords");
 			System.out.println(" 8: View all available topics on server");
 			System.out.println(" 9: View all received events");
-			System.out.println(" 10: Go back");
+			System.out.println(" 10: Subscribe to a topic pattern");
+			System.out.println(" 11: Unsubscribe from a topic pattern");
+			System.out.println(" 12: Subscribe to a topic and replay it from an offset");
+			System.out.println(" 13: Go back");
 			System.out.print("> ");
 			int choice = -1;
 			try {
@@ -464,7 +706,7 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 						subscribe(t);
 					break;
 				case 2: 
-					System.out.println("Enter keyword to subscribe to:"); 
+					System.out.println("Enter keyword to subscribe to (or a filter such as: hockey AND (win OR medals), stock.*, NOT buy):"); 
 					subscribe( in.nextLine().trim() ); 
 					break;
 				case 3:
@@ -485,7 +727,24 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 					} catch( RemoteException e) { System.out.println("Cannot contact server. Try again later"); }
 					break;
 				case 9: listReceivedEvents(); break;
-				case 10: continueExec = false; break;
+				case 10: 
+					System.out.println("Enter topic pattern to subscribe to (* matches one level, # matches the rest, e.g. market/sells/*):"); 
+					subscribePattern( in.nextLine().trim() ); 
+					break;
+				case 11: 
+					System.out.println("Enter topic pattern to unsubscribe from:"); 
+					unsubscribePattern( in.nextLine().trim() ); 
+					break;
+				case 12:
+					if ( (t = findTopic(in)) != null) {
+						System.out.println("Enter offset to replay from (leave blank to resume from the last event received):");
+						String offset = in.nextLine().trim();
+						try {
+							subscribe(t, offset.isEmpty() ? -1 : Long.parseLong(offset));
+						} catch (NumberFormatException e) { System.out.println("Input not recognized"); }
+					}
+					break;
+				case 13: continueExec = false; break;
 				default: System.out.println("Input not recognized");
 			}
 		} while (continueExec);
@@ -572,11 +831,32 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 	}
 	/**
 	 * This saves the current object to disk through serialization, letting the server know he is 
-	 * currently unavailable.  When he comes back, he will have to sayHello again since he unbinded himself
+	 * currently unavailable.  When he comes back, he will have to sayHello again since he unbinded himself.
+	 * Accumulated events are sent first, and only those that still could not be sent are saved with him
 	 * 
 	 * @throws RemoteException
 	 */
 	protected void saveAgent() throws RemoteException {
+		ArrayList<Event> waiting;
+		ArrayList<CompletableFuture<Integer>> handles;
+		synchronized (outgoing) {
+			waiting = new ArrayList<>(outgoing);
+			handles = new ArrayList<>(outgoingHandles);
+		}
+		try {
+			flushPublishes().get(EXIT_WAIT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			ArrayList<Event> unsent = new ArrayList<>();
+			for (int i = 0; i < waiting.size(); i++)
+				if (!handles.get(i).isDone() || handles.get(i).isCompletedExceptionally())
+					unsent.add(waiting.get(i));
+			synchronized (outgoing) {
+				outgoing.addAll(0, unsent);
+			}
+			System.out.println(unsent.size() + " events could not be published yet, they are saved to be sent later.");
+		}
+		if (!queue.drain(EXIT_WAIT))
+			System.out.println("Some requests could not reach the server before saving.");
 		server.unbind(this.ID);
 		try {
 			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("agent.dat"));
@@ -589,12 +869,20 @@ public class PubSubAgent extends UnicastRemoteObject implements Publisher, Subsc
 		}
 	}
 	/**
-	 * This agent has no intention of returning.  He is removed from the data structures altogether
+	 * This agent has no intention of returning.  He is removed from the data structures altogether, once
+	 * his unsubscribe and every other request still queued has reached the server
 	 * @throws RemoteException
 	 */
 	protected void fullExit() throws RemoteException {
+		flushPublishes();
+		try {
+			this.unsubscribe().get(EXIT_WAIT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			System.out.println("Could not unsubscribe from everything before exiting.");
+		}
+		if (!queue.drain(EXIT_WAIT))
+			System.out.println("Some requests could not reach the server before exiting.");
 		server.unbindPermanent(this.ID);
-		this.unsubscribe();
 		// Don't remove your created Topics, other Publishers can still publish to it
 		System.exit(0);
 	}
@@ -10,7 +10,9 @@ import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.net.InetAddress;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 
 import pubsub.PubSubAgent;
 import pubsub.interfaces.EventManInterface;
@@ -25,7 +27,8 @@ import pubsub.interfaces.EventManInterface;
 public class PubSubClient {
 
 	private String hostName = ""; 
-    private int port = 1099;
+    private int port = -1;
+    private boolean nio = false;
     private PubSubAgent agent = null;
     
     /**
@@ -37,14 +40,16 @@ public class PubSubClient {
 
     	if (args.length > 0)  
     		parseArgs(args);
+    	if (port < 0)
+    		port = nio ? NioProtocol.DEFAULT_PORT : 1099;
     	try {
     		if (hostName.length() == 0) 
     			hostName = InetAddress.getLocalHost().getHostAddress();
     		if (agent == null) {
-    			EventManInterface server = (EventManInterface) Naming.lookup("//" + hostName + ":" + port + "/EventManager");
-    			System.out.println("Connected to server at " + hostName + ":" + port );
-    			agent = new PubSubAgent(server);
+    			agent = new PubSubAgent(connect());
+    			unexport(agent);
     		}
+    		locate(agent);
 		} catch (Exception e) {
 			System.out.println("Cannot connect to the Event Manager server at this time.  Please try again later.");
 			System.out.println("Did you specify the correct hostname and port of the server?");
@@ -64,12 +69,14 @@ public class PubSubClient {
 
     	if (args.length > 0)  
     		parseArgs(args);
+    	if (port < 0)
+    		port = nio ? NioProtocol.DEFAULT_PORT : 1099;
     	try {
     		if (hostName.length() == 0) 
     			hostName = InetAddress.getLocalHost().getHostAddress();
-    		EventManInterface server = (EventManInterface) Naming.lookup("//" + hostName + ":" + port + "/EventManager");
-    		System.out.println("Connected to server at " + hostName + ":" + port );
-    		agent.setServer(server);
+    		agent.setServer(connect());
+    		unexport(agent);
+    		locate(agent);
 		} catch (Exception e) {
 			System.out.println("Cannot connect to the Event Manager server at this time.  Please try again later.");
 			System.out.println("Did you specify the correct hostname and port of the server?");
@@ -78,6 +85,61 @@ public class PubSubClient {
 		}
     }
 	
+	/**
+	 * Helper method to reach the server, either over a NIO connection or by looking it up in the RMI registry
+	 * 
+	 * @return the server to make calls on
+	 * @throws Exception if the server cannot be reached
+	 */
+	private EventManInterface connect() throws Exception {
+		EventManInterface server;
+		if (nio)
+			server = new NioClient(hostName, port);
+		else
+			server = (EventManInterface) Naming.lookup(url());
+		System.out.println("Connected to server at " + hostName + ":" + port + (nio ? " over NIO" : ""));
+		return server;
+	}
+	
+	/**
+	 * 
+	 * @return URL of the server in the RMI registry
+	 */
+	private String url() {
+		return "//" + hostName + ":" + port + "/EventManager";
+	}
+	
+	/**
+	 * Helper method to have an agent look the server up in the RMI registry again when it cannot reach it,
+	 * since the stub of a server that restarted never works again.  A NIO connection reconnects by itself
+	 * 
+	 * @param agent connected to the server
+	 */
+	private void locate(PubSubAgent agent) {
+		if (nio)
+			return;
+		final String url = url();
+		agent.setLocator(new ServerMonitor.Locator() {
+			public EventManInterface lookup() throws Exception {
+				return (EventManInterface) Naming.lookup(url);
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to stop an agent taking RMI calls when the server reaches it over its NIO connection
+	 * instead, so that it holds no listening socket
+	 * 
+	 * @param agent connected to the server
+	 */
+	private void unexport(PubSubAgent agent) {
+		if (!nio)
+			return;
+		try {
+			UnicastRemoteObject.unexportObject(agent, true);
+		} catch (NoSuchObjectException e) { /* not exported */ }
+	}
+	
 	/**
 	 * This method parses any inputs for the port to use, and stores it into
 	 * the instance variable prior to the constructor
@@ -91,6 +153,8 @@ public class PubSubClient {
 				port = new Integer(args[++i]).intValue();
 			else if (args[i].equals("-host")) 
 				hostName = args[++i];
+			else if (args[i].equals("-nio"))
+				nio = true;
 			else if (args[i].equals("-l")) {
 				try {
 					ObjectInputStream is = new ObjectInputStream(new FileInputStream("agent.dat"));
@@ -103,11 +167,13 @@ public class PubSubClient {
 				}
 			}
 			else {
-				System.out.println("Correct usage: java EventServer [-l] [-host <hostName>] [-p <portnumber>]");
+				System.out.println("Correct usage: java PubSubClient [-l] [-host <hostName>] [-p <portnumber>] [-nio]");
 				System.out.println("\t-l: loads previously saved pub-sub agent.");
 				System.out.println("\t-host: override localhost to set the host to <hostName>.");
 				System.out.println("\t-p: override default RMI Registry port 1099 to <port>.  "
 						+ "\n\t<port> must match both the 'java EventServer [-p port]' and 'rmiregistry [port]' commands.");
+				System.out.println("\t-nio: connect to a server started with -nio, over one persistent connection instead of RMI."
+						+ "\n\tThe default port is then " + NioProtocol.DEFAULT_PORT + ".");
 				System.exit(1);
 			}
 		}
@@ -0,0 +1,222 @@
+package pubsub;
+//******************************************************************************
+//File:    ReceivedEvents.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * This class holds the Events a subscriber has received, indexed by unique ID and by the ID of their Topic,
+ * in the order they arrived.  It is bounded both ways: once it holds more than its capacity the oldest
+ * Events are dropped, and an Event older than its time to live is dropped the next time the store is
+ * used.  An Event delivered again with an ID already held is ignored, so a redelivery is never counted
+ * twice.  Every method is synchronized, since Events are added on the thread the server notifies the
+ * agent on while the agent reads them on its own.
+ *
+ * @author rob mccartney
+ *
+ */
+public class ReceivedEvents implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	//Most Events held when no capacity is given
+	public static final int DEFAULT_CAPACITY = 10000;
+	//Time in milliseconds an Event is held when no time to live is given
+	public static final long DEFAULT_TTL = 24L * 60 * 60 * 1000;
+
+	private int capacity;
+	private long ttl;
+	//every Event held by its unique ID, oldest first
+	private LinkedHashMap<Integer, Received> byID = new LinkedHashMap<>();
+	//unique IDs of the Events held under each Topic ID, oldest first
+	private HashMap<Integer, LinkedHashSet<Integer>> byTopic = new HashMap<>();
+
+	/**
+	 * Constructor with the default limits
+	 */
+	public ReceivedEvents() {
+		this(DEFAULT_CAPACITY, DEFAULT_TTL);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param _capacity most Events held before the oldest are dropped
+	 * @param _ttl time in milliseconds an Event is held, or 0 to hold it until it is pushed out
+	 */
+	public ReceivedEvents(int _capacity, long _ttl) {
+		setLimits(_capacity, _ttl);
+	}
+
+	/**
+	 * Change the limits, dropping whatever no longer fits within them
+	 *
+	 * @param _capacity most Events held before the oldest are dropped
+	 * @param _ttl time in milliseconds an Event is held, or 0 to hold it until it is pushed out
+	 */
+	public synchronized void setLimits(int _capacity, long _ttl) {
+		if (_capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.capacity = _capacity;
+		this.ttl = _ttl;
+		evict();
+	}
+
+	/**
+	 * Hold an Event that was received, unless one with the same ID is already held
+	 *
+	 * @param event received
+	 * @return true if the Event was new
+	 */
+	public synchronized boolean add(Event event) {
+		boolean added = put(event);
+		evict();
+		return added;
+	}
+
+	/**
+	 * Hold Events that were received together, skipping any already held
+	 *
+	 * @param events received, in the order they were published
+	 * @return the Events that were new, in the same order
+	 */
+	public synchronized List<Event> addAll(List<Event> events) {
+		List<Event> added = new ArrayList<>(events.size());
+		for (Event e : events)
+			if (put(e))
+				added.add(e);
+		evict();
+		return added;
+	}
+
+	/**
+	 *
+	 * @param eventID unique ID of the Event
+	 * @return the Event, or null if it is not held
+	 */
+	public synchronized Event get(int eventID) {
+		evict();
+		Received r = byID.get(eventID);
+		return (r == null) ? null : r.event;
+	}
+
+	/**
+	 * Stop holding an Event, such as an offer that has been taken
+	 *
+	 * @param eventID unique ID of the Event
+	 * @return the Event, or null if it was not held
+	 */
+	public synchronized Event remove(int eventID) {
+		Received r = byID.remove(eventID);
+		if (r == null)
+			return null;
+		unindex(r.event);
+		return r.event;
+	}
+
+	/**
+	 *
+	 * @return every Event held, oldest first
+	 */
+	public synchronized List<Event> list() {
+		evict();
+		List<Event> all = new ArrayList<>(byID.size());
+		for (Received r : byID.values())
+			all.add(r.event);
+		return all;
+	}
+
+	/**
+	 *
+	 * @param topicID ID of the Topic
+	 * @return every Event held that was published under the Topic, oldest first
+	 */
+	public synchronized List<Event> list(int topicID) {
+		evict();
+		LinkedHashSet<Integer> ids = byTopic.get(topicID);
+		if (ids == null)
+			return new ArrayList<>();
+		List<Event> events = new ArrayList<>(ids.size());
+		for (Integer id : ids)
+			events.add(byID.get(id).event);
+		return events;
+	}
+
+	/**
+	 *
+	 * @return number of Events held
+	 */
+	public synchronized int size() {
+		evict();
+		return byID.size();
+	}
+
+	/**
+	 * Helper method to hold an Event and index it by Topic.  Caller holds the lock
+	 */
+	private boolean put(Event event) {
+		if (byID.containsKey(event.getID()))
+			return false;
+		byID.put(event.getID(), new Received(event, System.currentTimeMillis()));
+		int topicID = event.getTopic().getID();
+		LinkedHashSet<Integer> ids = byTopic.get(topicID);
+		if (ids == null) {
+			ids = new LinkedHashSet<>();
+			byTopic.put(topicID, ids);
+		}
+		ids.add(event.getID());
+		return true;
+	}
+
+	/**
+	 * Helper method to take an Event out of the index of its Topic.  Caller holds the lock
+	 */
+	private void unindex(Event event) {
+		int topicID = event.getTopic().getID();
+		LinkedHashSet<Integer> ids = byTopic.get(topicID);
+		if (ids == null)
+			return;
+		ids.remove(event.getID());
+		if (ids.isEmpty())
+			byTopic.remove(topicID);
+	}
+
+	/**
+	 * Helper method to drop the Events that are too old or over capacity.  Events are held oldest first,
+	 * so both come off the front.  Caller holds the lock
+	 */
+	private void evict() {
+		long expired = (ttl > 0) ? System.currentTimeMillis() - ttl : Long.MIN_VALUE;
+		Iterator<Received> it = byID.values().iterator();
+		int over = byID.size() - capacity;
+		while (it.hasNext()) {
+			Received r = it.next();
+			if (over <= 0 && r.time >= expired)
+				return;
+			it.remove();
+			unindex(r.event);
+			over--;
+		}
+	}
+
+	/**
+	 * An Event and the time it was received
+	 */
+	private static class Received implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private Event event;
+		private long time;
+
+		Received(Event _event, long _time) {
+			this.event = _event;
+			this.time = _time;
+		}
+	}
+}
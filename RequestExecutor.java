@@ -0,0 +1,211 @@
+package pubsub;
+//******************************************************************************
+//File:    RequestExecutor.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the requests an agent makes of the server in the background, retrying each one while
+ * the server is unavailable.  Every agent in the JVM shares one executor, which runs each request on a
+ * virtual thread when the JDK has them and on a pool of daemon threads otherwise, plus one timer thread
+ * for delayed tasks.  A request that cannot reach the server holds no thread: it waits on the agent's
+ * ServerMonitor and is tried again the moment the server can be reached, or fails once it has waited
+ * longer than the executor gives it.  Each agent has its own RequestExecutor that lets only so many of
+ * its requests be in flight at once and queues the rest.  The caller gets a CompletableFuture for the
+ * result of every request.
+ *
+ * @author rob mccartney
+ *
+ */
+public class RequestExecutor {
+
+	private static final ExecutorService shared = newSharedExecutor();
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			daemonThreads("request-timer"));
+
+	private ServerMonitor monitor;
+	private long giveUpAfter;
+	private int maxInFlight;
+	//requests running or waiting to retry, and requests not yet started, both guarded by this
+	private int inFlight = 0;
+	private ArrayDeque<Request<?>> waiting = new ArrayDeque<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param _maxInFlight most requests that run or wait to retry at once
+	 * @param _monitor that tells whether the server can be reached
+	 * @param _giveUpAfter time in milliseconds a request waits for the server before it fails
+	 */
+	public RequestExecutor(int _maxInFlight, ServerMonitor _monitor, long _giveUpAfter) {
+		this.maxInFlight = _maxInFlight;
+		this.monitor = _monitor;
+		this.giveUpAfter = _giveUpAfter;
+	}
+
+	/**
+	 * Helper method to make the executor every agent shares, with a virtual thread per task on a JDK that
+	 * has them.  They are looked up by reflection so the code still builds and runs on older JDKs
+	 */
+	private static ExecutorService newSharedExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(daemonThreads("request"));
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				//Daemon allows these threads not to block program from exiting
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @return the executor every agent shares, for other work an agent does in the background
+	 */
+	public static Executor sharedExecutor() {
+		return shared;
+	}
+
+	/**
+	 * Run a task after a delay on the shared executor, without holding a thread while waiting
+	 *
+	 * @param task to run
+	 * @param delay time in milliseconds to wait first
+	 */
+	public static void schedule(final Runnable task, long delay) {
+		timer.schedule(new Runnable() {
+			public void run() {
+				shared.execute(task);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Make a request of the server in the background, as soon as fewer than the most requests allowed
+	 * are in flight
+	 *
+	 * @param call the request, which throws RemoteException while the server cannot be reached, or
+	 * ServerException if the server was reached but failed it
+	 * @param what the request is, for the message printed if it finally fails
+	 * @return handle that completes with the result, or exceptionally if every attempt failed
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> call, String what) {
+		Request<T> request = new Request<>(call, what);
+		synchronized (this) {
+			if (inFlight >= maxInFlight) {
+				waiting.add(request);
+				return request.result;
+			}
+			inFlight++;
+		}
+		shared.execute(request);
+		return request.result;
+	}
+
+	/**
+	 *
+	 * @return number of requests not yet started because too many are in flight
+	 */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Helper method to start the next waiting request once one has finished
+	 */
+	private void finished() {
+		Request<?> next;
+		synchronized (this) {
+			next = waiting.poll();
+			if (next == null) {
+				inFlight--;
+				return;
+			}
+		}
+		shared.execute(next);
+	}
+
+	/**
+	 * One request and the attempts made at it so far
+	 */
+	private class Request<T> implements Runnable {
+		private Callable<T> call;
+		private String what;
+		//time after which the request gives up, set when it first fails to reach the server
+		private long deadline = 0;
+		private CompletableFuture<T> result = new CompletableFuture<>();
+
+		Request(Callable<T> _call, String _what) {
+			this.call = _call;
+			this.what = _what;
+		}
+
+		public void run() {
+			try {
+				T answer = call.call();
+				monitor.reachable();
+				result.complete(answer);
+			} catch (ServerException e) {
+				monitor.reachable();
+				System.err.println("Request failed " + what + ": " + e.getMessage());
+				result.completeExceptionally(e);
+			} catch (RemoteException e) {
+				monitor.unreachable();
+				long now = System.currentTimeMillis();
+				if (deadline == 0) {
+					System.err.println("Server currently unavailable. Will continue to process request in background.");
+					deadline = now + giveUpAfter;
+				}
+				if (now < deadline) {
+					awaitServer(deadline - now);
+					return;
+				}
+				System.err.println("Could not contact server " + what + ". Please try again later.");
+				result.completeExceptionally(e);
+			} catch (Exception e) {
+				System.err.println("Request failed " + what + ": " + e);
+				result.completeExceptionally(e);
+			}
+			finished();
+		}
+
+		/**
+		 * Helper method to try again as soon as the server can be reached, or once more when the time left
+		 * runs out, whichever comes first
+		 */
+		private void awaitServer(long left) {
+			final AtomicBoolean resumed = new AtomicBoolean();
+			Runnable resume = new Runnable() {
+				public void run() {
+					if (resumed.compareAndSet(false, true))
+						shared.execute(Request.this);
+				}
+			};
+			monitor.whenConnected().thenRun(resume);
+			schedule(resume, left);
+		}
+	}
+}
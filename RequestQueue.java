@@ -0,0 +1,337 @@
+package pubsub;
+//******************************************************************************
+//File:    RequestQueue.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * This class is an agent's log of the requests it has yet to make of the server.  Requests are sent one
+ * at a time in the order they were made, so a subscribe followed by an unsubscribe of the same Topic
+ * always reaches the server in that order.  Only the request at the head is ever retried while the
+ * server is unavailable, and the requests behind it are coalesced as they wait: a subscribe and an
+ * unsubscribe of the same Topic, keyword or pattern cancel out, a repeated subscribe shares the handle of
+ * the one already waiting, an unsubscribe from everything replaces every subscription change before it,
+ * and events published one after another are merged into one publishBatch call.  When the server comes
+ * back the whole log is sent in one burst of calls, one after another.
+ *
+ * @author rob mccartney
+ *
+ */
+public class RequestQueue {
+
+	//Most events merged into one publishBatch call
+	public static final int MAX_PUBLISH = 1024;
+
+	private RequestExecutor executor;
+	private BatchSender publisher;
+	//requests in the order they were made, the head being sent if sending is set, all guarded by this
+	private ArrayDeque<Request<?>> pending = new ArrayDeque<>();
+	private boolean sending = false;
+
+	/**
+	 * Sends a batch of events to the server, for merged publishes
+	 */
+	public interface BatchSender {
+		/**
+		 * @param events to publish, in order
+		 * @return the unique ID of each event, or 0 for an event that could not be published
+		 * @throws RemoteException while the server cannot be reached
+		 */
+		public int[] publishBatch(List<Event> events) throws RemoteException;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param _executor that makes and retries each request
+	 * @param _publisher that sends merged publishes
+	 */
+	public RequestQueue(RequestExecutor _executor, BatchSender _publisher) {
+		this.executor = _executor;
+		this.publisher = _publisher;
+	}
+
+	/**
+	 * Queue a request that subscribes to or unsubscribes from something, coalescing it with a change to
+	 * the same thing that is still waiting
+	 *
+	 * @param key what the change is to, such as "topic:Sports", unique across Topics, keywords and patterns
+	 * @param subscribe true to subscribe, false to unsubscribe
+	 * @param subscribed whether the agent is subscribed now, as far as the server has confirmed
+	 * @param shareable false if the request does more than subscribe, so must not be merged with another
+	 * @param call the request
+	 * @param what the request is, for the message printed if it finally fails
+	 * @return handle that completes with whether the server made the change
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Boolean> change(String key, boolean subscribe, boolean subscribed, boolean shareable,
+			Callable<Boolean> call, String what) {
+		Request<Boolean> request = new Request<>(call, what);
+		request.key = key;
+		request.subscribe = subscribe;
+		request.shareable = shareable;
+		synchronized (this) {
+			Request<?> earlier = lastWaiting(key);
+			if (earlier != null && earlier.subscribe == subscribe) {
+				if (earlier.shareable && shareable)
+					return ((Request<Boolean>) earlier).handle;
+			} else if (earlier != null) {
+				//the earlier change never happens, so this one only needs to happen if it changes anything
+				pending.remove(earlier);
+				((Request<Boolean>) earlier).handle.complete(false);
+				if (shareable && subscribe == subscribed) {
+					request.handle.complete(subscribed);
+					return request.handle;
+				}
+			}
+			add(request);
+		}
+		return request.handle;
+	}
+
+	/**
+	 * Queue a request that unsubscribes from everything, dropping every subscription change still waiting
+	 *
+	 * @param call the request
+	 * @param what the request is, for the message printed if it finally fails
+	 * @return handle that completes with whether the server removed every subscription
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Boolean> clear(Callable<Boolean> call, String what) {
+		Request<Boolean> request = new Request<>(call, what);
+		request.clears = true;
+		synchronized (this) {
+			Iterator<Request<?>> it = pending.iterator();
+			while (it.hasNext()) {
+				Request<?> r = it.next();
+				if (r.key != null && !r.started) {
+					it.remove();
+					((Request<Boolean>) r).handle.complete(false);
+				}
+			}
+			add(request);
+		}
+		return request.handle;
+	}
+
+	/**
+	 * Queue a request that is sent in order but never coalesced
+	 *
+	 * @param call the request
+	 * @param what the request is, for the message printed if it finally fails
+	 * @return handle that completes with the result of the request
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> call, String what) {
+		Request<T> request = new Request<>(call, what);
+		synchronized (this) {
+			add(request);
+		}
+		return request.handle;
+	}
+
+	/**
+	 * Queue events to be published, merging them into the publish waiting at the back of the log if
+	 * there is one
+	 *
+	 * @param events to publish, in order
+	 * @param handles one per event, completed with its unique ID once it has been published
+	 */
+	public void publish(List<Event> events, List<CompletableFuture<Integer>> handles) {
+		synchronized (this) {
+			Request<?> last = pending.peekLast();
+			if (last instanceof PublishRequest && !last.started
+					&& ((PublishRequest) last).events.size() + events.size() <= MAX_PUBLISH) {
+				((PublishRequest) last).events.addAll(events);
+				((PublishRequest) last).handles.addAll(handles);
+				return;
+			}
+			add(new PublishRequest(events, handles));
+		}
+	}
+
+	/**
+	 *
+	 * @return number of requests waiting to be sent, including the one being sent
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Wait until every request queued so far has been answered or has given up, such as before the agent
+	 * exits
+	 *
+	 * @param timeout longest time in milliseconds to wait
+	 * @return true if nothing is left waiting to be sent
+	 */
+	public synchronized boolean drain(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long left = timeout;
+		while (!pending.isEmpty() && left > 0) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			left = deadline - System.currentTimeMillis();
+		}
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Helper method to find the last change to something that has not been sent yet, as long as nothing
+	 * after it unsubscribes from everything.  Caller holds the lock
+	 */
+	private Request<?> lastWaiting(String key) {
+		Iterator<Request<?>> it = pending.descendingIterator();
+		while (it.hasNext()) {
+			Request<?> r = it.next();
+			if (r.started || r.clears)
+				return null;
+			if (key.equals(r.key))
+				return r;
+		}
+		return null;
+	}
+
+	/**
+	 * Helper method to put a request at the back of the log, starting it if nothing is being sent.
+	 * Caller holds the lock
+	 */
+	private void add(Request<?> request) {
+		pending.add(request);
+		if (!sending) {
+			sending = true;
+			sendHead();
+		}
+	}
+
+	/**
+	 * Helper method to send the request at the head of the log.  Caller holds the lock
+	 */
+	private void sendHead() {
+		final Request<?> head = pending.peek();
+		if (head == null) {
+			sending = false;
+			notifyAll();
+			return;
+		}
+		head.started = true;
+		head.send().whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object result, Throwable failure) {
+				sent(head, failure);
+			}
+		});
+	}
+
+	/**
+	 * Helper method to move on once the head request has been answered or has given up.  A request that
+	 * gave up means the server has been unreachable for its whole retry window, so every request behind it
+	 * fails too rather than waiting out a window of its own.  A request the server reached and turned down
+	 * fails alone
+	 */
+	private void sent(Request<?> head, Throwable failure) {
+		List<Request<?>> failed = new ArrayList<>();
+		synchronized (this) {
+			pending.remove(head);
+			if (failure instanceof RemoteException && !(failure instanceof ServerException)) {
+				failed.addAll(pending);
+				pending.clear();
+			}
+			sendHead();
+		}
+		if (!failed.isEmpty())
+			System.err.println("Could not contact server for " + failed.size() + " more queued requests. Please try again later.");
+		for (Request<?> r : failed)
+			r.fail(failure);
+	}
+
+	/**
+	 * One request in the log
+	 */
+	private class Request<T> {
+		protected Callable<T> call;
+		protected String what;
+		protected CompletableFuture<T> handle = new CompletableFuture<>();
+		//what a subscription change is to, null for any other request
+		protected String key;
+		protected boolean subscribe;
+		protected boolean shareable;
+		protected boolean clears;
+		protected boolean started;
+
+		Request(Callable<T> _call, String _what) {
+			this.call = _call;
+			this.what = _what;
+		}
+
+		/**
+		 * Make the request, completing its handle with the answer
+		 */
+		CompletableFuture<T> send() {
+			CompletableFuture<T> answer = executor.submit(call, what);
+			answer.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable failure) {
+					if (failure != null)
+						fail(failure);
+					else
+						handle.complete(result);
+				}
+			});
+			return answer;
+		}
+
+		void fail(Throwable failure) {
+			handle.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Events published one after another, sent in one publishBatch call
+	 */
+	private class PublishRequest extends Request<int[]> {
+		private ArrayList<Event> events;
+		private ArrayList<CompletableFuture<Integer>> handles;
+
+		PublishRequest(List<Event> _events, List<CompletableFuture<Integer>> _handles) {
+			super(null, null);
+			this.events = new ArrayList<>(_events);
+			this.handles = new ArrayList<>(_handles);
+		}
+
+		CompletableFuture<int[]> send() {
+			call = new Callable<int[]>() {
+				public int[] call() throws RemoteException {
+					return publisher.publishBatch(events);
+				}
+			};
+			what = "for creation of " + events.size() + " Events";
+			CompletableFuture<int[]> answer = super.send();
+			answer.whenComplete(new BiConsumer<int[], Throwable>() {
+				public void accept(int[] uniqueIDs, Throwable failure) {
+					if (failure == null)
+						for (int i = 0; i < handles.size(); i++)
+							handles.get(i).complete(i < uniqueIDs.length ? uniqueIDs[i] : 0);
+				}
+			});
+			return answer;
+		}
+
+		void fail(Throwable failure) {
+			super.fail(failure);
+			for (CompletableFuture<Integer> h : handles)
+				h.completeExceptionally(failure);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package pubsub;
+//******************************************************************************
+//File:    RetryScheduler.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class schedules another attempt to deliver an Event to a subscriber that could not be reached.
+ * It is a hashed timer wheel: a ring of slots, each one tick wide, that a single background thread
+ * walks around.  A retry is hashed into the slot its deadline falls in, along with the number of full
+ * turns of the wheel still to wait, so each tick only looks at the retries in one slot.  Retries back off
+ * exponentially with jitter, so a client that stays offline costs nothing between its attempts.  The
+ * backoff is chosen once per subscriber and attempt: every Event handed back from the same failed
+ * delivery joins one retry and is tried again together, in the order it was handed back, so Events for
+ * a subscriber that is still bound are not reordered by their jitter.
+ *
+ * @author rob mccartney
+ *
+ */
+public class RetryScheduler {
+
+	//Width of one slot of the wheel in milliseconds
+	public static final int TICK = 50;
+	//Number of slots in the wheel, so one full turn is TICK * WHEEL_SIZE milliseconds
+	public static final int WHEEL_SIZE = 512;
+	//Delay before the first retry in milliseconds, doubled for each attempt after that
+	public static final int BASE_DELAY = 250;
+	//Longest delay between two attempts in milliseconds
+	public static final int MAX_DELAY = 60000;
+
+	private EventManager manager;
+	//each slot holds the retries whose deadline falls in it, in the order they were scheduled
+	private List<ArrayList<Retry>> wheel;
+	//the retry of each subscriber that Events can still join, all guarded by this
+	private HashMap<Integer, Retry> open = new HashMap<>();
+	//slot the wheel thread will look at on its next tick
+	private int cursor = 0;
+	private Random rand = new Random();
+
+	/**
+	 * Constructor
+	 *
+	 * @param _manager the server that is told when a retry is due
+	 */
+	public RetryScheduler(EventManager _manager) {
+		this.manager = _manager;
+		wheel = new ArrayList<>(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel.add(new ArrayList<Retry>());
+	}
+
+	/**
+	 * Schedule another attempt at delivering an Event to a subscriber.  If the subscriber already has a
+	 * retry waiting for the same attempt, the Event joins it behind the Events already there
+	 *
+	 * @param subID unique ID of the subscriber
+	 * @param event Event to deliver
+	 * @param attempt number of attempts that have already failed, which sets the backoff
+	 */
+	public synchronized void schedule(Integer subID, Event event, int attempt) {
+		Retry r = open.get(subID);
+		if (r != null && r.attempt == attempt) {
+			r.events.add(event);
+			return;
+		}
+		long ticks = Math.max(1, backoff(attempt) / TICK);
+		//the cursor slot is expired on the next tick, so the slot ticks-1 past it is expired after ticks ticks
+		int slot = (int) ((cursor + ticks - 1) % WHEEL_SIZE);
+		r = new Retry(subID, attempt, (ticks - 1) / WHEEL_SIZE);
+		r.events.add(event);
+		wheel.get(slot).add(r);
+		open.put(subID, r);
+	}
+
+	/**
+	 * Exponential backoff with jitter: the delay doubles with every attempt up to MAX_DELAY, and the
+	 * actual wait is chosen at random from the upper half of it so that retries spread out
+	 *
+	 * @param attempt number of attempts that have already failed
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long backoff(int attempt) {
+		long delay = (attempt >= 20) ? MAX_DELAY : Math.min(MAX_DELAY, (long) BASE_DELAY << attempt);
+		return delay / 2 + (long) (rand.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 *
+	 * @return number of Events waiting on the wheel to be tried again
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (ArrayList<Retry> slot : wheel)
+			for (Retry r : slot)
+				size += r.events.size();
+		return size;
+	}
+
+	/**
+	 * Start the background thread that turns the wheel
+	 */
+	public void start() {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				long nextTick = System.currentTimeMillis() + TICK;
+				while (true) {
+					long wait = nextTick - System.currentTimeMillis();
+					if (wait > 0)
+						try { Thread.sleep(wait); } catch (InterruptedException e) { }
+					nextTick += TICK;
+					for (Retry r : expire())
+						manager.retryDue(r.subID, r.events, r.attempt);
+				}
+			}
+		}, "retry-wheel");
+		//Daemon allows this thread not to block program from exiting
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Helper method to advance the wheel by one tick and take out every retry in that slot that is due.
+	 * The rest of the slot has one less turn of the wheel to wait.  A retry that is due takes no more Events
+	 *
+	 * @return retries that are due now
+	 */
+	private synchronized ArrayList<Retry> expire() {
+		ArrayList<Retry> slot = wheel.get(cursor);
+		cursor = (cursor + 1) % WHEEL_SIZE;
+		ArrayList<Retry> due = new ArrayList<>();
+		if (slot.isEmpty())
+			return due;
+		int kept = 0;
+		for (Retry r : slot) {
+			if (r.rounds == 0) {
+				due.add(r);
+				open.remove(r.subID, r);
+			} else {
+				r.rounds--;
+				slot.set(kept++, r);
+			}
+		}
+		slot.subList(kept, slot.size()).clear();
+		return due;
+	}
+
+	/**
+	 * The retry state of the Events handed back for one subscriber at one attempt
+	 */
+	private static class Retry {
+		Integer subID;
+		ArrayList<Event> events = new ArrayList<>();
+		int attempt;
+		//full turns of the wheel left before this retry is due
+		long rounds;
+
+		Retry(Integer _subID, int _attempt, long _rounds) {
+			this.subID = _subID;
+			this.attempt = _attempt;
+			this.rounds = _rounds;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package pubsub;
+//******************************************************************************
+//File:    ServerMonitor.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import pubsub.interfaces.EventManInterface;
+
+/**
+ * This class tracks whether an agent can reach its server.  It starts out CONNECTED, and goes
+ * DISCONNECTED as soon as any request fails to reach the server.  While DISCONNECTED a single probe
+ * pings the server, backing off exponentially with jitter, however many requests are waiting; requests
+ * wait on whenConnected() rather than sleeping, and are all released the moment the probe or any other
+ * call gets through.  Listeners are told every time the server comes back, so the agent can say hello
+ * again to a server that may have restarted.
+ *
+ * A server that restarted is a new remote object, which the stub being watched can never reach again.  So
+ * when a probe fails and a Locator was given, the server is looked up afresh, such as in the RMI registry,
+ * and watched from then on if it answers.
+ *
+ * @author rob mccartney
+ *
+ */
+public class ServerMonitor {
+
+	/**
+	 * Whether the server can be reached
+	 */
+	public enum State { CONNECTED, DISCONNECTED }
+
+	//Delay before the first probe in milliseconds, doubled for each probe after that
+	public static final int BASE_DELAY = 50;
+	//Longest delay between two probes in milliseconds
+	public static final int MAX_DELAY = 2000;
+
+	private volatile EventManInterface server;
+	//finds the server again when a probe fails, or null if the server is only ever probed
+	private volatile Locator locator;
+	//state, the handle released when the server comes back, and the probes made so far, all guarded by this
+	private State state = State.CONNECTED;
+	private CompletableFuture<Void> connected = CompletableFuture.completedFuture(null);
+	private int probes = 0;
+	private ArrayList<Runnable> listeners = new ArrayList<>();
+	private Random rand = new Random();
+
+	/**
+	 * Finds the server again, such as after it restarted and the old stub of it can no longer be used
+	 */
+	public interface Locator {
+		/**
+		 * @return the server as it can be reached now
+		 * @throws Exception if the server cannot be found
+		 */
+		EventManInterface lookup() throws Exception;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param _server to watch, which may be set later
+	 */
+	public ServerMonitor(EventManInterface _server) {
+		this.server = _server;
+	}
+
+	/**
+	 * Watch another server, such as the same one reached over a new connection
+	 *
+	 * @param _server to watch
+	 */
+	public void setServer(EventManInterface _server) {
+		this.server = _server;
+		reachable();
+	}
+
+	/**
+	 * Look the server up again whenever a probe fails
+	 *
+	 * @param _locator finds the server, or null to only probe the one being watched
+	 */
+	public void setLocator(Locator _locator) {
+		this.locator = _locator;
+	}
+
+	/**
+	 *
+	 * @return whether the server could be reached at the last attempt
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 *
+	 * @return handle that completes as soon as the server can be reached, already completed if it can now
+	 */
+	public synchronized CompletableFuture<Void> whenConnected() {
+		return connected;
+	}
+
+	/**
+	 * Run a task every time the server comes back after being unreachable
+	 *
+	 * @param listener to run, on the thread that found the server again
+	 */
+	public synchronized void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Used when a call reached the server, which releases every request waiting for it
+	 */
+	public void reachable() {
+		CompletableFuture<Void> released;
+		ArrayList<Runnable> told;
+		synchronized (this) {
+			if (state == State.CONNECTED)
+				return;
+			state = State.CONNECTED;
+			probes = 0;
+			released = connected;
+			told = new ArrayList<>(listeners);
+		}
+		for (Runnable r : told)
+			r.run();
+		released.complete(null);
+	}
+
+	/**
+	 * Used when a call could not reach the server, which starts probing it if nothing was already
+	 */
+	public void unreachable() {
+		synchronized (this) {
+			if (state == State.DISCONNECTED)
+				return;
+			state = State.DISCONNECTED;
+			connected = new CompletableFuture<>();
+		}
+		scheduleProbe();
+	}
+
+	/**
+	 * Exponential backoff with jitter, in the manner of the server's RetryScheduler
+	 *
+	 * @param attempt number of probes that have already failed
+	 * @return milliseconds to wait before the next probe
+	 */
+	public long backoff(int attempt) {
+		long delay = (attempt >= 16) ? MAX_DELAY : Math.min(MAX_DELAY, (long) BASE_DELAY << attempt);
+		return delay / 2 + (long) (rand.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 * Helper method to ping the server after the backoff for the probes made so far
+	 */
+	private void scheduleProbe() {
+		long delay;
+		synchronized (this) {
+			delay = backoff(probes++);
+		}
+		RequestExecutor.schedule(new Runnable() {
+			public void run() {
+				synchronized (ServerMonitor.this) {
+					if (state == State.CONNECTED)
+						return;
+				}
+				try {
+					server.ping();
+					reachable();
+				} catch (Exception e) {
+					if (!relocate())
+						scheduleProbe();
+				}
+			}
+		}, delay);
+	}
+
+	/**
+	 * Helper method to look the server up again after a probe failed, and watch it if it answers
+	 *
+	 * @return true if the server was found and reached
+	 */
+	private boolean relocate() {
+		Locator l = locator;
+		if (l == null)
+			return false;
+		try {
+			EventManInterface found = l.lookup();
+			found.ping();
+			server = found;
+		} catch (Exception e) {
+			return false;
+		}
+		reachable();
+		return true;
+	}
+}
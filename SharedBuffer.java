@@ -0,0 +1,143 @@
+package pubsub;
+//******************************************************************************
+//File:    SharedBuffer.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class is an Event encoded once into a pooled buffer and shared by every subscriber it is sent to.
+ * It counts the references to it: each queue holding the Event for a subscriber holds one, and the buffer
+ * goes back to its pool when the last one is released.  The bytes never change once encoded, so any
+ * number of threads can send them at the same time.
+ *
+ * @author rob mccartney
+ *
+ */
+public class SharedBuffer {
+
+	//Scratch array per thread for writing a direct buffer to a stream, grown as needed and then reused
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+	private BufferPool pool;
+	//the encoding, from 0 to its limit
+	private ByteBuffer buffer;
+	//number of holders, guarded by the Event that owns this
+	private int refs = 1;
+
+	/**
+	 * Encode an Event into a buffer from a pool
+	 *
+	 * @param event to encode
+	 * @param pool the buffer comes from and goes back to
+	 * @return the encoding, with one reference held by the caller
+	 * @throws IOException never, since the bytes are kept in memory
+	 */
+	static SharedBuffer encode(Event event, BufferPool pool) throws IOException {
+		BufferOutput out = new BufferOutput(pool);
+		event.write(new DataOutputStream(out));
+		out.buffer.flip();
+		return new SharedBuffer(pool, out.buffer);
+	}
+
+	private SharedBuffer(BufferPool _pool, ByteBuffer _buffer) {
+		this.pool = _pool;
+		this.buffer = _buffer;
+	}
+
+	/**
+	 * Add a reference.  Caller holds the lock of the owning Event
+	 */
+	void retain() {
+		refs++;
+	}
+
+	/**
+	 * Drop a reference, giving the buffer back to its pool if it was the last.  Caller holds the lock of
+	 * the owning Event
+	 *
+	 * @return true if the buffer was given back and this must not be used again
+	 */
+	boolean release() {
+		if (--refs > 0)
+			return false;
+		pool.release(buffer);
+		buffer = null;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return number of bytes in the encoding
+	 */
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 *
+	 * @return a read-only view of the encoding, with its own position, for writing to a channel
+	 */
+	public ByteBuffer view() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write the encoding to a stream.  A heap buffer is written straight from its array, and a direct one
+	 * through a scratch array kept by the thread
+	 *
+	 * @param out stream to write to
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+			return;
+		}
+		byte[] bytes = scratch.get();
+		if (bytes == null || bytes.length < buffer.limit()) {
+			bytes = new byte[Math.max(buffer.limit(), BufferPool.MIN_SIZE)];
+			scratch.set(bytes);
+		}
+		buffer.duplicate().get(bytes, 0, buffer.limit());
+		out.write(bytes, 0, buffer.limit());
+	}
+
+	/**
+	 * Writes into a pooled buffer, moving to one twice the size whenever it fills
+	 */
+	private static class BufferOutput extends OutputStream {
+		private BufferPool pool;
+		private ByteBuffer buffer;
+
+		BufferOutput(BufferPool _pool) {
+			this.pool = _pool;
+			this.buffer = pool.acquire(BufferPool.MIN_SIZE);
+		}
+
+		public void write(int b) {
+			room(1);
+			buffer.put((byte) b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			room(len);
+			buffer.put(b, off, len);
+		}
+
+		private void room(int n) {
+			if (buffer.remaining() >= n)
+				return;
+			ByteBuffer bigger = pool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + n));
+			buffer.flip();
+			bigger.put(buffer);
+			pool.release(buffer);
+			buffer = bigger;
+		}
+	}
+}
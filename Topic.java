@@ -4,21 +4,33 @@ package pubsub;
 //Package: pubsub
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
- * This class is a Topic created by a Publisher that can be subscribed to by a Subscriber
+ * This class is a Topic created by a Publisher that can be subscribed to by a Subscriber.  Topics are sent
+ * in the compact format of EventCodec, and every Topic received is shared by the Events received on it
  * 
  * @author rob mccartney
  *
  */
-public class Topic implements Serializable {
+public class Topic implements Externalizable {
 	
 	private static final long serialVersionUID = 1L;
-	private final String name;
+	private String name;
 	private int id;
 	private String[] keywords;
 
+	/**
+	 * Constructor used only when decoding a Topic
+	 */
+	public Topic() {
+		this.keywords = new String[0];
+	}
 	/**
 	 * 
 	 * @param _name of this Topic, chosen by user
@@ -65,6 +77,8 @@ public class Topic implements Serializable {
 					   "\tKeywords=";
 		for (int i = 0; i < keywords.length; i++) 
 			topic += keywords[i] + ((i==keywords.length-1)?"\n":",");
+		if (keywords.length == 0)
+			topic += "\n";
 		return topic;
 	}
 		
@@ -81,4 +95,39 @@ public class Topic implements Serializable {
 	public int hashCode() {
 		return name.hashCode();
 	}
+	
+	/**
+	 * Encodes this Topic in the format of EventCodec, when it is sent over RMI
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+	
+	/**
+	 * Decodes this Topic, when it is received over RMI, and makes it the one shared by Events on it
+	 */
+	public void readExternal(ObjectInput in) throws IOException {
+		read(in);
+	}
+	
+	/**
+	 * Helper method to encode this Topic as [version][id][name][keywords]
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeByte(EventCodec.VERSION);
+		EventCodec.writeVarInt(out, id);
+		EventCodec.writeString(out, name);
+		EventCodec.writeStrings(out, keywords);
+	}
+	
+	/**
+	 * Helper method to decode this Topic from the encoding of write(), making it the one shared by Events on it
+	 */
+	void read(DataInput in) throws IOException {
+		EventCodec.readVersion(in, "Topic");
+		id = EventCodec.readVarInt(in);
+		name = EventCodec.readInterned(in);
+		keywords = EventCodec.readInternedStrings(in);
+		EventCodec.register(this);
+	}
 }
@@ -4,14 +4,12 @@ package pubsub;
 //Package: pubsub
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 /**
  * 
  * This is a class for the server to hold a Topic in along with the subscribers to that topic.
  * This way, the server can give the individual Topics to other clients that ask to see what is 
  * available without giving away who is subscribed to each Topic. The Container knows how to add,
- * remove, and iterate over its subscribers, to the server uses these methods to manage Topic-based
+ * remove, and snapshot its subscribers, so the server uses these methods to manage Topic-based
  * subscriptions.
  * 
  * @author rob mccartney
@@ -21,10 +19,10 @@ public class TopicContainer {
 
 	//two parts to a container, the topic and the subscribers
 	private Topic topic;
-	//the Integer is the Unique ID of the client subscriber
-	//Use a LinkedHashSet to allow O(1) lookup and efficient
-	//iteration
-	private LinkedHashSet<Integer> topicSubscribers;
+	//the int is the Unique ID of the client subscriber.
+	//The set is never changed once it is published: every subscription change builds a new
+	//set and swaps it in, so a publish can read a consistent snapshot without any lock
+	private volatile IntSet topicSubscribers;
 	
 	/**
 	 * Constructor
@@ -32,7 +30,7 @@ public class TopicContainer {
 	 */
 	public TopicContainer(Topic _topic) {
 		this.topic = _topic;
-		topicSubscribers = new LinkedHashSet<>();
+		topicSubscribers = new IntSet();
 	}
 	/**
 	 * 
@@ -43,54 +41,56 @@ public class TopicContainer {
 	}
 	
 	/**
-	 * Synchronously add a new subscriber to the set.  Needs to be synchronous to prevent a 
-	 * concurrent modification during iterating
+	 * Add a new subscriber by swapping in a copy of the subscribers with it added.  Synchronized so
+	 * that two concurrent changes cannot lose one another
 	 * 
 	 * @param subID the subscriber ID to add to this container
 	 * @return boolean on success or failure. Fails when the user is already subscribed
 	 */
-	public synchronized boolean addSubscriber(Integer subID) {
-		return topicSubscribers.add(subID);
+	public synchronized boolean addSubscriber(int subID) {
+		if (topicSubscribers.contains(subID))
+			return false;
+		IntSet next = new IntSet(topicSubscribers);
+		next.add(subID);
+		topicSubscribers = next;
+		return true;
 	}
 	
 	/**
-	 * Synchronously removed a subscriber from the set.  Needs to be synchronous to prevent a 
-	 * concurrent modification during iterating
+	 * Remove a subscriber by swapping in a copy of the subscribers without it.  Synchronized so
+	 * that two concurrent changes cannot lose one another
 	 * 
 	 * @param subID the subscriber ID to remove from this container
 	 * @return boolean on success or failure. Fails when the user being removed is not subscribed
 	 */
-	public synchronized boolean removeSubscriber(Integer subID) {
-		return topicSubscribers.remove(subID);
+	public synchronized boolean removeSubscriber(int subID) {
+		if (!topicSubscribers.contains(subID))
+			return false;
+		IntSet next = new IntSet(topicSubscribers);
+		next.remove(subID);
+		topicSubscribers = next;
+		return true;
 	}
 	
 	/**
-	 * Synchronously get the size of the underlying data structure
+	 * Get the number of subscribers in the current snapshot
 	 * 
-	 * @return int size of the underlying hashset of subscribers
+	 * @return int number of subscribers
 	 */
-	public synchronized int getSubscriberSize() {
+	public int getSubscriberSize() {
 		return topicSubscribers.size();
 	}
 	
 	/**
-	 * Synchronously return the underlying hashset so that it can be added to another list (inside event)
+	 * Return the current snapshot of subscribers so that it can be added to another list (inside event).
+	 * The set is shared and must not be modified by the caller
 	 * 
-	 * @return LinkedHashSet<Integer> the ID's of the subscribers
+	 * @return IntSet the ID's of the subscribers
 	 */
-	public synchronized LinkedHashSet<Integer> getSubscribers() {
+	public IntSet getSubscribers() {
 		return topicSubscribers;
 	}
 	
-	/**
-	 * Use the iterator to iterate through the hash and allow removal during iteration
-	 * 
-	 * @return Iterator<Integer> to iterate through the subscriber ID's
-	 */
-	public synchronized Iterator<Integer> iterator() {
-		return topicSubscribers.iterator();
-	}
-	
 	/**
 	 * Overrides the Object equals so that we will not allow two equivalent TopicContainers into a HashSet
 	 * as determined by their underlying Topic
@@ -108,24 +108,25 @@ public class TopicContainer {
 	}
 	
 	/**
-	 * Synchronously iterate through the list of subscribers to this topic to print them out
+	 * Iterate through the current snapshot of subscribers to this topic to print them out
 	 * 
 	 * @return String of the subscribers currently subscribed to the underlying topic
 	 */
-	public synchronized String printSubscribers() {
+	public String printSubscribers() {
+		int[] subs = topicSubscribers.toArray();
 		String formatted = "";
-		int i = topicSubscribers.size();
+		int i = subs.length;
 		if (i == 0)
 			formatted += "None\n";
-		for ( Integer subID : topicSubscribers )
+		for ( int subID : subs )
 			formatted += "Agent_" + subID + ((--i > 0)?",":"\n");
 		return formatted;
 	}
 	
 	/**
-	 * Synchronously overrides the Object toString 
+	 * Overrides the Object toString 
 	 */
-	public synchronized String toString() {
+	public String toString() {
 		return topic.toString() + "\n\tSubscribers: " + this.printSubscribers();
 	}
 }
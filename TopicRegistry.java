@@ -0,0 +1,112 @@
+package pubsub;
+//******************************************************************************
+//File:    TopicRegistry.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class is the server's routing table of all Topic Containers.  Containers are indexed both by
+ * the unique Topic ID and by the Topic name, so that publishing and subscribing is a single hash lookup
+ * rather than a scan of every Topic.  Lookups never lock; only registering a new Topic is synchronized,
+ * which keeps the advertised order (and therefore the order of getTopics()) the same as the ID order.
+ *
+ * @author rob mccartney
+ *
+ */
+public class TopicRegistry {
+
+	//Maps from the unique Topic ID to its container, used on every publish and subscribe
+	private ConcurrentHashMap<Integer, TopicContainer> byID;
+	//Maps from the Topic name to its container, used to reject duplicate Topics
+	private ConcurrentHashMap<String, TopicContainer> byName;
+	//All containers in the order they were advertised.  Topics are added rarely and read often,
+	//so a copy-on-write list lets readers iterate without a lock
+	private CopyOnWriteArrayList<TopicContainer> ordered;
+
+	/**
+	 * Constructor
+	 */
+	public TopicRegistry() {
+		byID = new ConcurrentHashMap<>();
+		byName = new ConcurrentHashMap<>();
+		ordered = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Adds a new Topic to the registry under the given ID.  Synchronized so that the ID order and the
+	 * iteration order always agree
+	 *
+	 * @param topic Topic to add, whose ID is set here when it is accepted
+	 * @param ID unique ID to give the Topic
+	 * @return the new TopicContainer, or null if a Topic with the same name already exists
+	 */
+	public synchronized TopicContainer add(Topic topic, int ID) {
+		TopicContainer tc = new TopicContainer(topic);
+		if (byName.putIfAbsent(topic.getName(), tc) != null)
+			return null;
+		topic.setID(ID);
+		byID.put(ID, tc);
+		ordered.add(tc);
+		return tc;
+	}
+
+	/**
+	 * Whether a Topic with this name has been registered
+	 *
+	 * @param name of the Topic
+	 * @return true if the name is taken
+	 */
+	public boolean contains(String name) {
+		return byName.containsKey(name);
+	}
+
+	/**
+	 *
+	 * @param ID unique Topic ID
+	 * @return the container for this ID, or null if there is none
+	 */
+	public TopicContainer get(int ID) {
+		return byID.get(ID);
+	}
+
+	/**
+	 *
+	 * @param name the name of the Topic
+	 * @return the container for this name, or null if there is none
+	 */
+	public TopicContainer get(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 *
+	 * @return number of Topics registered
+	 */
+	public int size() {
+		return ordered.size();
+	}
+
+	/**
+	 *
+	 * @return every container in the order it was advertised. The list can be iterated without locking
+	 */
+	public List<TopicContainer> containers() {
+		return ordered;
+	}
+
+	/**
+	 *
+	 * @return a new list of every Topic in the order it was advertised
+	 */
+	public ArrayList<Topic> topics() {
+		ArrayList<Topic> topics = new ArrayList<>(ordered.size());
+		for (TopicContainer tc : ordered)
+			topics.add( tc.getTopic() );
+		return topics;
+	}
+}
@@ -0,0 +1,236 @@
+package pubsub;
+//******************************************************************************
+//File:    TopicTrie.java
+//Package: pubsub
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the wildcard subscriptions to the hierarchical Topic namespace.  Topic names are split
+ * into levels by '/', such as "market/sells/stock3".  A subscription pattern can use * to match exactly one
+ * level, so "market/*" matches "market/sells" but not "market/sells/stock3", and # as its last level to
+ * match any number of levels, including none, so "market/#" matches both of those and "market" itself.  Patterns are stored in a trie with one node per level.  Resolving a concrete Topic
+ * walks the trie once and the result is cached per Topic name, so publishing to a Topic costs a single
+ * lookup until the patterns change again.
+ *
+ * @author rob mccartney
+ *
+ */
+public class TopicTrie {
+
+	//Separator between the levels of a Topic name
+	public static final String SEPARATOR = "/";
+	//Matches exactly one level
+	public static final String ONE_LEVEL = "*";
+	//Matches any number of levels, only allowed at the end of a pattern
+	public static final String ALL_LEVELS = "#";
+
+	private Node root;
+	//Maps from the ID of a client to its patterns
+	private HashMap<Integer, HashSet<String>> bySubscriber;
+	//Maps from a concrete Topic name to every subscriber whose pattern matches it.  Cleared whenever the
+	//patterns change, and only filled while holding the trie's lock so it is never stale
+	private ConcurrentHashMap<String, IntSet> resolved;
+	//number of patterns subscribed, read without the lock to skip resolving altogether
+	private volatile int count = 0;
+
+	/**
+	 * Constructor
+	 */
+	public TopicTrie() {
+		root = new Node();
+		bySubscriber = new HashMap<>();
+		resolved = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Whether a pattern is well formed: no empty levels, and # only as the last level
+	 *
+	 * @param pattern subscription pattern
+	 * @return true if the pattern can be subscribed to
+	 */
+	public static boolean isValidPattern(String pattern) {
+		String[] levels = split(pattern);
+		for (int i = 0; i < levels.length; i++) {
+			if (levels[i].isEmpty() || (levels[i].equals(ALL_LEVELS) && i != levels.length - 1))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether a name has wildcard levels, which is not allowed for a concrete Topic
+	 *
+	 * @param name Topic name
+	 * @return true if any level is * or #
+	 */
+	public static boolean hasWildcard(String name) {
+		for (String level : split(name))
+			if (level.equals(ONE_LEVEL) || level.equals(ALL_LEVELS))
+				return true;
+		return false;
+	}
+
+	/**
+	 *
+	 * @return true if there are no patterns
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Subscribe a client to a pattern
+	 *
+	 * @param subID unique ID of the client
+	 * @param pattern a valid subscription pattern
+	 * @return true if the client was not already subscribed to it
+	 */
+	public synchronized boolean add(int subID, String pattern) {
+		HashSet<String> mine = bySubscriber.get(subID);
+		if (mine == null)
+			bySubscriber.put(subID, mine = new HashSet<>());
+		if (!mine.add(pattern))
+			return false;
+		Node node = root;
+		for (String level : split(pattern)) {
+			Node child = node.children.get(level);
+			if (child == null)
+				node.children.put(level, child = new Node());
+			node = child;
+		}
+		node.subscribers.add(subID);
+		count++;
+		resolved.clear();
+		return true;
+	}
+
+	/**
+	 * Unsubscribe a client from a pattern
+	 *
+	 * @param subID unique ID of the client
+	 * @param pattern pattern exactly as it was subscribed
+	 * @return true if the client was subscribed to it
+	 */
+	public synchronized boolean remove(int subID, String pattern) {
+		HashSet<String> mine = bySubscriber.get(subID);
+		if (mine == null || !mine.remove(pattern))
+			return false;
+		if (mine.isEmpty())
+			bySubscriber.remove(subID);
+		unlink(subID, pattern);
+		return true;
+	}
+
+	/**
+	 * Unsubscribe a client from every pattern
+	 *
+	 * @param subID unique ID of the client
+	 * @return number of patterns removed
+	 */
+	public synchronized int removeAll(int subID) {
+		HashSet<String> mine = bySubscriber.remove(subID);
+		if (mine == null)
+			return 0;
+		for (String pattern : mine)
+			unlink(subID, pattern);
+		return mine.size();
+	}
+
+	/**
+	 * Find every subscriber with a pattern matching a concrete Topic
+	 *
+	 * @param name concrete Topic name
+	 * @return the matching subscribers.  The set is shared and must not be modified
+	 */
+	public IntSet resolve(String name) {
+		IntSet subs = resolved.get(name);
+		if (subs != null)
+			return subs;
+		synchronized (this) {
+			subs = new IntSet();
+			walk(root, split(name), 0, subs);
+			resolved.put(name, subs);
+			return subs;
+		}
+	}
+
+	/**
+	 *
+	 * @return every pattern with the subscribers to it, used by the server for printing
+	 */
+	public synchronized LinkedHashMap<String, IntSet> subscriptions() {
+		LinkedHashMap<String, IntSet> all = new LinkedHashMap<>();
+		for (Integer subID : bySubscriber.keySet()) {
+			for (String pattern : bySubscriber.get(subID)) {
+				if (all.get(pattern) == null)
+					all.put(pattern, new IntSet());
+				all.get(pattern).add(subID);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Helper method to split a name or pattern into its levels
+	 */
+	private static String[] split(String name) {
+		return name.split(SEPARATOR, -1);
+	}
+
+	/**
+	 * Helper method to gather the subscribers of every pattern that matches the levels from i onward
+	 */
+	private void walk(Node node, String[] levels, int i, IntSet subs) {
+		Node all = node.children.get(ALL_LEVELS);
+		if (all != null)
+			subs.addAll(all.subscribers);
+		if (i == levels.length) {
+			subs.addAll(node.subscribers);
+			return;
+		}
+		Node exact = node.children.get(levels[i]);
+		if (exact != null)
+			walk(exact, levels, i + 1, subs);
+		Node one = node.children.get(ONE_LEVEL);
+		if (one != null)
+			walk(one, levels, i + 1, subs);
+	}
+
+	/**
+	 * Helper method to take a subscriber off the node of a pattern, pruning nodes left empty.  Caller
+	 * holds the lock
+	 */
+	private void unlink(int subID, String pattern) {
+		String[] levels = split(pattern);
+		ArrayList<Node> path = new ArrayList<>();
+		Node node = root;
+		path.add(node);
+		for (String level : levels) {
+			node = node.children.get(level);
+			path.add(node);
+		}
+		node.subscribers.remove(subID);
+		for (int i = levels.length; i > 0; i--) {
+			Node n = path.get(i);
+			if (!n.subscribers.isEmpty() || !n.children.isEmpty())
+				break;
+			path.get(i - 1).children.remove(levels[i - 1]);
+		}
+		count--;
+		resolved.clear();
+	}
+
+	/**
+	 * One level of the trie, holding the subscribers of the pattern that ends here
+	 */
+	private static class Node {
+		HashMap<String, Node> children = new HashMap<>();
+		IntSet subscribers = new IntSet();
+	}
+}
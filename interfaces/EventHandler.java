@@ -0,0 +1,26 @@
+package pubsub.interfaces;
+//******************************************************************************
+//File:    EventHandler.java
+//Package: pubsub.interfaces
+//Unit:    Distributed Programming Individual Project
+//******************************************************************************
+
+import pubsub.Event;
+
+/**
+ * This interface is implemented by code that reacts to the Events an agent receives.  Handlers are
+ * registered with the agent for every Event or for the Events of one Topic, and are run in the background,
+ * never on the thread the server notified the agent on
+ *
+ * @author rob mccartney
+ *
+ */
+public interface EventHandler {
+
+	/**
+	 * Handle an Event the agent received
+	 *
+	 * @param event received, never one the agent has already handled
+	 */
+	public void onEvent(Event event);
+}
@@ -6,6 +6,7 @@ package pubsub.interfaces;
 //******************************************************************************
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.List;
 
 import pubsub.Event;
 import pubsub.Topic;
@@ -57,17 +58,66 @@ public interface EventManInterface extends java.rmi.Remote {
 	public boolean addSubscriber(Integer subID, Topic t) throws RemoteException;
 	
 	/**
-	 * User subscribes to given keyword
+	 * User subscribes to given topic and is first sent every event published under it from an offset of 
+	 * the server's event log, then the live events, in order.  Each received Event carries its offset, and
+	 * the server commits the offset after the newest event on the topic each subscriber received, so a
+	 * client that crashed can resume from where it left off.  Without an event log only live events are sent
+	 * 
+	 * @param subID unique subscriber ID of the client 
+	 * @param t topic to subscribe to 
+	 * @param fromOffset offset of the first event to send, or -1 to resume from this client's committed offset
+	 * @return boolean on whether the topic exists
+	 * @throws RemoteException
+	 */
+	public boolean addSubscriber(Integer subID, Topic t, long fromOffset) throws RemoteException;
+	
+	/**
+	 * The offset a client would resume a topic from
+	 * 
+	 * @param subID unique subscriber ID of the client 
+	 * @param t topic the client has received events on
+	 * @return offset after the newest event on the topic the client received, or -1 if it has received none
+	 * @throws RemoteException
+	 */
+	public long getCommittedOffset(Integer subID, Topic t) throws RemoteException;
+	
+	/**
+	 * User subscribes to given keyword, or to a content filter built from keywords with AND, OR, NOT
+	 * and parentheses, where a keyword ending in * matches every keyword starting with it and an event
+	 * attribute can be compared with ==, !=, <, <=, > or >=
+	 * (e.g. "hockey AND (win OR medals)", "stock.* AND NOT buy" or "stockId == 3 AND price < 120.0")
 	 * 
 	 * @param subID  unique subscriber ID of the client 
-	 * @param keyword the client wants to subscribe to
-	 * @return boolean if it was successful
+	 * @param keyword the client wants to subscribe to, or a content filter expression
+	 * @return boolean if it was successful.  Fails if already subscribed or the filter is malformed
 	 * @throws RemoteException
 	 */
 	public boolean addSubscriber(Integer subID, String keyword) throws RemoteException;
-		 
+
+	/**
+	 * User subscribes to every topic whose name matches a pattern.  Topic names are split into levels
+	 * by '/', a * level matches exactly one level and a final # level matches any number of levels
+	 * (e.g. "market/sells/*" or "market/#").  Topics created later that match are covered too
+	 *
+	 * @param subID unique subscriber ID of the client
+	 * @param pattern topic pattern to subscribe to
+	 * @return boolean if it was successful.  Fails if already subscribed or the pattern is malformed
+	 * @throws RemoteException
+	 */
+	public boolean addPatternSubscriber(Integer subID, String pattern) throws RemoteException;
+
+	/**
+	 * User stops subscribing to a topic pattern
+	 *
+	 * @param subID unique subscriber ID of the client
+	 * @param pattern the topic pattern exactly as it was subscribed
+	 * @return boolean if user was subscribed to it
+	 * @throws RemoteException
+	 */
+	public boolean removePatternSubscriber(Integer subID, String pattern) throws RemoteException;
+
 	/**
-	 * User unsubscribes from all topics and keywords
+	 * User unsubscribes from all topics, topic patterns and keywords
 	 * 
 	 * @param subID unique subscriber ID of the client 
 	 * @return  boolean if user was successfully removed from all topics and keywords
@@ -86,11 +136,11 @@ public interface EventManInterface extends java.rmi.Remote {
 	public boolean removeSubscriber(Integer subID, Topic t) throws RemoteException;
 	
 	/**
-	 * User stops subscribing to a given keyword
+	 * User stops subscribing to a given keyword or content filter
 	 * 
 	 * @param subID unique subscriber ID of the client 
-	 * @param keyword
-	 * @return
+	 * @param keyword the keyword, or the content filter exactly as it was subscribed
+	 * @return boolean if user was subscribed to it
 	 * @throws RemoteException
 	 */
 	public boolean removeSubscriber(Integer subID,  String keyword) throws RemoteException;
@@ -104,6 +154,16 @@ public interface EventManInterface extends java.rmi.Remote {
 	 */
 	public int publish(Event event) throws RemoteException;
 	
+	/**
+	 * Publisher publishes several events in one call.  The events that can be published are given one 
+	 * contiguous block of IDs, in the order they appear in the list
+	 * 
+	 * @param events to be published
+	 * @return the unique ID of each event at the same index, or 0 for an event that could not be published
+	 * @throws RemoteException
+	 */
+	public int[] publishBatch(List<Event> events) throws RemoteException;
+	
 	/**
 	 * The server will return a list of all available topics for a subscriber to choose from
 	 * 
@@ -129,6 +189,14 @@ public interface EventManInterface extends java.rmi.Remote {
 	 */
 	public void unbindPermanent(Integer ID) throws RemoteException;
 
+	/**
+	 * Lightweight check that the server is up and reachable, which does nothing else.  Clients probe with
+	 * it while the server is unavailable, to know the moment they can send their requests again
+	 * 
+	 * @throws RemoteException if server is offline
+	 */
+	public void ping() throws RemoteException;
+
 	/**
 	 * Find a Subscriber by his unique ID
 	 * 
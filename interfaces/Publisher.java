@@ -4,6 +4,8 @@ package pubsub.interfaces;
 //Package: pubsub.interfaces;
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
+import java.util.concurrent.CompletableFuture;
+
 import pubsub.Event;
 import pubsub.Topic;
 
@@ -19,14 +21,16 @@ public interface Publisher {
 	 * Publish an event of a specific topic with title, content, and optional keywords for content filtering
 	 * 
 	 * @param event to be published
+	 * @return handle that completes with the unique ID of the event
 	 */
-	public void publish(Event event);
+	public CompletableFuture<Integer> publish(Event event);
 
 	/**
 	 * Advertise new topic for others to subscribe to
 	 * 
 	 * @param newTopic
+	 * @return handle that completes with the unique ID of the Topic
 	 */
-	public void advertise(Topic newTopic);
+	public CompletableFuture<Integer> advertise(Topic newTopic);
 
 }
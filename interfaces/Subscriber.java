@@ -5,6 +5,8 @@ package pubsub.interfaces;
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import pubsub.Event;
 import pubsub.Topic;
@@ -13,7 +15,8 @@ import pubsub.Topic;
  * These are the methods available for the Subscriber in the pub-sub system.  They extend 
  * Remote so that the server can asynchronously call back the subscriber using the notify() method.
  * If the interface extends Remote every method must throw a RemoteException, even if it is never a
- * actually called in a distributed fashion
+ * actually called in a distributed fashion.  Subscribing is run in the background by the client itself, so
+ * those methods hand back a CompletableFuture and are only ever called locally
  * 
  * @author rob mccartney
  *
@@ -24,40 +27,75 @@ public interface Subscriber extends java.rmi.Remote {
 	 * Subscribe to a topic
 	 * 
 	 * @param topic to subscribe to
+	 * @return handle that completes with whether the server accepted the subscription
 	 * @throws RemoteException
 	 */
-	public void subscribe(Topic topic) throws RemoteException;
+	public CompletableFuture<Boolean> subscribe(Topic topic) throws RemoteException;
+	
+	/**
+	 * Subscribe to a topic, first receiving every event published under it from an offset of the server's
+	 * event log
+	 * 
+	 * @param topic to subscribe to
+	 * @param fromOffset offset of the first event to receive, or -1 to resume from the last one received
+	 * @return handle that completes with whether the server accepted the subscription
+	 * @throws RemoteException
+	 */
+	public CompletableFuture<Boolean> subscribe(Topic topic, long fromOffset) throws RemoteException;
 	
 	/**
 	 * Subscribe to a topic with matching keywords
 	 * 
 	 * @param keyword the keyword to subscribe to with content filtering
+	 * @return handle that completes with whether the server accepted the subscription
+	 * @throws RemoteException
+	 */
+	public CompletableFuture<Boolean> subscribe(String keyword) throws RemoteException;
+	
+	/**
+	 * Subscribe to every topic whose name matches a pattern, where a * level matches one level of the
+	 * name and a final # level matches any number of levels (e.g. "market/sells/*" or "market/#")
+	 * 
+	 * @param pattern the topic pattern to subscribe to
+	 * @return handle that completes with whether the server accepted the subscription
 	 * @throws RemoteException
 	 */
-	public void subscribe(String keyword) throws RemoteException;
+	public CompletableFuture<Boolean> subscribePattern(String pattern) throws RemoteException;
 	
 	/**
 	 * Unsubscribe from a topic 
 	 * 
 	 * @param topic topic to unsubscribe from
+	 * @return handle that completes with whether the subscriber was subscribed
 	 * @throws RemoteException
 	 */
-	public void unsubscribe(Topic topic) throws RemoteException;
+	public CompletableFuture<Boolean> unsubscribe(Topic topic) throws RemoteException;
 	
 	/**
 	 * Unsubscribe from a keyword 
 	 * 
 	 * @param keyword to unsubscribe from
+	 * @return handle that completes with whether the subscriber was subscribed
 	 * @throws RemoteException
 	 */
-	public void unsubscribe(String keyword) throws RemoteException;
+	public CompletableFuture<Boolean> unsubscribe(String keyword) throws RemoteException;
+	
+	/**
+	 * Unsubscribe from a topic pattern
+	 * 
+	 * @param pattern to unsubscribe from
+	 * @return handle that completes with whether the subscriber was subscribed
+	 * @throws RemoteException
+	 */
+	public CompletableFuture<Boolean> unsubscribePattern(String pattern) throws RemoteException;
 	
 
 	/**
 	 * Unsubscribe to all subscribed topics
+	 * @return handle that completes with whether the subscriber was removed from everything
 	 * @throws RemoteException
 	 */
-	public void unsubscribe() throws RemoteException;
+	public CompletableFuture<Boolean> unsubscribe() throws RemoteException;
 	
 	/**
 	 * 
@@ -65,5 +103,14 @@ public interface Subscriber extends java.rmi.Remote {
 	 * @throws RemoteException
 	 */
 	public void notify(Event e) throws RemoteException;
+	
+	/**
+	 * Notify the subscriber of several events in one call.  The server uses this to coalesce events that
+	 * are waiting for the same subscriber, and falls back to notify() for clients that do not have it
+	 * 
+	 * @param events the events on which to notify the subscriber, in the order they were published
+	 * @throws RemoteException
+	 */
+	public void notifyBatch(List<Event> events) throws RemoteException;
 
 }
@@ -15,6 +15,7 @@ import pubsub.PubSubAgent;
 import pubsub.PubSubClient;
 import pubsub.Topic;
 import pubsub.interfaces.BuySell;
+import pubsub.interfaces.EventHandler;
 import pubsub.interfaces.EventManInterface;
 /**
  * This class is a buyer inside the market game
@@ -35,6 +36,8 @@ public class Buyer extends PubSubAgent implements BuySell {
 	public static Topic marketBuy; 
 	//market-wide offer to sell stock
 	public static Topic marketSell;
+	//handler that takes offers automatically, if one was set up
+	private transient EventHandler autoBuyer;
 	//the token that is first-come first serve for the seller to get
 	public HashMap<Integer, BuyOffer> token;
 		
@@ -91,7 +94,10 @@ public class Buyer extends PubSubAgent implements BuySell {
 		double price = in.nextDouble(); in.nextLine();
 		int ID = server.publish(new Event(marketBuy, "Buy Stock " + stockID,  
 								"Buyer_" + super.ID + " offers to buy Stock " +stockID+ " at " +price, 
-								""+super.ID, ""+stockID, ""+price ));	
+								"buy")
+								.withAttribute("agentId", super.ID)
+								.withAttribute("stockId", stockID)
+								.withAttribute("price", price));
 		token.put(ID, new BuyOffer(price, stockID));
 	}
 	/**
@@ -103,29 +109,77 @@ public class Buyer extends PubSubAgent implements BuySell {
 	/**
 	 * Look at current sell offers to see if you want to buy any
 	 * @param in Scanner
-	 * @throws NumberFormatException
 	 * @throws RemoteException
 	 */
-	private synchronized void sellOffers(Scanner in) throws NumberFormatException, RemoteException {
-		for(Event e : recvdEvents ) 
+	private void sellOffers(Scanner in) throws RemoteException {
+		for(Event e : received.list() ) 
 			System.out.print(e);
 		System.out.println("Which offer do you want? Use Event's UniqueID in title to specify");
 		int eventID = in.nextInt(); in.nextLine();
-		for(Event e : recvdEvents ) {
-			if (e.getID() == eventID) {
-				int sellID = Integer.parseInt(e.getKeywords()[0]);
-				int stockID = Integer.parseInt(e.getKeywords()[1]);
-				Double price = Double.parseDouble(e.getKeywords()[2]);
-				BuySell seller = (BuySell) server.getSubscriber(sellID);
-				if (seller.sell(eventID)) {
-					this.money -= price;
-					this.portfolio[stockID] += 1;
-				}
-				recvdEvents.remove(e);
-				return;
+		Event e = received.get(eventID);
+		if (e == null) {
+			System.out.println("Unique ID not recognized");
+			return;
+		}
+		take(e);
+	}
+	/**
+	 * Respond to a Sell offer, trading with the agent that made it if the offer is still open.  The
+	 * other agent is called without holding this one's lock, since it may be calling this one at the same time
+	 * @param e the Sell offer
+	 * @return true if the stock was bought
+	 * @throws RemoteException
+	 */
+	private boolean take(Event e) throws RemoteException {
+		int sellID = e.getNumber("agentId").intValue();
+		int stockID = e.getNumber("stockId").intValue();
+		double price = e.getNumber("price").doubleValue();
+		BuySell seller = (BuySell) server.getSubscriber(sellID);
+		if (seller == null) {
+			System.out.println("Trading directly with another agent needs the RMI transport");
+			return false;
+		}
+		boolean traded = seller.sell(e.getID());
+		if (traded) {
+			synchronized (this) {
+				this.money -= price;
+				this.portfolio[stockID] += 1;
 			}
 		}
-		System.out.println("Unique ID not recognized");
+		received.remove(e.getID());
+		return traded;
+	}
+	/**
+	 * Buy a stock automatically whenever a Sell offer for it at or below a price arrives, by
+	 * subscribing to those offers and handling each one as it is received
+	 * @param stockID of the stock
+	 * @param limit price to buy at or below
+	 */
+	public void autoBuy(final int stockID, final double limit) {
+		if (autoBuyer != null)
+			removeHandler(autoBuyer);
+		autoBuyer = new EventHandler() {
+			public void onEvent(Event e) {
+				Number stock = e.getNumber("stockId");
+				Number price = e.getNumber("price");
+				if (stock == null || price == null || stock.intValue() != stockID || !(price.doubleValue() <= limit))
+					return;
+				try {
+					if (worthTaking(stockID, price.doubleValue()) && take(e))
+						System.out.println("*Bought Stock " + stockID + " at " + price + "*");
+				} catch (RemoteException ex) {
+					System.err.println("Could not buy Stock " + stockID + ": " + ex.getMessage());
+				}
+			}
+		};
+		onEvent(marketSell, autoBuyer);
+		super.subscribe( "sell AND stockId == " + stockID + " AND price <= " + limit );
+	}
+	/**
+	 * Helper method to check this agent can afford a trade before taking an offer automatically
+	 */
+	private synchronized boolean worthTaking(int stockID, double price) {
+		return money >= price;
 	}
 	
 	/**
@@ -155,13 +209,14 @@ public class Buyer extends PubSubAgent implements BuySell {
 	public void commandLineInterface() throws RemoteException {
 		Scanner in = new Scanner(System.in);
 		do {
-			System.out.println("What would you like to do? Enter choice [1-5]:");
+			System.out.println("What would you like to do? Enter choice [1-7]:");
 			System.out.println("1: Place offer to buy stock");
 			System.out.println("2: Respond to a Sell offer");
 			System.out.println("3: View portfolio");
 			System.out.println("4: Subscribe to offers on a given stock");
 			System.out.println("5: Subscribe to all Sell offers");
-			System.out.println("6: Quit");
+			System.out.println("6: Buy a stock automatically whenever it is offered at or below a price");
+			System.out.println("7: Quit");
 			System.out.print("> ");
 			int choice = -1;
 			try {
@@ -174,10 +229,23 @@ public class Buyer extends PubSubAgent implements BuySell {
 				case 4:
 					System.out.println("What is the StockID you want to subscribe to?");
 					int anID = in.nextInt(); in.nextLine();
-					super.subscribe( ""+anID );
+					System.out.println("Highest price you would pay? (leave blank for any price)");
+					String limit = in.nextLine().trim();
+					try {
+						super.subscribe( "sell AND stockId == " + anID + 
+								(limit.isEmpty() ? "" : " AND price <= " + Double.parseDouble(limit)) );
+					} catch (NumberFormatException e) { System.out.println("Price not recognized"); }
 					break;
 				case 5: super.subscribe( marketSell ); break;
-				case 6: in.close(); fullExit(); break;
+				case 6:
+					System.out.println("What is the StockID you want to buy?");
+					int autoID = in.nextInt(); in.nextLine();
+					System.out.println("Highest price you would pay?");
+					try {
+						autoBuy(autoID, Double.parseDouble(in.nextLine().trim()));
+					} catch (NumberFormatException e) { System.out.println("Price not recognized"); }
+					break;
+				case 7: in.close(); fullExit(); break;
 				default: System.out.println("Input not recognized");
 			}
 		} while (true);
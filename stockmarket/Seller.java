@@ -15,6 +15,7 @@ import pubsub.PubSubAgent;
 import pubsub.PubSubClient;
 import pubsub.Topic;
 import pubsub.interfaces.BuySell;
+import pubsub.interfaces.EventHandler;
 import pubsub.interfaces.EventManInterface;
 /**
  * This class is a seller inside the market game
@@ -39,6 +40,8 @@ public class Seller extends PubSubAgent implements BuySell {
 	public static Topic marketBuy; 
 	//market-wide offer to sell stock
 	public static Topic marketSell;
+	//handler that takes offers automatically, if one was set up
+	private transient EventHandler autoSeller;
 	//the token that is first-come first serve for the buyer to get
 	public HashMap<Integer, SaleOffer> token;
 		
@@ -95,7 +98,10 @@ public class Seller extends PubSubAgent implements BuySell {
 		double price = in.nextDouble(); in.nextLine();
 		int ID = server.publish(new Event(marketSell, "Sell Stock " + stockID,  
 								"Seller_" + super.ID + " offers to sell Stock " +stockID+ " at " +price, 
-								""+super.ID, ""+stockID, ""+price ));	
+								"sell")
+								.withAttribute("agentId", super.ID)
+								.withAttribute("stockId", stockID)
+								.withAttribute("price", price));
 		token.put(ID, new SaleOffer(price, stockID));
 	}
 	/**
@@ -113,29 +119,77 @@ public class Seller extends PubSubAgent implements BuySell {
 	/**
 	 * Look at current buyOffers to see if you want any 
 	 * @param in
-	 * @throws NumberFormatException
 	 * @throws RemoteException
 	 */
-	private synchronized void buyOffers(Scanner in) throws NumberFormatException, RemoteException {
-		for(Event e : recvdEvents ) 
+	private void buyOffers(Scanner in) throws RemoteException {
+		for(Event e : received.list() ) 
 			System.out.print(e);
 		System.out.println("Which offer do you want? Use Event's UniqueID in title to specify");
 		int eventID = in.nextInt(); in.nextLine();
-		for(Event e : recvdEvents ) {
-			if (e.getID() == eventID) {
-				int buyID = Integer.parseInt(e.getKeywords()[0]);
-				int stockID = Integer.parseInt(e.getKeywords()[1]);
-				Double price = Double.parseDouble(e.getKeywords()[2]);
-				BuySell buyer = (BuySell) server.getSubscriber(buyID);
-				if (buyer.buy(eventID)) {
-					this.money += price;
-					this.portfolio[stockID] -= 1;
-				}
-				recvdEvents.remove(e);
-				return;
+		Event e = received.get(eventID);
+		if (e == null) {
+			System.out.println("Unique ID not recognized");
+			return;
+		}
+		take(e);
+	}
+	/**
+	 * Respond to a Buy offer, trading with the agent that made it if the offer is still open.  The
+	 * other agent is called without holding this one's lock, since it may be calling this one at the same time
+	 * @param e the Buy offer
+	 * @return true if the stock was sold
+	 * @throws RemoteException
+	 */
+	private boolean take(Event e) throws RemoteException {
+		int buyID = e.getNumber("agentId").intValue();
+		int stockID = e.getNumber("stockId").intValue();
+		double price = e.getNumber("price").doubleValue();
+		BuySell buyer = (BuySell) server.getSubscriber(buyID);
+		if (buyer == null) {
+			System.out.println("Trading directly with another agent needs the RMI transport");
+			return false;
+		}
+		boolean traded = buyer.buy(e.getID());
+		if (traded) {
+			synchronized (this) {
+				this.money += price;
+				this.portfolio[stockID] -= 1;
 			}
 		}
-		System.out.println("Unique ID not recognized");
+		received.remove(e.getID());
+		return traded;
+	}
+	/**
+	 * Sell a stock automatically whenever a Buy offer for it at or above a price arrives, by
+	 * subscribing to those offers and handling each one as it is received
+	 * @param stockID of the stock
+	 * @param limit price to sell at or above
+	 */
+	public void autoSell(final int stockID, final double limit) {
+		if (autoSeller != null)
+			removeHandler(autoSeller);
+		autoSeller = new EventHandler() {
+			public void onEvent(Event e) {
+				Number stock = e.getNumber("stockId");
+				Number price = e.getNumber("price");
+				if (stock == null || price == null || stock.intValue() != stockID || !(price.doubleValue() >= limit))
+					return;
+				try {
+					if (worthTaking(stockID, price.doubleValue()) && take(e))
+						System.out.println("*Sold Stock " + stockID + " at " + price + "*");
+				} catch (RemoteException ex) {
+					System.err.println("Could not sell Stock " + stockID + ": " + ex.getMessage());
+				}
+			}
+		};
+		onEvent(marketBuy, autoSeller);
+		super.subscribe( "buy AND stockId == " + stockID + " AND price >= " + limit );
+	}
+	/**
+	 * Helper method to check this agent holds the stock before taking an offer automatically
+	 */
+	private synchronized boolean worthTaking(int stockID, double price) {
+		return portfolio[stockID] > 0;
 	}
 	
 	/**
@@ -159,13 +213,14 @@ public class Seller extends PubSubAgent implements BuySell {
 	public void commandLineInterface() throws RemoteException {
 		Scanner in = new Scanner(System.in);
 		do {
-			System.out.println("What would you like to do? Enter choice [1-5]:");
+			System.out.println("What would you like to do? Enter choice [1-7]:");
 			System.out.println("1: Place offer to sell stock");
 			System.out.println("2: Respond to a Buy offer");
 			System.out.println("3: View portfolio");
 			System.out.println("4: Subscribe to offers on a given stock");
 			System.out.println("5: Subscribe to all Buy offers");
-			System.out.println("6: Quit");
+			System.out.println("6: Sell a stock automatically whenever someone offers at or above a price");
+			System.out.println("7: Quit");
 			System.out.print("> ");
 			int choice = -1;
 			try {
@@ -178,10 +233,23 @@ public class Seller extends PubSubAgent implements BuySell {
 				case 4:
 					System.out.println("What is the StockID you want to subscribe to?");
 					int anID = in.nextInt(); in.nextLine();
-					super.subscribe( ""+anID );
+					System.out.println("Lowest price you would accept? (leave blank for any price)");
+					String limit = in.nextLine().trim();
+					try {
+						super.subscribe( "buy AND stockId == " + anID + 
+								(limit.isEmpty() ? "" : " AND price >= " + Double.parseDouble(limit)) );
+					} catch (NumberFormatException e) { System.out.println("Price not recognized"); }
 					break;
 				case 5: super.subscribe( marketBuy ); break;
-				case 6: in.close(); fullExit(); break;
+				case 6:
+					System.out.println("What is the StockID you want to sell?");
+					int autoID = in.nextInt(); in.nextLine();
+					System.out.println("Lowest price you would accept?");
+					try {
+						autoSell(autoID, Double.parseDouble(in.nextLine().trim()));
+					} catch (NumberFormatException e) { System.out.println("Price not recognized"); }
+					break;
+				case 7: in.close(); fullExit(); break;
 				default: System.out.println("Input not recognized");
 			}
 		} while (true);
@@ -6,10 +6,8 @@ package pubsub.stockmarket;
 //Unit:    Distributed Programming Individual Project
 //******************************************************************************
 import java.rmi.RemoteException;
-import java.util.LinkedHashSet;
 import java.util.Scanner;
 
-import pubsub.Event;
 import pubsub.EventManager;
 import pubsub.EventServer;
 import pubsub.Topic;
@@ -25,7 +23,6 @@ public class StockMarketManager extends EventManager {
 	private static final long serialVersionUID = 1L;
 	public static Topic marketBuy = new Topic("Stock Market Buys", "buy");
 	public static Topic marketSell = new Topic("Stock Market Sells", "sell");
-	public LinkedHashSet<Event> allEvents;
 	
 	/**
 	 * Coonstructor
@@ -34,20 +31,10 @@ public class StockMarketManager extends EventManager {
 	 */
 	public StockMarketManager() throws RemoteException {
 		super(false);
-		allEvents = new LinkedHashSet<>();
 		super.addTopic(marketBuy);
 		super.addTopic(marketSell);
 	}
 
-	/**
-	 * overrides superclass to store the event for later printing (parent does not store event)
-	 */
-	public int publish(Event e) throws RemoteException {
-		int returnVal = super.publish(e);
-		allEvents.add(e);
-		return returnVal;
-	}
-	
 	/**
 	 * Use this class as the System Admin
 	 */
@@ -64,10 +51,7 @@ public class StockMarketManager extends EventManager {
 				choice = in.nextInt(); in.nextLine();
 			} catch (Exception e) { in.nextLine(); }
 			switch (choice) {
-				case 1: 
-					for (Event e : allEvents)
-						System.out.print( e );
-					break;
+				case 1: showEvents(); break;
 				case 2: showSubscribers(); break;
 				case 3: in.close(); System.exit(0); 
 				default: System.out.println("Input not recognized");